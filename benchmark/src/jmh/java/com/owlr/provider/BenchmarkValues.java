@@ -0,0 +1,61 @@
+package com.owlr.provider;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The same mix of keys and value types on every run, so results can be compared between runs.
+ */
+final class BenchmarkValues {
+
+  private static final long SEED = 42L;
+
+  private BenchmarkValues() {
+  }
+
+  /**
+   * @return count keys, mostly strings and booleans like a real store, with some numbers and a
+   * few string sets.
+   */
+  static Map<String, Object> create(int count) {
+    final Random random = new Random(SEED);
+    final Map<String, Object> values = new LinkedHashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      values.put(getKey(i), createValue(random, i));
+    }
+    return values;
+  }
+
+  static String getKey(int i) {
+    return "user:setting_" + i;
+  }
+
+  private static Object createValue(Random random, int i) {
+    switch (i % 8) {
+      case 0:
+      case 1:
+      case 2:
+        return "value " + Long.toHexString(random.nextLong());
+      case 3:
+      case 4:
+        return random.nextBoolean();
+      case 5:
+        return random.nextLong();
+      case 6:
+        return i % 16 == 6 ? random.nextInt() : random.nextFloat();
+      default:
+        return new HashSet<>(Arrays.asList("a" + random.nextInt(100), "b" + random.nextInt(100)));
+    }
+  }
+
+  static SharedChanges toChanges(Map<String, Object> values) {
+    final SharedChanges changes = new SharedChanges();
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      changes.put(entry.getKey(), entry.getValue());
+    }
+    return changes;
+  }
+}
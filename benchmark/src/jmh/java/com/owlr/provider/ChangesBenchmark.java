@@ -0,0 +1,53 @@
+package com.owlr.provider;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The master to slave sync, without the broadcast itself. Encoding is what
+ * {@link SharedContentChangedReceiver} does to put changes in the Intent, decoding and writing to
+ * the store is what applying them on a slave comes down to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@Warmup(iterations = 5, time = 1) @Measurement(iterations = 10, time = 1)
+public class ChangesBenchmark {
+
+  @Param({ "10", "100", "1000", "10000" }) public int keys;
+
+  private SharedChanges changes;
+  private byte[] payload;
+  private SharedPreferencesStore slave;
+
+  @Setup public void setUp() {
+    changes = BenchmarkValues.toChanges(BenchmarkValues.create(keys));
+    payload = SharedChangesCodec.encode(changes, true);
+    slave = new SharedPreferencesStore(new FakeSharedPreferences(), new FakeSharedPreferences(),
+        new SharedVersions(new FakeSharedPreferences()));
+  }
+
+  @Benchmark public byte[] encode() {
+    return SharedChangesCodec.encode(changes, true);
+  }
+
+  @Benchmark public SharedChanges decode() throws IOException {
+    return SharedChangesCodec.decode(payload);
+  }
+
+  @Benchmark public long decodeAndApply() throws IOException {
+    final SharedChanges received = SharedChangesCodec.decode(payload);
+    return slave.write(received.isCleared(), received.getValues());
+  }
+}
@@ -0,0 +1,53 @@
+package com.owlr.provider;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Client side decoding of what the provider sends back, {@link SharedCursorUtils} over the rows
+ * of a {@link SharedValuesCursor} dump and a single value query.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@Warmup(iterations = 5, time = 1) @Measurement(iterations = 10, time = 1)
+public class CursorBenchmark implements Types {
+
+  @Param({ "10", "100", "1000", "10000" }) public int keys;
+
+  private RowsCursor all;
+  private RowsCursor single;
+
+  @Setup public void setUp() {
+    final Map<String, Object> values = BenchmarkValues.create(keys);
+    final Object[][] rows = new Object[values.size()][];
+    int i = 0;
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      rows[i++] = new Object[] {
+          entry.getKey(), SharedValuesCursor.getRowType(entry.getValue()),
+          SharedValuesCursor.toColumnValue(entry.getValue())
+      };
+    }
+    all = new RowsCursor(new String[] { KEY, TYPE, VALUE }, rows);
+    single = new RowsCursor(new String[] { "flag" }, new Object[][] { { 1 } });
+  }
+
+  @Benchmark public Map<String, Object> getValues() {
+    return SharedCursorUtils.getValues(all);
+  }
+
+  @Benchmark public boolean getBooleanValue() {
+    return SharedCursorUtils.getBooleanValue(single, false);
+  }
+}
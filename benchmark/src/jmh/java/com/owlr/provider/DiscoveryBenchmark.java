@@ -0,0 +1,108 @@
+package com.owlr.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ResolveInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * {@link PackageScanDiscovery} against {@link IntentDiscovery} through
+ * {@link SharedProviderFinder#findProviders()}, on devices with 50 to 500 apps of which three are
+ * ours. The PackageManager is a mock answering from memory, so this is what each strategy costs
+ * in our process. The binder transaction, which grows with every package the scan loads, comes
+ * on top of that on a device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@Warmup(iterations = 5, time = 1) @Measurement(iterations = 10, time = 1)
+public class DiscoveryBenchmark {
+
+  private static final String PERMISSION = "com.owlr.PERMISSION";
+  private static final Pattern MATCHER = Pattern.compile("com\\.owlr\\.(?:[a-z0-9]+\\.)*provider");
+  private static final int OUR_APPS = 3;
+  private static final int PROVIDERS_PER_APP = 2;
+
+  @Param({ "50", "100", "250", "500" }) public int apps;
+
+  private SharedProviderFinder packageScan;
+  private SharedProviderFinder intent;
+
+  @Setup public void setUp() {
+    // The platform classes can't be constructed on the JVM.
+    final Objenesis objenesis = new ObjenesisStd();
+    final List<PackageInfo> packages = new ArrayList<>(apps);
+    final List<ResolveInfo> resolved = new ArrayList<>(OUR_APPS);
+    for (int i = 0; i < apps; i++) {
+      final PackageInfo packageInfo = objenesis.newInstance(PackageInfo.class);
+      packageInfo.providers = new ProviderInfo[PROVIDERS_PER_APP];
+      for (int p = 0; p < PROVIDERS_PER_APP; p++) {
+        final ProviderInfo provider = objenesis.newInstance(ProviderInfo.class);
+        if (i < OUR_APPS && p == 0) {
+          provider.authority = "com.owlr.app" + i + ".provider";
+          provider.writePermission = PERMISSION;
+          final ResolveInfo resolveInfo = objenesis.newInstance(ResolveInfo.class);
+          resolveInfo.providerInfo = provider;
+          resolved.add(resolveInfo);
+        } else {
+          provider.authority = "com.vendor" + i + ".app.p" + p;
+          provider.writePermission = p == 0 ? null : "com.vendor" + i + ".PERMISSION";
+        }
+        packageInfo.providers[p] = provider;
+      }
+      packages.add(packageInfo);
+    }
+
+    // Stub only, a mock would keep every call the benchmark makes.
+    final PackageManager packageManager = mock(PackageManager.class, withSettings().stubOnly());
+    when(packageManager.getInstalledPackages(PackageManager.GET_PROVIDERS)).thenReturn(packages);
+    when(packageManager.queryIntentContentProviders(any(Intent.class), anyInt())).thenReturn(
+        resolved);
+    final Context context = mock(Context.class, withSettings().stubOnly());
+    when(context.getPackageManager()).thenReturn(packageManager);
+
+    final ContentResolver resolver = mock(ContentResolver.class);
+    packageScan = new SharedProviderFinder(context, MATCHER, PERMISSION, resolver,
+        new PackageScanDiscovery(context));
+    intent = new SharedProviderFinder(context, MATCHER, PERMISSION, resolver,
+        new IntentDiscovery(context, PERMISSION));
+    if (packageScan.findProviders().size() != OUR_APPS
+        || intent.findProviders().size() != OUR_APPS) {
+      throw new IllegalStateException("Both discoveries should find our " + OUR_APPS + " apps");
+    }
+  }
+
+  @Benchmark public List<ProviderInfo> packageScan() {
+    return packageScan.findProviders();
+  }
+
+  @Benchmark public List<ProviderInfo> intent() {
+    return intent.findProviders();
+  }
+}
@@ -0,0 +1,104 @@
+package com.owlr.provider;
+
+import android.content.pm.ProviderInfo;
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The election over the providers which matched. Every peer answers its lease straight away, so
+ * this is the cost of the election logic, not of waking up other apps. Finding the providers is
+ * in {@link DiscoveryBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@Warmup(iterations = 5, time = 1) @Measurement(iterations = 10, time = 1)
+public class FinderBenchmark {
+
+  private static final String PERMISSION = "com.owlr.PERMISSION";
+  /**
+   * One in this many installed packages is one of ours.
+   */
+  private static final int OURS_EVERY = 25;
+
+  @Param({ "10", "50", "100", "500" }) public int packages;
+
+  private SharedProviderFinder finder;
+  private List<ProviderInfo> matched;
+
+  @Setup public void setUp() {
+    final ObjectInstantiator<ProviderInfo> instantiator =
+        new ObjenesisStd().getInstantiatorOf(ProviderInfo.class);
+    final List<ProviderInfo> installed = new ArrayList<>(packages);
+    for (int i = 0; i < packages; i++) {
+      // The platform ProviderInfo can't be constructed on the JVM.
+      final ProviderInfo provider = instantiator.newInstance();
+      if (i % OURS_EVERY == 0) {
+        provider.authority = "com.owlr.app" + i + ".provider";
+        provider.writePermission = PERMISSION;
+      } else {
+        provider.authority = "com.vendor" + i + ".app.provider";
+        provider.writePermission = i % 3 == 0 ? null : "com.vendor" + i + ".PERMISSION";
+      }
+      installed.add(provider);
+    }
+    finder = new Finder(installed);
+    matched = finder.findProviders();
+  }
+
+  @Benchmark public String findMasterProvider() {
+    return finder.findMasterProvider(matched);
+  }
+
+  /**
+   * Peers answer from memory, the last one of ours is master.
+   */
+  private static final class Finder extends SharedProviderFinder {
+
+    private final String master;
+
+    Finder(final List<ProviderInfo> installed) {
+      super(null, Pattern.compile("com\\.owlr\\.(?:[a-z0-9]+\\.)*provider"), PERMISSION, null,
+          new ProviderDiscovery() {
+            @NonNull @Override public List<ProviderInfo> findCandidates() {
+              return installed;
+            }
+          });
+      String master = null;
+      for (ProviderInfo provider : installed) {
+        if (PERMISSION.equals(provider.writePermission)) master = provider.authority;
+      }
+      this.master = master;
+    }
+
+    @Override MasterLease queryLease(String authority) {
+      return new MasterLease(master.equals(authority), 1L, 0L);
+    }
+
+    @Override ExecutorService getProbeExecutor() {
+      // Probes one after the other, a thread pool would only add noise.
+      return null;
+    }
+
+    @Override String delegateMaster(String authority, boolean isMaster) {
+      return authority;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.owlr.provider;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import java.util.Arrays;
+
+/**
+ * Cursor over rows held in memory, reading it costs what reading a filled CursorWindow does
+ * minus the copying. The platform cursors can't be made on the JVM. Rewinds on close so one
+ * instance can be read again and again.
+ */
+final class RowsCursor implements Cursor {
+
+  private final String[] columns;
+  private final Object[][] rows;
+  private int position = -1;
+
+  RowsCursor(String[] columns, Object[][] rows) {
+    this.columns = columns;
+    this.rows = rows;
+  }
+
+  @Override public int getCount() {
+    return rows.length;
+  }
+
+  @Override public int getPosition() {
+    return position;
+  }
+
+  @Override public boolean move(int offset) {
+    return moveToPosition(position + offset);
+  }
+
+  @Override public boolean moveToPosition(int position) {
+    this.position = Math.max(-1, Math.min(position, rows.length));
+    return this.position >= 0 && this.position < rows.length;
+  }
+
+  @Override public boolean moveToFirst() {
+    return moveToPosition(0);
+  }
+
+  @Override public boolean moveToLast() {
+    return moveToPosition(rows.length - 1);
+  }
+
+  @Override public boolean moveToNext() {
+    return moveToPosition(position + 1);
+  }
+
+  @Override public boolean moveToPrevious() {
+    return moveToPosition(position - 1);
+  }
+
+  @Override public boolean isFirst() {
+    return position == 0 && rows.length > 0;
+  }
+
+  @Override public boolean isLast() {
+    return position == rows.length - 1 && rows.length > 0;
+  }
+
+  @Override public boolean isBeforeFirst() {
+    return position < 0;
+  }
+
+  @Override public boolean isAfterLast() {
+    return position >= rows.length;
+  }
+
+  @Override public int getColumnIndex(String columnName) {
+    return Arrays.asList(columns).indexOf(columnName);
+  }
+
+  @Override public int getColumnIndexOrThrow(String columnName) {
+    final int index = getColumnIndex(columnName);
+    if (index < 0) throw new IllegalArgumentException("No column " + columnName);
+    return index;
+  }
+
+  @Override public String getColumnName(int columnIndex) {
+    return columns[columnIndex];
+  }
+
+  @Override public String[] getColumnNames() {
+    return columns;
+  }
+
+  @Override public int getColumnCount() {
+    return columns.length;
+  }
+
+  @Override public byte[] getBlob(int columnIndex) {
+    return (byte[]) get(columnIndex);
+  }
+
+  @Override public String getString(int columnIndex) {
+    final Object value = get(columnIndex);
+    return value == null ? null : value.toString();
+  }
+
+  @Override public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public short getShort(int columnIndex) {
+    return ((Number) get(columnIndex)).shortValue();
+  }
+
+  @Override public int getInt(int columnIndex) {
+    return ((Number) get(columnIndex)).intValue();
+  }
+
+  @Override public long getLong(int columnIndex) {
+    return ((Number) get(columnIndex)).longValue();
+  }
+
+  @Override public float getFloat(int columnIndex) {
+    return ((Number) get(columnIndex)).floatValue();
+  }
+
+  @Override public double getDouble(int columnIndex) {
+    return ((Number) get(columnIndex)).doubleValue();
+  }
+
+  @Override public int getType(int columnIndex) {
+    final Object value = get(columnIndex);
+    if (value == null) return FIELD_TYPE_NULL;
+    if (value instanceof byte[]) return FIELD_TYPE_BLOB;
+    if (value instanceof Float || value instanceof Double) return FIELD_TYPE_FLOAT;
+    if (value instanceof Number) return FIELD_TYPE_INTEGER;
+    return FIELD_TYPE_STRING;
+  }
+
+  @Override public boolean isNull(int columnIndex) {
+    return get(columnIndex) == null;
+  }
+
+  private Object get(int columnIndex) {
+    return rows[position][columnIndex];
+  }
+
+  @Override public void deactivate() {
+  }
+
+  @Override public boolean requery() {
+    position = -1;
+    return true;
+  }
+
+  @Override public void close() {
+    position = -1;
+  }
+
+  @Override public boolean isClosed() {
+    return false;
+  }
+
+  @Override public void registerContentObserver(ContentObserver observer) {
+  }
+
+  @Override public void unregisterContentObserver(ContentObserver observer) {
+  }
+
+  @Override public void registerDataSetObserver(DataSetObserver observer) {
+  }
+
+  @Override public void unregisterDataSetObserver(DataSetObserver observer) {
+  }
+
+  @Override public void setNotificationUri(ContentResolver cr, Uri uri) {
+  }
+
+  @Override public Uri getNotificationUri() {
+    return null;
+  }
+
+  @Override public boolean getWantsAllOnMoveCalls() {
+    return false;
+  }
+
+  @Override public Bundle getExtras() {
+    return null;
+  }
+
+  @Override public Bundle respond(Bundle extras) {
+    return null;
+  }
+}
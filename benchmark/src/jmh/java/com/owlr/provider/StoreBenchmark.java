@@ -0,0 +1,94 @@
+package com.owlr.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What {@link SharedProvider} query and insert do once the call reaches it, a read or a versioned
+ * write on each {@link SharedStore}. The SharedPreferences ones are over an in memory fake, so
+ * this is our own overhead and not the platforms file writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@Warmup(iterations = 5, time = 1) @Measurement(iterations = 10, time = 1)
+public class StoreBenchmark {
+
+  @Param({ "prefs", "sharded", "log" }) public String store;
+  @Param({ "100", "10000" }) public int keys;
+
+  private SharedStore sharedStore;
+  private File logFile;
+  private ExecutorService logExecutor;
+  private int next;
+  private long counter;
+
+  @Setup public void setUp() throws IOException {
+    final SharedVersions versions = new SharedVersions(new FakeSharedPreferences());
+    switch (store) {
+      case "prefs":
+        sharedStore = new SharedPreferencesStore(new FakeSharedPreferences(),
+            new FakeSharedPreferences(), versions);
+        break;
+      case "sharded":
+        sharedStore = new ShardedSharedStore(fakes(4), fakes(4), versions, null);
+        break;
+      case "log":
+        logFile = File.createTempFile("shared_store", ".log");
+        logExecutor = Executors.newSingleThreadExecutor();
+        sharedStore = new LogSharedStore(logFile, logExecutor);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown store " + store);
+    }
+    sharedStore.write(false, BenchmarkValues.create(keys));
+  }
+
+  @TearDown public void tearDown() throws InterruptedException {
+    if (logExecutor != null) {
+      logExecutor.shutdown();
+      logExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    if (logFile != null) {
+      //noinspection ResultOfMethodCallIgnored
+      logFile.delete();
+      //noinspection ResultOfMethodCallIgnored
+      new File(logFile.getPath() + ".compact").delete();
+    }
+  }
+
+  @Benchmark public Object get() {
+    next = (next + 1) % keys;
+    return sharedStore.get(BenchmarkValues.getKey(next));
+  }
+
+  @Benchmark public long write() {
+    final Map<String, Long> write = Collections.singletonMap("counter", ++counter);
+    return sharedStore.write(false, write);
+  }
+
+  private static FakeSharedPreferences[] fakes(int count) {
+    final FakeSharedPreferences[] fakes = new FakeSharedPreferences[count];
+    for (int i = 0; i < count; i++) {
+      fakes[i] = new FakeSharedPreferences();
+    }
+    return fakes;
+  }
+}
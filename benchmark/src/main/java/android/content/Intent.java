@@ -0,0 +1,62 @@
+package android.content;
+
+import android.os.Bundle;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Intent methods the library uses. The platform one can't be constructed on the JVM, and
+ * {@link com.owlr.provider.IntentDiscovery} makes one for every lookup.
+ */
+public class Intent {
+
+  public static final String ACTION_PACKAGE_ADDED = "android.intent.action.PACKAGE_ADDED";
+  public static final String ACTION_PACKAGE_REMOVED = "android.intent.action.PACKAGE_REMOVED";
+  public static final String ACTION_PACKAGE_REPLACED = "android.intent.action.PACKAGE_REPLACED";
+
+  private final String action;
+  private final Map<String, Object> extras = new HashMap<>();
+
+  public Intent(String action) {
+    this.action = action;
+  }
+
+  public String getAction() {
+    return action;
+  }
+
+  public Intent putExtra(String name, String value) {
+    extras.put(name, value);
+    return this;
+  }
+
+  public Intent putExtra(String name, long value) {
+    extras.put(name, value);
+    return this;
+  }
+
+  public Intent putExtra(String name, byte[] value) {
+    extras.put(name, value);
+    return this;
+  }
+
+  public boolean hasExtra(String name) {
+    return extras.containsKey(name);
+  }
+
+  public String getStringExtra(String name) {
+    return (String) extras.get(name);
+  }
+
+  public long getLongExtra(String name, long defaultValue) {
+    final Object value = extras.get(name);
+    return value == null ? defaultValue : (Long) value;
+  }
+
+  /**
+   * Always null, there is no Bundle on the JVM. Nothing benchmarked receives broadcasts.
+   */
+  public Bundle getExtras() {
+    return null;
+  }
+}
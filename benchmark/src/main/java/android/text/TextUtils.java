@@ -0,0 +1,14 @@
+package android.text;
+
+/**
+ * The one TextUtils method the library uses, as on a device.
+ */
+public final class TextUtils {
+
+  private TextUtils() {
+  }
+
+  public static boolean isEmpty(CharSequence str) {
+    return str == null || str.length() == 0;
+  }
+}
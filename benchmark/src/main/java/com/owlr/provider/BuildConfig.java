@@ -0,0 +1,9 @@
+package com.owlr.provider;
+
+/**
+ * Generated by the Android build for the library, benchmarks compile its sources on their own.
+ */
+public final class BuildConfig {
+  public static final boolean DEBUG = false;
+  public static final String APPLICATION_ID = "com.owlr.provider";
+}
@@ -0,0 +1,47 @@
+package com.owlr.provider;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Asks the PackageManager only for providers which answer our action, every {@link SharedProvider}
+ * declares an intent-filter for the shared permission. Only our group comes back, rather than
+ * every provider on the device.
+ *
+ * Needs KitKat, apps still on a library version without the intent-filter are not found.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class IntentDiscovery implements ProviderDiscovery {
+
+  private final Context context;
+  private final String action;
+
+  /**
+   * @param action the action our providers declare, the shared permission.
+   */
+  public IntentDiscovery(Context context, String action) {
+    this.context = context;
+    this.action = action;
+  }
+
+  @NonNull @Override public List<ProviderInfo> findCandidates() {
+    final List<ResolveInfo> resolved =
+        context.getPackageManager().queryIntentContentProviders(new Intent(action), 0);
+    if (resolved == null) return new ArrayList<>(0);
+    final int count = resolved.size();
+    final List<ProviderInfo> providerInfoList = new ArrayList<>(count);
+    ProviderInfo providerInfo;
+    for (int i = 0; i < count; i++) {
+      providerInfo = resolved.get(i).providerInfo;
+      if (providerInfo != null) providerInfoList.add(providerInfo);
+    }
+    return providerInfoList;
+  }
+}
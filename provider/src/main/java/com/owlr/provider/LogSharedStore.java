@@ -0,0 +1,422 @@
+package com.owlr.provider;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SharedStore} as an append only log, for keys written many times a minute such as
+ * counters and timestamps. A write appends one frame instead of rewriting the whole store. The
+ * latest value and version of every key are kept in memory, as SharedPreferences does, so reads
+ * never touch the disk.
+ *
+ * Each frame is a length, the version, a {@link SharedChangesCodec} payload and a CRC32 of both,
+ * as in {@link SharedWriteLog}. The log is replayed on first use, a frame torn by a crash fails
+ * its length or CRC check and it and anything after it are cut off. Once most of the records in
+ * the log have been overwritten it is compacted in the background.
+ *
+ * Writes reach the file before they return, so they survive the process dying. They are synced to
+ * the disk shortly after in the background.
+ *
+ * Removed keys are remembered with the version they went at until the next compaction, which
+ * forgets them. {@link #getVersionsSince(long)} from before that compaction doesn't list them,
+ * read the whole store again if you are that far behind.
+ */
+public final class LogSharedStore implements SharedStore {
+
+  static final String FILE_NAME = "shared_store.log";
+
+  /**
+   * Compact once more than this share of the records in the log have been overwritten.
+   */
+  static final float MAX_DEAD_RATIO = 0.5f;
+  /**
+   * Logs smaller than this are left alone, compacting them saves next to nothing.
+   */
+  static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+  /**
+   * Anything claiming to be bigger than this is garbage, not a frame.
+   */
+  private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+  /**
+   * Syncs and compactions of every log store in the process, one thread is plenty.
+   */
+  private static final Executor EXECUTOR = newExecutor();
+
+  private static Executor newExecutor() {
+    final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              @Override public Thread newThread(@NonNull Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SharedProvider-Log");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private final File file;
+  private final File compactFile;
+  private final Executor executor;
+
+  /**
+   * Every key written since the last compaction or still there, removed keys with a null value so
+   * they keep their version.
+   */
+  private final Map<String, Entry> index = new HashMap<>();
+  /**
+   * Entries in the index that aren't removed, the only records a compaction keeps.
+   */
+  private int liveKeys;
+  private boolean loaded;
+  private long version;
+  /**
+   * Length of the intact frames in the log, and the records in them, live or not.
+   */
+  private long logBytes;
+  private long records;
+
+  private FileOutputStream fileOut;
+  private DataOutputStream out;
+  private boolean syncPending;
+  private boolean compacting;
+
+  public LogSharedStore(Context context) {
+    this(context, FILE_NAME);
+  }
+
+  public LogSharedStore(Context context, String name) {
+    this(new File(context.getFilesDir(), name), EXECUTOR);
+  }
+
+  LogSharedStore(File file, Executor executor) {
+    this.file = file;
+    this.compactFile = new File(file.getPath() + ".compact");
+    this.executor = executor;
+  }
+
+  @Override public synchronized boolean contains(@NonNull String key) {
+    load();
+    final Entry entry = index.get(key);
+    return entry != null && entry.value != null;
+  }
+
+  @Nullable @Override public synchronized Object get(@NonNull String key) {
+    load();
+    final Entry entry = index.get(key);
+    return entry == null ? null : entry.value;
+  }
+
+  @NonNull @Override public synchronized Map<String, ?> getAll() {
+    load();
+    final Map<String, Object> values = new HashMap<>(index.size() * 4 / 3 + 1);
+    for (Map.Entry<String, Entry> entry : index.entrySet()) {
+      if (entry.getValue().value != null) values.put(entry.getKey(), entry.getValue().value);
+    }
+    return values;
+  }
+
+  @Override public synchronized long write(boolean clear, @NonNull Map<String, ?> values) {
+    load();
+    final SharedChanges changes = new SharedChanges();
+    if (clear) changes.clear();
+    for (Map.Entry<String, ?> entry : values.entrySet()) {
+      changes.put(entry.getKey(), entry.getValue());
+    }
+    final long next = version + 1;
+    try {
+      openOutput();
+      logBytes += writeFrame(out, next, changes);
+      out.flush();
+    } catch (IOException e) {
+      // Part of the frame may be in the file, it is cut off before the next write.
+      closeOutput();
+      throw new IllegalStateException("Couldn't write to " + file, e);
+    }
+    apply(next, changes);
+    scheduleSync();
+    if (!compacting && logBytes >= MIN_COMPACT_BYTES
+        && records - liveKeys > records * MAX_DEAD_RATIO) {
+      compacting = true;
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          compact();
+        }
+      });
+    }
+    return next;
+  }
+
+  @Override public synchronized long getVersion() {
+    load();
+    return version;
+  }
+
+  @NonNull @Override public synchronized Map<String, Long> getVersionsSince(long since) {
+    load();
+    final Map<String, Long> versions = new HashMap<>();
+    if (since >= version) return versions;
+    for (Map.Entry<String, Entry> entry : index.entrySet()) {
+      if (entry.getValue().version > since) versions.put(entry.getKey(), entry.getValue().version);
+    }
+    return versions;
+  }
+
+  /**
+   * Replays the log into the index, the first time the store is used.
+   */
+  private void load() {
+    if (loaded) return;
+    // A compaction that didn't finish, the log it was replacing is still whole.
+    //noinspection ResultOfMethodCallIgnored
+    compactFile.delete();
+    if (!file.exists()) {
+      loaded = true;
+      return;
+    }
+    try {
+      final DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        final CRC32 crc = new CRC32();
+        while (true) {
+          final int length = in.readInt();
+          if (length < 8 || length > MAX_FRAME_BYTES) break;
+          final byte[] body = new byte[length];
+          in.readFully(body);
+          crc.reset();
+          crc.update(body);
+          if (in.readInt() != (int) crc.getValue()) break;
+          final ByteBuffer buffer = ByteBuffer.wrap(body);
+          final long frameVersion = buffer.getLong();
+          final byte[] payload = new byte[buffer.remaining()];
+          buffer.get(payload);
+          apply(frameVersion, SharedChangesCodec.decode(payload));
+          logBytes += 8 + length;
+        }
+      } catch (EOFException ignored) {
+        // End of the file or a torn frame, either way we're done.
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Couldn't read " + file, e);
+    }
+    loaded = true;
+  }
+
+  /**
+   * Puts a frame's changes into the index.
+   */
+  private void apply(long frameVersion, SharedChanges changes) {
+    if (changes.isCleared()) {
+      for (Map.Entry<String, Entry> entry : index.entrySet()) {
+        if (entry.getValue().value != null) entry.setValue(new Entry(frameVersion, null));
+      }
+      liveKeys = 0;
+    }
+    for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+      final Entry previous = index.put(entry.getKey(), new Entry(frameVersion, entry.getValue()));
+      if (previous != null && previous.value != null) liveKeys--;
+      if (entry.getValue() != null) liveKeys++;
+    }
+    records += changes.size();
+    version = frameVersion;
+  }
+
+  private void openOutput() throws IOException {
+    if (out != null) return;
+    // Cut off a frame torn by a crash or a failed write, or it would hide everything after it.
+    if (file.length() > logBytes) {
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(logBytes);
+      } finally {
+        raf.close();
+      }
+    }
+    fileOut = new FileOutputStream(file, true);
+    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+  }
+
+  private void closeOutput() {
+    if (out == null) return;
+    try {
+      out.close();
+    } catch (IOException ignored) {
+    }
+    out = null;
+    fileOut = null;
+  }
+
+  /**
+   * Syncs the log to the disk in the background, once for however many writes come in before it
+   * runs.
+   */
+  private void scheduleSync() {
+    if (syncPending) return;
+    syncPending = true;
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        final FileDescriptor fd;
+        synchronized (LogSharedStore.this) {
+          syncPending = false;
+          if (fileOut == null) return;
+          try {
+            fd = fileOut.getFD();
+          } catch (IOException e) {
+            return;
+          }
+        }
+        try {
+          fd.sync();
+        } catch (IOException ignored) {
+          // Closed by a compaction, which synced what it copied.
+        }
+      }
+    });
+  }
+
+  /**
+   * Rewrites the log as the current entries, one frame per version, leaving removed keys out.
+   * Writes carry on meanwhile, the frames they append are copied across as they are before the new
+   * log takes over.
+   */
+  private void compact() {
+    final Map<String, Entry> snapshot;
+    final long snapshotVersion;
+    final long snapshotBytes;
+    final long snapshotRecords;
+    synchronized (this) {
+      snapshot = new HashMap<>(index);
+      snapshotVersion = version;
+      snapshotBytes = logBytes;
+      snapshotRecords = records;
+    }
+    try {
+      final TreeMap<Long, SharedChanges> frames = new TreeMap<>();
+      int live = 0;
+      for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+        if (entry.getValue().value == null) continue;
+        live++;
+        SharedChanges frame = frames.get(entry.getValue().version);
+        if (frame == null) {
+          frame = new SharedChanges();
+          frames.put(entry.getValue().version, frame);
+        }
+        frame.put(entry.getKey(), entry.getValue().value);
+      }
+      // Keeps the version when the last write left nothing behind, such as clearing an empty store.
+      if (!frames.containsKey(snapshotVersion)) frames.put(snapshotVersion, new SharedChanges());
+      final FileOutputStream compactOut = new FileOutputStream(compactFile);
+      long compactBytes = 0L;
+      try {
+        final DataOutputStream frameOut =
+            new DataOutputStream(new BufferedOutputStream(compactOut));
+        for (Map.Entry<Long, SharedChanges> frame : frames.entrySet()) {
+          compactBytes += writeFrame(frameOut, frame.getKey(), frame.getValue());
+        }
+        frameOut.flush();
+        synchronized (this) {
+          compactBytes += copy(snapshotBytes, logBytes, compactOut);
+          compactOut.getFD().sync();
+          closeOutput();
+          if (!compactFile.renameTo(file)) throw new IOException("Couldn't replace " + file);
+          records = live + records - snapshotRecords;
+          logBytes = compactBytes;
+          // Forget the removed keys left out, unless they've been written again since.
+          for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+            if (entry.getValue().value == null && index.get(entry.getKey()) == entry.getValue()) {
+              index.remove(entry.getKey());
+            }
+          }
+        }
+      } finally {
+        compactOut.close();
+      }
+    } catch (IOException e) {
+      Log.w("SharedProviders", "Couldn't compact " + file, e);
+      //noinspection ResultOfMethodCallIgnored
+      compactFile.delete();
+    } finally {
+      synchronized (this) {
+        compacting = false;
+      }
+    }
+  }
+
+  /**
+   * Appends the log between these offsets to the output.
+   */
+  private long copy(long from, long to, OutputStream out) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      raf.seek(from);
+      final byte[] buffer = new byte[8192];
+      long remaining = to - from;
+      while (remaining > 0) {
+        final int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) throw new EOFException("Log shorter than " + to);
+        out.write(buffer, 0, read);
+        remaining -= read;
+      }
+    } finally {
+      raf.close();
+    }
+    return to - from;
+  }
+
+  /**
+   * @return the bytes written.
+   */
+  private static int writeFrame(DataOutputStream out, long frameVersion, SharedChanges changes)
+      throws IOException {
+    final byte[] payload = SharedChangesCodec.encode(changes, true);
+    final byte[] body = ByteBuffer.allocate(8 + payload.length)
+        .putLong(frameVersion)
+        .put(payload)
+        .array();
+    final CRC32 crc = new CRC32();
+    crc.update(body);
+    out.writeInt(body.length);
+    out.write(body);
+    out.writeInt((int) crc.getValue());
+    return 8 + body.length;
+  }
+
+  private static final class Entry {
+    final long version;
+    @Nullable final Object value;
+
+    Entry(long version, @Nullable Object value) {
+      this.version = version;
+      this.value = value;
+    }
+  }
+}
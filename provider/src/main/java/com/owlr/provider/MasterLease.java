@@ -0,0 +1,64 @@
+package com.owlr.provider;
+
+import android.database.Cursor;
+
+/**
+ * What a provider tells us about its master state through {@link SharedProvider#PATH_LEASE}.
+ *
+ * The epoch goes up with every election, when two providers both think they are master the one
+ * with the higher epoch wins. A master grants a lease with every answer, until it expires clients
+ * can keep using it without asking again.
+ */
+final class MasterLease implements Types {
+
+  /**
+   * How long a master lets clients trust it for.
+   */
+  static final long LEASE_MILLIS = 30 * 1000L;
+
+  private final boolean master;
+  private final long epoch;
+  private final long expiresAt;
+
+  MasterLease(boolean master, long epoch, long expiresAt) {
+    this.master = master;
+    this.epoch = epoch;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Reads a {@link #MASTER_KEY}, {@link #EPOCH}, {@link #LEASE_EXPIRY} row. Closes the cursor.
+   *
+   * @return null if there was no answer.
+   */
+  static MasterLease from(Cursor cursor) {
+    if (cursor == null) return null;
+    try {
+      if (!cursor.moveToFirst()) return null;
+      return new MasterLease(cursor.getInt(cursor.getColumnIndexOrThrow(MASTER_KEY)) > 0,
+          cursor.getLong(cursor.getColumnIndexOrThrow(EPOCH)),
+          cursor.getLong(cursor.getColumnIndexOrThrow(LEASE_EXPIRY)));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  boolean isMaster() {
+    return master;
+  }
+
+  long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * @return wall clock time the lease runs out, 0 if there is none.
+   */
+  long getExpiresAt() {
+    return expiresAt;
+  }
+
+  @Override public String toString() {
+    return "MasterLease{master=" + master + ", epoch=" + epoch + ", expiresAt=" + expiresAt + '}';
+  }
+}
@@ -15,6 +15,10 @@ public final class MetaDataUtils {
   public static final String APP_AUTHORITY_MATCHER = "app_authority_matcher";
   public static final String APP_SHARED_PERMISSION = "app_shared_permission";
   public static final String APP_AUTHORITY = "app_authority";
+  public static final String APP_SYNC_WINDOW_MS = "app_sync_window_ms";
+  public static final String APP_SYNC_MAX_KEYS = "app_sync_max_keys";
+  public static final String APP_STORE_SHARDS = "app_store_shards";
+  public static final String APP_STORE_SHARD_SEPARATOR = "app_store_shard_separator";
 
   private MetaDataUtils() {
   }
@@ -37,6 +41,45 @@ public final class MetaDataUtils {
     return null;
   }
 
+  /**
+   * How long the master collects writes for before sending them to the slaves.
+   */
+  public static long getSyncWindowMillis(Context context) {
+    return getMetaInt(getMetaData(context), APP_SYNC_WINDOW_MS,
+        (int) SlaveSyncScheduler.DEFAULT_WINDOW_MILLIS);
+  }
+
+  /**
+   * How many changed keys the master collects before sending them without waiting for the window.
+   */
+  public static int getSyncMaxKeys(Context context) {
+    return getMetaInt(getMetaData(context), APP_SYNC_MAX_KEYS,
+        SlaveSyncScheduler.DEFAULT_MAX_KEYS);
+  }
+
+  /**
+   * How many SharedPreferences files the provider splits its store over, see
+   * {@link ShardedSharedStore}.
+   */
+  public static int getStoreShards(Context context) {
+    return Math.max(1, getMetaInt(getMetaData(context), APP_STORE_SHARDS, 1));
+  }
+
+  /**
+   * Keys are sharded by what comes before this, so each prefix lives in one shard. Null shards by
+   * the whole key.
+   */
+  @Nullable public static String getStoreShardSeparator(Context context) {
+    return getMetaValue(getMetaData(context), APP_STORE_SHARD_SEPARATOR);
+  }
+
+  protected static int getMetaInt(Bundle metaData, String key, int def) {
+    if (metaData != null) {
+      return metaData.getInt(key, def);
+    }
+    return def;
+  }
+
   @Nullable protected static String getMetaValue(Bundle metaData, String appSharedPermission) {
     if (metaData != null) {
       return metaData.getString(appSharedPermission);
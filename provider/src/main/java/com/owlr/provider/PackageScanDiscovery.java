@@ -0,0 +1,38 @@
+package com.owlr.provider;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads every installed package with its providers. This works on every version but it is one of
+ * the most expensive PackageManager calls there is, and it can fail with a
+ * {@code TransactionTooLargeException} on devices with a lot of apps. Only used before KitKat.
+ */
+public class PackageScanDiscovery implements ProviderDiscovery {
+
+  private final Context context;
+
+  public PackageScanDiscovery(Context context) {
+    this.context = context;
+  }
+
+  @NonNull @Override public List<ProviderInfo> findCandidates() {
+    final List<PackageInfo> installedPackages =
+        context.getPackageManager().getInstalledPackages(PackageManager.GET_PROVIDERS);
+    final List<ProviderInfo> providerInfoList = new ArrayList<>();
+    PackageInfo packageInfo;
+    for (int i = 0; i < installedPackages.size(); i++) {
+      packageInfo = installedPackages.get(i);
+      if (packageInfo.providers != null) {
+        Collections.addAll(providerInfoList, packageInfo.providers);
+      }
+    }
+    return providerInfoList;
+  }
+}
@@ -0,0 +1,23 @@
+package com.owlr.provider;
+
+import android.content.pm.ProviderInfo;
+import android.support.annotation.NonNull;
+import java.util.List;
+
+/**
+ * Finds the providers which could be part of our group. {@link SharedProviderFinder} still
+ * matches the results against the authority pattern and permission, so a discovery only has to
+ * narrow the list down as cheaply as it can.
+ *
+ * @see PackageScanDiscovery
+ * @see IntentDiscovery
+ */
+public interface ProviderDiscovery {
+
+  /**
+   * Called off the main thread where possible, this talks to the PackageManager.
+   *
+   * @return candidate providers, could be empty.
+   */
+  @NonNull List<ProviderInfo> findCandidates();
+}
@@ -0,0 +1,230 @@
+package com.owlr.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link SharedStore} in SQLite, one row per key, for stores too large for SharedPreferences.
+ * A write only touches the rows it changes, and with write ahead logging readers never wait for
+ * it.
+ *
+ * Each row carries the version it last changed at, removed keys are kept as rows with no value so
+ * they still show up in {@link #getVersionsSince(long)}. A value has to fit in a CursorWindow to
+ * be read back, so keep blobs under a megabyte or so.
+ */
+public final class SQLiteSharedStore implements SharedStore {
+
+  static final String DATABASE_NAME = "shared_store.db";
+  private static final int DATABASE_VERSION = 1;
+
+  private static final String TABLE = "entries";
+  private static final String COLUMN_KEY = "key";
+  private static final String COLUMN_TYPE = "type";
+  private static final String COLUMN_VALUE = "value";
+  private static final String COLUMN_VERSION = "version";
+
+  /**
+   * Row types, {@link #TYPE_REMOVED} rows only hold a version.
+   */
+  private static final int TYPE_REMOVED = 0;
+  private static final int TYPE_STRING = 1;
+  private static final int TYPE_BOOLEAN = 2;
+  private static final int TYPE_INT = 3;
+  private static final int TYPE_LONG = 4;
+  private static final int TYPE_FLOAT = 5;
+  private static final int TYPE_STRING_SET = 6;
+  private static final int TYPE_BLOB = 7;
+
+  private static final String WHERE_PRESENT = COLUMN_TYPE + " != " + TYPE_REMOVED;
+  private static final String[] COLUMNS_VALUE = { COLUMN_TYPE, COLUMN_VALUE };
+
+  private final SQLiteOpenHelper helper;
+  private volatile long version = -1L;
+
+  public SQLiteSharedStore(Context context) {
+    this(context, DATABASE_NAME);
+  }
+
+  public SQLiteSharedStore(Context context, String name) {
+    helper = new SQLiteOpenHelper(context, name, null, DATABASE_VERSION) {
+      @Override public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+      }
+
+      @Override public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+            + COLUMN_KEY + " TEXT PRIMARY KEY NOT NULL, "
+            + COLUMN_TYPE + " INTEGER NOT NULL, "
+            + COLUMN_VALUE + ", "
+            + COLUMN_VERSION + " INTEGER NOT NULL)");
+        db.execSQL(
+            "CREATE INDEX " + TABLE + "_" + COLUMN_VERSION + " ON " + TABLE + "(" + COLUMN_VERSION
+                + ")");
+      }
+
+      @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      }
+    };
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      // No onConfigure before Jelly Bean.
+      helper.getWritableDatabase().enableWriteAheadLogging();
+    }
+  }
+
+  @Override public boolean contains(@NonNull String key) {
+    return DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), TABLE,
+        COLUMN_KEY + " = ? AND " + WHERE_PRESENT, new String[] { key }) > 0;
+  }
+
+  @Nullable @Override public Object get(@NonNull String key) {
+    final Cursor cursor = helper.getReadableDatabase()
+        .query(TABLE, COLUMNS_VALUE, COLUMN_KEY + " = ? AND " + WHERE_PRESENT,
+            new String[] { key }, null, null, null);
+    try {
+      return cursor.moveToFirst() ? readValue(cursor, 0, 1) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @NonNull @Override public Map<String, ?> getAll() {
+    final Cursor cursor = helper.getReadableDatabase()
+        .query(TABLE, new String[] { COLUMN_KEY, COLUMN_TYPE, COLUMN_VALUE }, WHERE_PRESENT, null,
+            null, null, null);
+    try {
+      final Map<String, Object> values = new HashMap<>(cursor.getCount() * 4 / 3 + 1);
+      while (cursor.moveToNext()) {
+        values.put(cursor.getString(0), readValue(cursor, 1, 2));
+      }
+      return values;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Override public synchronized long write(boolean clear, @NonNull Map<String, ?> values) {
+    final SQLiteDatabase db = helper.getWritableDatabase();
+    final long next = getVersion() + 1;
+    db.beginTransaction();
+    try {
+      if (clear) {
+        // Keep the keys as removed rows, readers asking what changed need to see them go.
+        db.execSQL("UPDATE " + TABLE + " SET " + COLUMN_TYPE + " = " + TYPE_REMOVED + ", "
+            + COLUMN_VALUE + " = NULL, " + COLUMN_VERSION + " = ? WHERE " + WHERE_PRESENT,
+            new Object[] { next });
+      }
+      final SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+          + " (" + COLUMN_KEY + ", " + COLUMN_TYPE + ", " + COLUMN_VALUE + ", " + COLUMN_VERSION
+          + ") VALUES (?, ?, ?, ?)");
+      try {
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+          statement.clearBindings();
+          statement.bindString(1, entry.getKey());
+          bindValue(statement, entry.getKey(), entry.getValue());
+          statement.bindLong(4, next);
+          statement.executeInsert();
+        }
+      } finally {
+        statement.close();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    version = next;
+    return next;
+  }
+
+  @Override public long getVersion() {
+    if (version < 0) {
+      version = DatabaseUtils.longForQuery(helper.getReadableDatabase(),
+          "SELECT IFNULL(MAX(" + COLUMN_VERSION + "), 0) FROM " + TABLE, null);
+    }
+    return version;
+  }
+
+  @NonNull @Override public Map<String, Long> getVersionsSince(long since) {
+    final Cursor cursor = helper.getReadableDatabase()
+        .query(TABLE, new String[] { COLUMN_KEY, COLUMN_VERSION }, COLUMN_VERSION + " > ?",
+            new String[] { String.valueOf(since) }, null, null, null);
+    try {
+      final Map<String, Long> versions = new HashMap<>(cursor.getCount() * 4 / 3 + 1);
+      while (cursor.moveToNext()) {
+        versions.put(cursor.getString(0), cursor.getLong(1));
+      }
+      return versions;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Binds the type and value columns, 2 and 3.
+   */
+  private static void bindValue(SQLiteStatement statement, String key, Object value) {
+    if (value == null) {
+      statement.bindLong(2, TYPE_REMOVED);
+      statement.bindNull(3);
+    } else if (value instanceof String) {
+      statement.bindLong(2, TYPE_STRING);
+      statement.bindString(3, (String) value);
+    } else if (value instanceof Boolean) {
+      statement.bindLong(2, TYPE_BOOLEAN);
+      statement.bindLong(3, (Boolean) value ? 1 : 0);
+    } else if (value instanceof Integer) {
+      statement.bindLong(2, TYPE_INT);
+      statement.bindLong(3, (Integer) value);
+    } else if (value instanceof Long) {
+      statement.bindLong(2, TYPE_LONG);
+      statement.bindLong(3, (Long) value);
+    } else if (value instanceof Float) {
+      statement.bindLong(2, TYPE_FLOAT);
+      statement.bindDouble(3, (Float) value);
+    } else if (value instanceof Set) {
+      statement.bindLong(2, TYPE_STRING_SET);
+      statement.bindBlob(3, SharedChangesCodec.encodeValue(value));
+    } else if (value instanceof byte[]) {
+      statement.bindLong(2, TYPE_BLOB);
+      statement.bindBlob(3, (byte[]) value);
+    } else {
+      throw new IllegalArgumentException("Unsupported type " + value.getClass() + " for " + key);
+    }
+  }
+
+  private static Object readValue(Cursor cursor, int typeColumn, int valueColumn) {
+    final int type = cursor.getInt(typeColumn);
+    switch (type) {
+      case TYPE_STRING:
+        return cursor.getString(valueColumn);
+      case TYPE_BOOLEAN:
+        return cursor.getInt(valueColumn) != 0;
+      case TYPE_INT:
+        return cursor.getInt(valueColumn);
+      case TYPE_LONG:
+        return cursor.getLong(valueColumn);
+      case TYPE_FLOAT:
+        return cursor.getFloat(valueColumn);
+      case TYPE_STRING_SET:
+        try {
+          return SharedChangesCodec.decodeValue(cursor.getBlob(valueColumn));
+        } catch (IOException e) {
+          throw new IllegalStateException("Unreadable string set", e);
+        }
+      case TYPE_BLOB:
+        return cursor.getBlob(valueColumn);
+      default:
+        throw new IllegalStateException("Unknown type " + type);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package com.owlr.provider;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link SharedStore} split over several SharedPreferences, so a write only rewrites the shards
+ * its keys are in and writes to different shards can run side by side. Every shard is versioned
+ * by the one {@link SharedVersions}, which keeps a single version across all of them.
+ *
+ * Writes to the same shard must not overlap, {@link SharedProvider} locks the shards a write goes
+ * to, see {@link #getShard(String)}. A write spanning shards is committed one shard at a time.
+ */
+final class ShardedSharedStore implements SharedStore {
+
+  private final SharedPreferencesStore[] shards;
+  /**
+   * Shards beyond the count in use, from when there were more. Emptied into the others on create.
+   */
+  private final SharedPreferencesStore[] retired;
+  private final SharedVersions versions;
+  @Nullable private final String separator;
+
+  /**
+   * Keys in the wrong shard, after the number of shards or the separator changed, are moved.
+   *
+   * @param values one SharedPreferences per shard.
+   * @param blobs the blobs of each shard.
+   * @param separator shard keys by what comes before this, null to shard by the whole key.
+   */
+  ShardedSharedStore(SharedPreferences[] values, SharedPreferences[] blobs,
+      SharedVersions versions, @Nullable String separator) {
+    this(values, blobs, values.length, versions, separator);
+  }
+
+  /**
+   * @param values one SharedPreferences for every shard ever used, so fewer shards than before
+   * don't lose the keys in the ones left over.
+   * @param count how many of them to use, the rest are moved out of.
+   */
+  ShardedSharedStore(SharedPreferences[] values, SharedPreferences[] blobs, int count,
+      SharedVersions versions, @Nullable String separator) {
+    if (count < 1 || count > values.length || values.length != blobs.length) {
+      throw new IllegalArgumentException("Every shard needs values and blobs");
+    }
+    this.shards = new SharedPreferencesStore[count];
+    this.retired = new SharedPreferencesStore[values.length - count];
+    for (int i = 0; i < values.length; i++) {
+      final SharedPreferencesStore shard =
+          new SharedPreferencesStore(values[i], blobs[i], versions);
+      if (i < count) {
+        shards[i] = shard;
+      } else {
+        retired[i - count] = shard;
+      }
+    }
+    this.versions = versions;
+    this.separator = separator == null || separator.isEmpty() ? null : separator;
+    rebalance();
+  }
+
+  int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * @return the shard this key is stored in. With a separator keys sharing a prefix, such as
+   * "user:name" and "user:email", are stored together.
+   */
+  int getShard(String key) {
+    final int end = separator == null ? -1 : key.indexOf(separator);
+    final String shardKey = end < 0 ? key : key.substring(0, end);
+    return (shardKey.hashCode() & Integer.MAX_VALUE) % shards.length;
+  }
+
+  @Override public boolean contains(@NonNull String key) {
+    return shards[getShard(key)].contains(key);
+  }
+
+  @Nullable @Override public Object get(@NonNull String key) {
+    return shards[getShard(key)].get(key);
+  }
+
+  @NonNull @Override public Map<String, ?> getAll() {
+    final Map<String, Object> all = new HashMap<>();
+    for (SharedPreferencesStore shard : shards) {
+      all.putAll(shard.getAll());
+    }
+    return all;
+  }
+
+  /**
+   * Commits each shard the values go to, every shard for a clear, then versions all the keys
+   * together.
+   */
+  @Override public long write(boolean clear, @NonNull Map<String, ?> values) {
+    final List<Map<String, Object>> split = split(values);
+    final Set<String> keys = new LinkedHashSet<>();
+    for (int i = 0; i < shards.length; i++) {
+      final Map<String, Object> shardValues = split.get(i);
+      if (!clear && shardValues.isEmpty()) continue;
+      keys.addAll(shards[i].commit(clear, shardValues));
+    }
+    return keys.isEmpty() ? versions.getVersion() : versions.update(keys);
+  }
+
+  /**
+   * Writes without versioning, for bookkeeping the provider keeps in the store itself.
+   */
+  void commit(Map<String, ?> values) {
+    final List<Map<String, Object>> split = split(values);
+    for (int i = 0; i < shards.length; i++) {
+      if (!split.get(i).isEmpty()) shards[i].commit(false, split.get(i));
+    }
+  }
+
+  @Override public long getVersion() {
+    return versions.getVersion();
+  }
+
+  @NonNull @Override public Map<String, Long> getVersionsSince(long version) {
+    return versions.getVersionsSince(version);
+  }
+
+  private List<Map<String, Object>> split(Map<String, ?> values) {
+    final List<Map<String, Object>> split = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      split.add(shards.length == 1 ? new LinkedHashMap<String, Object>(values)
+          : new LinkedHashMap<String, Object>());
+    }
+    if (shards.length == 1) return split;
+    for (Map.Entry<String, ?> entry : values.entrySet()) {
+      split.get(getShard(entry.getKey())).put(entry.getKey(), entry.getValue());
+    }
+    return split;
+  }
+
+  /**
+   * Moves keys to the shard they belong in, without versioning them as their values don't change.
+   */
+  private void rebalance() {
+    for (int i = 0; i < shards.length; i++) {
+      final List<Map<String, Object>> moves = split(shards[i].getAll());
+      final Map<String, Object> removed = new HashMap<>();
+      for (int shard = 0; shard < shards.length; shard++) {
+        if (shard == i || moves.get(shard).isEmpty()) continue;
+        shards[shard].commit(false, moves.get(shard));
+        for (String key : moves.get(shard).keySet()) {
+          removed.put(key, null);
+        }
+      }
+      if (!removed.isEmpty()) shards[i].commit(false, removed);
+    }
+    // Only emptied once everything in them is in a shard still used.
+    for (SharedPreferencesStore shard : retired) {
+      final Map<String, ?> values = shard.getAll();
+      if (values.isEmpty()) continue;
+      commit(values);
+      shard.commit(true, Collections.<String, Object>emptyMap());
+    }
+  }
+}
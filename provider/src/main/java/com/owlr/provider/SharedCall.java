@@ -0,0 +1,123 @@
+package com.owlr.provider;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side of the {@link SharedProvider#call} protocol. Each authority is asked once whether it
+ * speaks it, providers from before it don't and we go back to cursors for those.
+ */
+final class SharedCall implements Types {
+
+  private static final Map<String, Boolean> SUPPORTED = new ConcurrentHashMap<>();
+
+  private SharedCall() {
+  }
+
+  /**
+   * @return the result, or null if the provider doesn't support calls or didn't answer. Use the
+   * cursor path if so.
+   */
+  static Bundle call(ContentResolver resolver, String authority, String method, String arg,
+      Bundle extras) {
+    if (!isSupported(resolver, authority)) return null;
+    return callProvider(resolver, authority, method, arg, extras);
+  }
+
+  static boolean isSupported(ContentResolver resolver, String authority) {
+    final Boolean supported = SUPPORTED.get(authority);
+    if (supported != null) return supported;
+    final Bundle version;
+    try {
+      version = callVersion(resolver, authority);
+    } catch (IllegalArgumentException | RemoteException e) {
+      // Not there at all or didn't answer, so we can't tell yet.
+      return false;
+    }
+    // Providers from before calls answer every method with null.
+    SUPPORTED.put(authority, version != null);
+    return version != null;
+  }
+
+  /**
+   * From Jelly Bean MR1 we ask through a client, a provider that died or didn't answer then throws
+   * instead of looking like one that doesn't know the method. Before that we can't tell them
+   * apart, and a failure is taken as the answer until {@link #reset()}.
+   */
+  private static Bundle callVersion(ContentResolver resolver, String authority)
+      throws RemoteException {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      return resolver.call(Uri.parse("content://" + authority), SharedProvider.METHOD_VERSION,
+          null, null);
+    }
+    final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(authority);
+    if (client == null) throw new IllegalArgumentException("Unknown authority " + authority);
+    try {
+      return client.call(SharedProvider.METHOD_VERSION, null, null);
+    } finally {
+      client.release();
+    }
+  }
+
+  /**
+   * Forget what we know about this authority, e.g. it has been updated.
+   */
+  static void reset(String authority) {
+    SUPPORTED.remove(authority);
+  }
+
+  /**
+   * Forget what we know about every authority, e.g. some app was installed or updated.
+   */
+  static void reset() {
+    SUPPORTED.clear();
+  }
+
+  private static Bundle callProvider(ContentResolver resolver, String authority, String method,
+      String arg, Bundle extras) {
+    try {
+      return resolver.call(Uri.parse("content://" + authority), method, arg, extras);
+    } catch (IllegalArgumentException e) {
+      Log.w("SharedProviders", "Call " + method + " to [" + authority + "] failed", e);
+      return null;
+    }
+  }
+
+  /**
+   * Same values for {@link SharedProvider#METHOD_PUT}, nulls stay nulls.
+   */
+  static Bundle toBundle(ContentValues values) {
+    final Bundle bundle = new Bundle(values.size());
+    for (Map.Entry<String, Object> entry : values.valueSet()) {
+      final String key = entry.getKey();
+      final Object value = entry.getValue();
+      if (value == null) {
+        bundle.putString(key, null);
+      } else if (value instanceof String) {
+        bundle.putString(key, (String) value);
+      } else if (value instanceof Boolean) {
+        bundle.putBoolean(key, (Boolean) value);
+      } else if (value instanceof Long) {
+        bundle.putLong(key, (Long) value);
+      } else if (value instanceof Integer) {
+        bundle.putInt(key, (Integer) value);
+      } else if (value instanceof Float) {
+        bundle.putFloat(key, (Float) value);
+      } else if (value instanceof byte[]) {
+        // A string set or blob, already encoded.
+        bundle.putByteArray(key, (byte[]) value);
+      } else {
+        throw new IllegalArgumentException("Unsupported type " + value.getClass() + " for " + key);
+      }
+    }
+    return bundle;
+  }
+}
@@ -0,0 +1,110 @@
+package com.owlr.provider;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.net.Uri;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Listeners of a {@link SharedSharedPreferences}, told about the keys the master notifies as
+ * changed.
+ *
+ * Changes are collected for {@link #COALESCE_MILLIS} and then handed out together on the handlers
+ * thread, so a burst of writes calls each listener once per key. Like the platform
+ * SharedPreferences listeners are only weakly held, keep your own reference.
+ */
+final class SharedChangeListeners {
+
+  static final long COALESCE_MILLIS = 50L;
+
+  private static final Object PRESENT = new Object();
+
+  private final SharedPreferences preferences;
+  private final Handler handler;
+  private final WeakHashMap<OnSharedPreferenceChangeListener, Object> listeners =
+      new WeakHashMap<>();
+  private final Set<String> pendingKeys = new LinkedHashSet<>();
+  /**
+   * Something changed but we don't know what.
+   */
+  private boolean pendingUnknown;
+  private boolean scheduled;
+  private final Runnable dispatchRunnable = new Runnable() {
+    @Override public void run() {
+      dispatch();
+    }
+  };
+
+  SharedChangeListeners(SharedPreferences preferences, Handler handler) {
+    this.preferences = preferences;
+    this.handler = handler;
+  }
+
+  synchronized void register(OnSharedPreferenceChangeListener listener) {
+    listeners.put(listener, PRESENT);
+  }
+
+  synchronized void unregister(OnSharedPreferenceChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  synchronized boolean isEmpty() {
+    return listeners.isEmpty();
+  }
+
+  /**
+   * @param key the changed key, null if we don't know which changed, e.g. the store was cleared.
+   */
+  void changed(@Nullable String key) {
+    synchronized (this) {
+      if (listeners.isEmpty()) return;
+      if (key == null) {
+        pendingUnknown = true;
+      } else {
+        pendingKeys.add(key);
+      }
+      if (scheduled) return;
+      scheduled = true;
+    }
+    handler.postDelayed(dispatchRunnable, COALESCE_MILLIS);
+  }
+
+  private void dispatch() {
+    final List<String> keys;
+    final List<OnSharedPreferenceChangeListener> listeners;
+    synchronized (this) {
+      scheduled = false;
+      if (pendingUnknown) {
+        // Listeners have to read everything again anyway, no point naming keys.
+        keys = new ArrayList<>(1);
+        keys.add(null);
+      } else {
+        keys = new ArrayList<>(pendingKeys);
+      }
+      pendingKeys.clear();
+      pendingUnknown = false;
+      listeners = new ArrayList<>(this.listeners.keySet());
+    }
+    for (String key : keys) {
+      for (OnSharedPreferenceChangeListener listener : listeners) {
+        listener.onSharedPreferenceChanged(preferences, key);
+      }
+    }
+  }
+
+  /**
+   * @return the key of a {@link SharedSharedPreferences#getContentUri} notification, null for any
+   * other uri, e.g. the whole store. Keys of named stores come without their namespace.
+   */
+  @Nullable static String getKey(@Nullable Uri uri) {
+    if (uri == null) return null;
+    final List<String> segments = SharedProvider.getStorePath(uri);
+    return segments.size() == 2 ? segments.get(0) : null;
+  }
+}
@@ -0,0 +1,115 @@
+package com.owlr.provider;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A set of changes made to a store: keys written, keys removed and whether the store was cleared
+ * first. This is what we ship to the slaves instead of the whole store.
+ */
+final class SharedChanges {
+
+  /**
+   * Written keys map to their value, removed keys map to null.
+   */
+  private final Map<String, Object> values = new LinkedHashMap<>();
+  private boolean cleared;
+  private long fromVersion;
+  private long toVersion;
+
+  void put(String key, Object value) {
+    values.put(key, value);
+  }
+
+  void remove(String key) {
+    values.put(key, null);
+  }
+
+  /**
+   * The store was wiped, anything put or removed before this no longer matters.
+   */
+  void clear() {
+    values.clear();
+    cleared = true;
+  }
+
+  /**
+   * @return true if the store should be cleared before {@link #getValues()} are applied.
+   */
+  boolean isCleared() {
+    return cleared;
+  }
+
+  /**
+   * @return written keys to their value, removed keys to null, in the order they changed.
+   */
+  Map<String, Object> getValues() {
+    return Collections.unmodifiableMap(values);
+  }
+
+  /**
+   * The store versions these changes take a reader from and to. A reader at any other version than
+   * {@code from} has missed something and needs a full resync.
+   */
+  void setVersions(long fromVersion, long toVersion) {
+    this.fromVersion = fromVersion;
+    this.toVersion = toVersion;
+  }
+
+  long getFromVersion() {
+    return fromVersion;
+  }
+
+  long getToVersion() {
+    return toVersion;
+  }
+
+  /**
+   * @return true if {@link #merge(SharedChanges)} can take these changes, their versions have to
+   * pick up where ours end, or end where ours start if they don't clear. Writes to different shards
+   * of a store commit in parallel and can come in out of order, a range spanning a gap would claim
+   * a version still on its way and readers would skip it.
+   */
+  boolean canMerge(SharedChanges other) {
+    return isEmpty() || other.fromVersion == toVersion
+        || (other.toVersion == fromVersion && !other.cleared);
+  }
+
+  /**
+   * Folds changes made after these into this set, later values win. The versions have to touch,
+   * see {@link #canMerge(SharedChanges)}. Ones just before ours come from another shard, so they
+   * never share a key.
+   */
+  void merge(SharedChanges later) {
+    if (!canMerge(later)) {
+      throw new IllegalArgumentException("Can't merge " + later + " into " + this);
+    }
+    if (isEmpty()) {
+      fromVersion = later.fromVersion;
+      toVersion = later.toVersion;
+    } else if (later.fromVersion == toVersion) {
+      toVersion = later.toVersion;
+    } else {
+      fromVersion = later.fromVersion;
+    }
+    if (later.cleared) clear();
+    values.putAll(later.values);
+  }
+
+  /**
+   * @return number of keys written or removed.
+   */
+  int size() {
+    return values.size();
+  }
+
+  boolean isEmpty() {
+    return !cleared && values.isEmpty();
+  }
+
+  @Override public String toString() {
+    return "SharedChanges{versions=" + fromVersion + ".." + toVersion + ", cleared=" + cleared
+        + ", values=" + values + '}';
+  }
+}
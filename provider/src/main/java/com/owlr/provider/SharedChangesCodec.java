@@ -0,0 +1,365 @@
+package com.owlr.provider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary encoding of {@link SharedChanges}, used for everything we send between
+ * providers.
+ *
+ * Layout: a format version byte, a flags byte, then one entry per key and an end tag. An entry is
+ * a type tag, the key and the value. Strings are a varint length and UTF-8 bytes, ints and longs
+ * are zig-zag varints, floats are 4 bytes and booleans live in the tag itself. String sets are a
+ * varint count then the strings, blobs a varint length then the bytes.
+ *
+ * With string dedup on every string is either written inline or as a reference back to an earlier
+ * identical one, which pays off when many keys share values. The tables are built as we go so
+ * both sides can stream, see {@link Writer} and {@link Reader}.
+ */
+final class SharedChangesCodec {
+
+  static final int FORMAT_VERSION = 1;
+
+  private static final int FLAG_CLEARED = 1;
+  private static final int FLAG_DEDUP = 1 << 1;
+
+  private static final int TAG_END = 0;
+  private static final int TAG_REMOVED = 1;
+  private static final int TAG_STRING = 2;
+  private static final int TAG_TRUE = 3;
+  private static final int TAG_FALSE = 4;
+  private static final int TAG_INT = 5;
+  private static final int TAG_LONG = 6;
+  private static final int TAG_FLOAT = 7;
+  private static final int TAG_STRING_SET = 8;
+  private static final int TAG_BLOB = 9;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private SharedChangesCodec() {
+  }
+
+  static byte[] encode(SharedChanges changes, boolean dedupStrings) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(64 + changes.size() * 16);
+    try {
+      write(changes, out, dedupStrings);
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't happen writing to memory", e);
+    }
+    return out.toByteArray();
+  }
+
+  static SharedChanges decode(byte[] data) throws IOException {
+    return read(new ByteArrayInputStream(data));
+  }
+
+  /**
+   * Encodes a single value, this is how string sets and blobs travel in ContentValues and cursors
+   * which have no type for them.
+   */
+  static byte[] encodeValue(Object value) {
+    final SharedChanges changes = new SharedChanges();
+    changes.put("", value);
+    return encode(changes, false);
+  }
+
+  /**
+   * @throws IOException if this isn't an {@link #encodeValue(Object)} payload.
+   */
+  static Object decodeValue(byte[] data) throws IOException {
+    final Reader reader = new Reader(new ByteArrayInputStream(data));
+    if (!reader.next()) throw new IOException("No value");
+    return reader.getValue();
+  }
+
+  /**
+   * Writes the changes, leaving the stream open.
+   */
+  static void write(SharedChanges changes, OutputStream out, boolean dedupStrings)
+      throws IOException {
+    final Writer writer = new Writer(out, changes.isCleared(), dedupStrings);
+    for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+      writer.write(entry.getKey(), entry.getValue());
+    }
+    writer.finish();
+  }
+
+  /**
+   * Reads a whole set of changes into memory, use a {@link Reader} for large ones.
+   */
+  static SharedChanges read(InputStream in) throws IOException {
+    final Reader reader = new Reader(in);
+    final SharedChanges changes = new SharedChanges();
+    if (reader.isCleared()) changes.clear();
+    while (reader.next()) {
+      changes.put(reader.getKey(), reader.getValue());
+    }
+    return changes;
+  }
+
+  /**
+   * Writes entries one at a time, nothing is held apart from the dedup table.
+   */
+  static final class Writer {
+
+    private final OutputStream out;
+    private final Map<String, Integer> strings;
+
+    Writer(OutputStream out, boolean cleared, boolean dedupStrings) throws IOException {
+      this.out = new BufferedOutputStream(out);
+      this.strings = dedupStrings ? new HashMap<String, Integer>() : null;
+      this.out.write(FORMAT_VERSION);
+      this.out.write((cleared ? FLAG_CLEARED : 0) | (dedupStrings ? FLAG_DEDUP : 0));
+    }
+
+    /**
+     * @param value one of the {@link Types}, or null if the key was removed.
+     */
+    void write(String key, Object value) throws IOException {
+      if (value == null) {
+        out.write(TAG_REMOVED);
+        writeString(key);
+      } else if (value instanceof String) {
+        out.write(TAG_STRING);
+        writeString(key);
+        writeString((String) value);
+      } else if (value instanceof Boolean) {
+        out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        writeString(key);
+      } else if (value instanceof Integer) {
+        out.write(TAG_INT);
+        writeString(key);
+        writeVarLong(zigZag((Integer) value));
+      } else if (value instanceof Long) {
+        out.write(TAG_LONG);
+        writeString(key);
+        writeVarLong(zigZag((Long) value));
+      } else if (value instanceof Float) {
+        out.write(TAG_FLOAT);
+        writeString(key);
+        final int bits = Float.floatToIntBits((Float) value);
+        out.write(bits >>> 24);
+        out.write(bits >>> 16);
+        out.write(bits >>> 8);
+        out.write(bits);
+      } else if (value instanceof Set) {
+        final Set<?> strings = (Set<?>) value;
+        out.write(TAG_STRING_SET);
+        writeString(key);
+        writeVarLong(strings.size());
+        for (Object string : strings) {
+          writeString((String) string);
+        }
+      } else if (value instanceof byte[]) {
+        final byte[] bytes = (byte[]) value;
+        out.write(TAG_BLOB);
+        writeString(key);
+        writeVarLong(bytes.length);
+        out.write(bytes);
+      } else {
+        throw new IllegalArgumentException("Unsupported type " + value.getClass() + " for " + key);
+      }
+    }
+
+    /**
+     * Writes the end tag and flushes, the underlying stream is left open.
+     */
+    void finish() throws IOException {
+      out.write(TAG_END);
+      out.flush();
+    }
+
+    /**
+     * Without dedup: varint length then bytes. With dedup the varint is {@code length << 1} for
+     * an inline string or {@code index << 1 | 1} for one we have already written.
+     */
+    private void writeString(String value) throws IOException {
+      if (strings != null) {
+        final Integer index = strings.get(value);
+        if (index != null) {
+          writeVarLong((long) index << 1 | 1);
+          return;
+        }
+        strings.put(value, strings.size());
+      }
+      final byte[] bytes = value.getBytes(UTF_8);
+      writeVarLong(strings != null ? (long) bytes.length << 1 : bytes.length);
+      out.write(bytes);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        out.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      out.write((int) value);
+    }
+  }
+
+  /**
+   * Pulls entries one at a time so large payloads can be applied in chunks.
+   * {@code while (reader.next()) { reader.getKey(); reader.getValue(); }}
+   */
+  static final class Reader {
+
+    private final InputStream in;
+    private final boolean cleared;
+    private final List<String> strings;
+    private String key;
+    private Object value;
+    private boolean finished;
+
+    Reader(InputStream in) throws IOException {
+      this.in = new BufferedInputStream(in);
+      final int version = readByte();
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported format version " + version);
+      }
+      final int flags = readByte();
+      this.cleared = (flags & FLAG_CLEARED) != 0;
+      this.strings = (flags & FLAG_DEDUP) != 0 ? new ArrayList<String>() : null;
+    }
+
+    boolean isCleared() {
+      return cleared;
+    }
+
+    /**
+     * Moves on to the next entry.
+     *
+     * @return false once the end tag is reached.
+     * @throws EOFException if the payload was cut short.
+     */
+    boolean next() throws IOException {
+      if (finished) return false;
+      final int tag = readByte();
+      if (tag == TAG_END) {
+        finished = true;
+        key = null;
+        value = null;
+        return false;
+      }
+      key = readString();
+      switch (tag) {
+        case TAG_REMOVED:
+          value = null;
+          break;
+        case TAG_STRING:
+          value = readString();
+          break;
+        case TAG_TRUE:
+          value = Boolean.TRUE;
+          break;
+        case TAG_FALSE:
+          value = Boolean.FALSE;
+          break;
+        case TAG_INT:
+          value = (int) unZigZag(readVarLong());
+          break;
+        case TAG_LONG:
+          value = unZigZag(readVarLong());
+          break;
+        case TAG_FLOAT:
+          value = Float.intBitsToFloat(
+              readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte());
+          break;
+        case TAG_STRING_SET:
+          final int count = readLength();
+          // Sized from what we read, not what the payload claims.
+          final Set<String> strings = new HashSet<>();
+          for (int i = 0; i < count; i++) {
+            strings.add(readString());
+          }
+          value = strings;
+          break;
+        case TAG_BLOB:
+          value = readBytes(readLength());
+          break;
+        default:
+          throw new IOException("Unknown tag " + tag);
+      }
+      return true;
+    }
+
+    String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the value for {@link #getKey()}, null if it was removed.
+     */
+    Object getValue() {
+      return value;
+    }
+
+    private String readString() throws IOException {
+      long header = readVarLong();
+      if (strings != null) {
+        if ((header & 1) == 1) {
+          final long index = header >>> 1;
+          if (index >= strings.size()) throw new IOException("Bad string reference " + index);
+          return strings.get((int) index);
+        }
+        header >>>= 1;
+      }
+      if (header > Integer.MAX_VALUE) throw new IOException("Bad string length " + header);
+      final String string = new String(readBytes((int) header), UTF_8);
+      if (strings != null) strings.add(string);
+      return string;
+    }
+
+    private int readLength() throws IOException {
+      final long length = readVarLong();
+      if (length > Integer.MAX_VALUE) throw new IOException("Bad length " + length);
+      return (int) length;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+      final byte[] bytes = new byte[length];
+      int read = 0;
+      while (read < bytes.length) {
+        final int count = in.read(bytes, read, bytes.length - read);
+        if (count < 0) throw new EOFException();
+        read += count;
+      }
+      return bytes;
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        final int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    private int readByte() throws IOException {
+      final int b = in.read();
+      if (b < 0) throw new EOFException();
+      return b;
+    }
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
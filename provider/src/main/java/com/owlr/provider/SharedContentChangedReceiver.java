@@ -5,28 +5,87 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
-import java.util.Iterator;
+import java.io.IOException;
 import java.util.Map;
-import java.util.Set;
 
 public class SharedContentChangedReceiver extends BroadcastReceiver implements Types {
 
   public static final String SENDER_AUTHORITY_KEY = "sender_authority";
+  /**
+   * The changes as a single {@link SharedChangesCodec} encoded byte array.
+   */
+  public static final String CHANGES_KEY = "changes";
+  /**
+   * The masters store version the changes start from and take slaves to.
+   */
+  public static final String FROM_VERSION_KEY = "from_version";
+  public static final String TO_VERSION_KEY = "to_version";
+  /**
+   * Election epoch of the sending master, broadcasts from an older epoch than we've seen are from
+   * a master that has since been replaced.
+   */
+  public static final String EPOCH_KEY = "epoch";
+  /**
+   * The named store the changes are for, missing for the default one. The changes and versions of
+   * a named store go under extras with {@link #NAMESPACE_EXTRA_PREFIX} in front, so receivers
+   * that don't know about namespaces find nothing to apply.
+   */
+  public static final String NAMESPACE_KEY = "namespace";
+  static final String NAMESPACE_EXTRA_PREFIX = "ns_";
+
+  /**
+   * Payloads bigger than this are left out of the broadcast, well clear of the binder buffer.
+   * Slaves notice and pull a snapshot instead.
+   */
+  static final int MAX_PAYLOAD_BYTES = 128 * 1024;
 
   /**
    * Send a broadcast with the dump of the master SharedPreference to do a dump of the masters
    * SharedPreference store to the slaves.
    */
   public static void sendBroadcast(@NonNull Context context, @NonNull Map<String, ?> data) {
+    final SharedChanges changes = new SharedChanges();
+    for (Map.Entry<String, ?> entry : data.entrySet()) {
+      changes.put(entry.getKey(), entry.getValue());
+    }
+    sendBroadcast(context, changes);
+  }
+
+  /**
+   * Send a broadcast with only the keys that changed on the master, slaves apply just these. If
+   * the changes are too large for a broadcast only their versions are sent, and slaves resync.
+   */
+  static void sendBroadcast(@NonNull Context context, @NonNull SharedChanges changes) {
+    sendBroadcast(context, changes, 0L, null);
+  }
+
+  /**
+   * @param epoch the senders election epoch, 0 if unknown.
+   * @param namespace the store the changes are from, null for the default one.
+   */
+  static void sendBroadcast(@NonNull Context context, @NonNull SharedChanges changes,
+      long epoch, @Nullable String namespace) {
     //We use the shared permission as the Action as they are both linked.
     String sharedPermission = MetaDataUtils.getSharedPermission(context);
     String senderAuthority = MetaDataUtils.getAppAuthority(context);
     Intent intent = new Intent(sharedPermission);
     intent.putExtra(SENDER_AUTHORITY_KEY, senderAuthority);
-    putDataIntoIntent(intent, data);
-    context.sendBroadcast(intent, sharedPermission);
+    if (namespace != null) intent.putExtra(NAMESPACE_KEY, namespace);
+    if (changes.getToVersion() > 0) {
+      intent.putExtra(getExtraKey(FROM_VERSION_KEY, namespace), changes.getFromVersion());
+      intent.putExtra(getExtraKey(TO_VERSION_KEY, namespace), changes.getToVersion());
+    }
+    if (epoch > 0) intent.putExtra(EPOCH_KEY, epoch);
+    SharedMetrics.beginSection(SharedMetrics.TRACE_BROADCAST);
+    try {
+      putDataIntoIntent(intent, changes, namespace);
+      context.sendBroadcast(intent, sharedPermission);
+    } finally {
+      SharedMetrics.endSection();
+    }
   }
 
   public SharedContentChangedReceiver() {
@@ -42,58 +101,88 @@ public class SharedContentChangedReceiver extends BroadcastReceiver implements T
       Log.v("SharedProvider", "Skipped DataChange, SentByAuth [" + appSender + "]");
       return;
     }
-    putIntentIntoSharedPreferences(context, intent.getExtras());
-  }
 
-  private static void putDataIntoIntent(Intent intent, Map<String, ?> data) {
-    Set<? extends Map.Entry<String, ?>> entries = data.entrySet();
-    for (Map.Entry<String, ?> entry : entries) {
-      String key = entry.getKey();
-      Object value = entry.getValue();
-      if (value instanceof String) {
-        intent.putExtra(key, (String) value);
-      } else if (value instanceof Boolean) {
-        intent.putExtra(key, (Boolean) value);
-      } else if (value instanceof Long) {
-        intent.putExtra(key, (Long) value);
-      } else if (value instanceof Integer) {
-        intent.putExtra(key, (Integer) value);
-      } else if (value instanceof Float) {
-        intent.putExtra(key, (Float) value);
+    final String namespace = intent.getStringExtra(NAMESPACE_KEY);
+    if (namespace != null && !SharedProvider.isNamespace(namespace)) {
+      Log.w("SharedProvider", "Skipped DataChange for namespace [" + namespace + "]");
+      return;
+    }
+    final long toVersion = intent.getLongExtra(getExtraKey(TO_VERSION_KEY, namespace), 0L);
+    if (toVersion <= 0) {
+      // Not versioned, e.g. a manual dump, just apply it.
+      final boolean applied =
+          putIntentIntoSharedPreferences(context, intent.getExtras(), namespace);
+      SharedMetrics.getMetrics().onBroadcastReceived(applied);
+      return;
+    }
+    final SlaveResync slaveResync = new SlaveResync(context, namespace);
+    final long epoch = intent.getLongExtra(EPOCH_KEY, 0L);
+    if (epoch > 0 && !slaveResync.acceptEpoch(epoch)) {
+      Log.d("SharedProvider", "Skipped DataChange from replaced master [" + appSender + "]");
+      return;
+    }
+    if (slaveResync.isSyncedTo(appSender, toVersion)) return;
+    final long fromVersion = intent.getLongExtra(getExtraKey(FROM_VERSION_KEY, namespace), 0L);
+    if (intent.hasExtra(getExtraKey(CHANGES_KEY, namespace))
+        && slaveResync.follows(appSender, fromVersion)) {
+      if (putIntentIntoSharedPreferences(context, intent.getExtras(), namespace)) {
+        slaveResync.setSyncedTo(appSender, toVersion);
+        SharedMetrics.getMetrics().onBroadcastReceived(true);
+        return;
+      }
+    }
+    SharedMetrics.getMetrics().onBroadcastReceived(false);
+    // We've missed something or it didn't fit in the broadcast, pull everything.
+    Log.d("SharedProvider", "Behind [" + appSender + "] version " + toVersion + ", resyncing");
+    final PendingResult result = goAsync();
+    slaveResync.resyncAsync(appSender, appAuthority, toVersion, new Runnable() {
+      @Override public void run() {
+        result.finish();
       }
+    });
+  }
+
+  private static String getExtraKey(String key, @Nullable String namespace) {
+    return namespace == null ? key : NAMESPACE_EXTRA_PREFIX + key;
+  }
+
+  private static void putDataIntoIntent(Intent intent, SharedChanges changes,
+      @Nullable String namespace) {
+    final byte[] data = SharedChangesCodec.encode(changes, true);
+    final boolean fits = data.length <= MAX_PAYLOAD_BYTES;
+    SharedMetrics.getMetrics().onBroadcastSent(data.length, changes.size(), fits);
+    if (!fits) {
+      Log.d("SharedProvider", "Changes too large to send (" + data.length + " bytes)");
+      return;
     }
+    intent.putExtra(getExtraKey(CHANGES_KEY, namespace), data);
   }
 
-  private static void putIntentIntoSharedPreferences(Context context, Bundle bundle) {
-    final Iterator<String> keysIter = bundle.keySet().iterator();
+  /**
+   * @return true if the changes were applied.
+   */
+  private static boolean putIntentIntoSharedPreferences(Context context, Bundle bundle,
+      @Nullable String namespace) {
+    final byte[] data = bundle.getByteArray(getExtraKey(CHANGES_KEY, namespace));
     final String appAuthority = MetaDataUtils.getAppAuthority(context);
-    if (TextUtils.isEmpty(appAuthority)) return;
+    if (data == null || TextUtils.isEmpty(appAuthority)) return false;
+    final SharedChanges changes;
+    try {
+      changes = SharedChangesCodec.decode(data);
+    } catch (IOException e) {
+      Log.w("SharedProvider", "Dropped unreadable changes", e);
+      return false;
+    }
     //We update OUR content provider!
     SharedSharedPreferences.SharedEditor edit =
-        new SharedSharedPreferences.SharedEditor(context, appAuthority);
+        new SharedSharedPreferences.SharedEditor(context, appAuthority, namespace);
+    // Clear goes straight to the provider, so it happens before the values below are applied.
+    if (changes.isCleared()) edit.clear();
 
-    Object value;
-    String key;
-    while (keysIter.hasNext()) {
-      key = keysIter.next();
-      switch (key) {
-        case MASTER_KEY:
-        case SENDER_AUTHORITY_KEY:
-          continue;
-      }
-      value = bundle.get(key);
-      if (value instanceof String) {
-        edit.putString(key, (String) value);
-      } else if (value instanceof Boolean) {
-        edit.putBoolean(key, (Boolean) value);
-      } else if (value instanceof Long) {
-        edit.putLong(key, (Long) value);
-      } else if (value instanceof Integer) {
-        edit.putInt(key, (Integer) value);
-      } else if (value instanceof Float) {
-        edit.putFloat(key, (Float) value);
-      }
+    for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+      if (namespace == null && MASTER_KEY.equals(entry.getKey())) continue;
+      edit.putValue(entry.getKey(), entry.getValue());
     }
-    edit.apply();
+    return edit.commit();
   }
 }
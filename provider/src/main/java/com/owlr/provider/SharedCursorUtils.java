@@ -1,6 +1,12 @@
 package com.owlr.provider;
 
 import android.database.Cursor;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by chris on 29/06/15.
@@ -59,4 +65,83 @@ public final class SharedCursorUtils {
     cursor.close();
     return value;
   }
+
+  /**
+   * Reads a string set written by {@link SharedValuesCursor}, see
+   * {@link SharedChangesCodec#encodeValue}. A key stored as another type reads as the default,
+   * like a cached read.
+   */
+  public static Set<String> getStringSetValue(Cursor cursor, Set<String> def) {
+    if (cursor == null) return def;
+    Set<String> value = def;
+    if (cursor.moveToFirst() && cursor.getType(0) == Cursor.FIELD_TYPE_BLOB) {
+      value = decodeStringSet(cursor.getBlob(0));
+    }
+    cursor.close();
+    return value;
+  }
+
+  /**
+   * Decodes a multi-row {@link Types#KEY}, {@link Types#TYPE}, {@link Types#VALUE} cursor into a
+   * key/value map, booleans come back as Booleans and removed keys as null. Closes the cursor.
+   *
+   * @return never null, empty if the cursor is null.
+   */
+  public static Map<String, Object> getValues(Cursor cursor) {
+    return getValues(cursor, null);
+  }
+
+  /**
+   * @param blobRefs collects the keys of {@link Types#BLOB_REF_TYPE} rows, blobs too large for
+   * the cursor. They are left out of the values, if null they are just dropped.
+   */
+  static Map<String, Object> getValues(Cursor cursor, @Nullable List<String> blobRefs) {
+    final Map<String, Object> values = new HashMap<>();
+    if (cursor == null) return values;
+    final int keyIndex = cursor.getColumnIndexOrThrow(Types.KEY);
+    final int typeIndex = cursor.getColumnIndexOrThrow(Types.TYPE);
+    final int valueIndex = cursor.getColumnIndexOrThrow(Types.VALUE);
+    while (cursor.moveToNext()) {
+      final String type = cursor.getString(typeIndex);
+      if (Types.BLOB_REF_TYPE.equals(type)) {
+        if (blobRefs != null) blobRefs.add(cursor.getString(keyIndex));
+        continue;
+      }
+      values.put(cursor.getString(keyIndex), getValue(cursor, valueIndex, type));
+    }
+    cursor.close();
+    return values;
+  }
+
+  static Object getValue(Cursor cursor, int column, String type) {
+    if (Types.STRING_TYPE.equals(type)) {
+      return cursor.getString(column);
+    } else if (Types.BOOLEAN_TYPE.equals(type)) {
+      return cursor.getInt(column) > 0;
+    } else if (Types.LONG_TYPE.equals(type)) {
+      return cursor.getLong(column);
+    } else if (Types.INT_TYPE.equals(type)) {
+      return cursor.getInt(column);
+    } else if (Types.FLOAT_TYPE.equals(type)) {
+      return cursor.getFloat(column);
+    } else if (Types.STRING_SET_TYPE.equals(type)) {
+      return decodeStringSet(cursor.getBlob(column));
+    } else if (Types.BLOB_TYPE.equals(type)) {
+      return cursor.getBlob(column);
+    } else if (Types.REMOVED_TYPE.equals(type)) {
+      return null;
+    }
+    throw new IllegalArgumentException("Unsupported type " + type);
+  }
+
+  @SuppressWarnings("unchecked") static Set<String> decodeStringSet(byte[] data) {
+    final Object value;
+    try {
+      value = SharedChangesCodec.decodeValue(data);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unreadable string set", e);
+    }
+    if (!(value instanceof Set)) throw new IllegalArgumentException("Not a string set " + value);
+    return (Set<String>) value;
+  }
 }
@@ -0,0 +1,125 @@
+package com.owlr.provider;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A typed handle on a key that is read over and over, e.g. a feature flag checked while binding
+ * list items. Keep it in a constant:
+ * {@code
+ * static final SharedKey<Boolean> NEW_UI = SharedKey.ofBoolean("new_ui");
+ * }
+ *
+ * Everything a read needs is built once and kept, so with the cache on (see
+ * {@link SharedSharedPreferences#setCacheEnabled(boolean)}) a read through a handle allocates
+ * nothing in the calling process. A read the cache can't answer still goes to the provider, where
+ * {@link SharedStore#get(String)} boxes the value. Handles are interned, there is only ever one per
+ * name and type.
+ */
+public final class SharedKey<T> implements Types {
+
+  private static final ConcurrentHashMap<String, SharedKey<?>> KEYS = new ConcurrentHashMap<>();
+
+  public static SharedKey<Boolean> ofBoolean(@NonNull String name) {
+    return intern(name, BOOLEAN_TYPE);
+  }
+
+  public static SharedKey<Integer> ofInt(@NonNull String name) {
+    return intern(name, INT_TYPE);
+  }
+
+  public static SharedKey<Long> ofLong(@NonNull String name) {
+    return intern(name, LONG_TYPE);
+  }
+
+  public static SharedKey<Float> ofFloat(@NonNull String name) {
+    return intern(name, FLOAT_TYPE);
+  }
+
+  public static SharedKey<String> ofString(@NonNull String name) {
+    return intern(name, STRING_TYPE);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> SharedKey<T> intern(String name, String type) {
+    final String id = type + '/' + name;
+    SharedKey<?> key = KEYS.get(id);
+    if (key == null) {
+      final SharedKey<?> created = new SharedKey<>(name, type);
+      key = KEYS.putIfAbsent(id, created);
+      if (key == null) key = created;
+    }
+    return (SharedKey<T>) key;
+  }
+
+  private final String name;
+  private final String type;
+  /**
+   * Extras for {@link SharedProvider#METHOD_GET}, never changed once built.
+   */
+  private volatile Bundle extras;
+  /**
+   * The data Uri for the last provider and namespace we were read from.
+   */
+  private volatile Target target;
+
+  private SharedKey(String name, String type) {
+    this.name = name;
+    this.type = type;
+  }
+
+  @NonNull public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the {@link Types} name of the value, e.g. {@link #BOOLEAN_TYPE}.
+   */
+  @NonNull public String getType() {
+    return type;
+  }
+
+  Bundle getExtras() {
+    Bundle extras = this.extras;
+    if (extras == null) {
+      extras = new Bundle(1);
+      extras.putString(TYPE, type);
+      this.extras = extras;
+    }
+    return extras;
+  }
+
+  Uri getUri(String authority, @Nullable String namespace) {
+    Target target = this.target;
+    if (target == null || !target.isFor(authority, namespace)) {
+      target = new Target(authority, namespace,
+          SharedSharedPreferences.getContentUri(authority, namespace, name, type));
+      this.target = target;
+    }
+    return target.uri;
+  }
+
+  @Override public String toString() {
+    return name + " (" + type + ")";
+  }
+
+  private static final class Target {
+    final String authority;
+    @Nullable final String namespace;
+    final Uri uri;
+
+    Target(String authority, @Nullable String namespace, Uri uri) {
+      this.authority = authority;
+      this.namespace = namespace;
+      this.uri = uri;
+    }
+
+    boolean isFor(String authority, @Nullable String namespace) {
+      return this.authority.equals(authority)
+          && (this.namespace == null ? namespace == null : this.namespace.equals(namespace));
+    }
+  }
+}
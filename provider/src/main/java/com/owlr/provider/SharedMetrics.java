@@ -0,0 +1,133 @@
+package com.owlr.provider;
+
+import android.os.Build;
+import android.os.Trace;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Hooks into the hot paths of the library, to feed your own telemetry. Override the callbacks you
+ * want and install it once, before the first read, e.g. in Application#onCreate:
+ * {@code
+ * SharedMetrics.setMetrics(new SharedMetricsRecorder());
+ * }
+ *
+ * Callbacks come on whichever thread did the work, often the main thread or a binder thread, so
+ * keep them quick and don't block. Times are in nanoseconds. Nothing is installed by default and
+ * every callback is then an empty call, nothing is timed or allocated.
+ *
+ * From Jelly Bean MR2 each path is also an {@link Trace} section named {@code SharedProviders:*},
+ * so it shows up in systrace whether or not metrics are installed.
+ *
+ * @see SharedMetricsRecorder
+ */
+public abstract class SharedMetrics {
+
+  /**
+   * Installed until {@link #setMetrics(SharedMetrics)} is called, does nothing.
+   */
+  public static final SharedMetrics NONE = new SharedMetrics() {
+  };
+
+  static final String TRACE_READ = "SharedProviders:read";
+  static final String TRACE_WRITE = "SharedProviders:write";
+  static final String TRACE_ELECTION = "SharedProviders:election";
+  static final String TRACE_DISCOVERY = "SharedProviders:discovery";
+  static final String TRACE_BROADCAST = "SharedProviders:broadcast";
+
+  private static volatile SharedMetrics metrics = NONE;
+
+  /**
+   * @param metrics the metrics to report to, null for {@link #NONE}.
+   */
+  public static void setMetrics(@Nullable SharedMetrics metrics) {
+    SharedMetrics.metrics = metrics == null ? NONE : metrics;
+  }
+
+  @NonNull public static SharedMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Start of a timed section, pass it to {@link #since(long)} at the end.
+   */
+  static long start() {
+    return metrics == NONE ? 0L : System.nanoTime();
+  }
+
+  static long since(long start) {
+    return start == 0L ? 0L : System.nanoTime() - start;
+  }
+
+  static void beginSection(String name) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.beginSection(name);
+  }
+
+  static void endSection() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.endSection();
+  }
+
+  /**
+   * A read answered by the master, one round trip through a call or a query. A query is timed
+   * until the cursor is back, the rows may still be paged over afterwards.
+   *
+   * @param answered false if the master didn't answer.
+   */
+  public void onRead(long nanos, boolean answered) {
+  }
+
+  /**
+   * A read with the cache turned on, see {@link SharedSharedPreferences#setCacheEnabled(boolean)}.
+   * A miss loads the whole store, which is reported by {@link #onRead(long, boolean)} as well.
+   */
+  public void onCacheRead(boolean hit) {
+  }
+
+  /**
+   * A write sent to the master, off the calling thread. Several edits merged into one write are
+   * reported once.
+   *
+   * @param rows the number of editor commits in the write, 0 for a clear on its own.
+   * @param taken false if the master didn't take it, it is retried or logged.
+   */
+  public void onWrite(int rows, long nanos, boolean taken) {
+  }
+
+  /**
+   * A master election over the providers found, probes and any delegation included. Elections
+   * that fail with an exception aren't reported.
+   *
+   * @param candidates the number of providers asked.
+   */
+  public void onElection(int candidates, long nanos) {
+  }
+
+  /**
+   * A look for the providers of our group, see {@link ProviderDiscovery}.
+   *
+   * @param candidates the number of providers the discovery returned.
+   * @param matched how many of those are in our group.
+   */
+  public void onDiscoveryScan(int candidates, int matched, long nanos) {
+  }
+
+  /**
+   * A master sent changes to the slaves. Android doesn't say how many apps a broadcast reaches,
+   * each slave reports its copy with {@link #onBroadcastReceived(boolean)}.
+   *
+   * @param bytes the size of the encoded changes.
+   * @param keys the number of keys changed.
+   * @param sent false if they were too large and only the versions went out.
+   */
+  public void onBroadcastSent(int bytes, int keys, boolean sent) {
+  }
+
+  /**
+   * A slave got changes from the master, the fan-out of a broadcast is the count of these across
+   * your apps. Broadcasts a slave ignores, e.g. its own or those it already has, aren't reported.
+   *
+   * @param applied false if the slave had to resync from the master instead.
+   */
+  public void onBroadcastReceived(boolean applied) {
+  }
+}
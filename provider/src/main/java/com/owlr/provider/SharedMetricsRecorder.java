@@ -0,0 +1,236 @@
+package com.owlr.provider;
+
+import android.support.annotation.NonNull;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link SharedMetrics} that keeps counts and latency histograms in memory, read them whenever you
+ * export, e.g. once a day. Recording is lock free and allocates nothing.
+ */
+public class SharedMetricsRecorder extends SharedMetrics {
+
+  private final Histogram reads = new Histogram();
+  private final AtomicLong readsUnanswered = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong cacheMisses = new AtomicLong();
+  private final Histogram writes = new Histogram();
+  private final AtomicLong writesFailed = new AtomicLong();
+  private final Histogram elections = new Histogram();
+  private final Histogram discoveryScans = new Histogram();
+  private final Histogram broadcastBytes = new Histogram();
+  private final AtomicLong broadcastsTooLarge = new AtomicLong();
+  private final AtomicLong broadcastsApplied = new AtomicLong();
+  private final AtomicLong broadcastsResynced = new AtomicLong();
+
+  @Override public void onRead(long nanos, boolean answered) {
+    reads.record(nanos);
+    if (!answered) readsUnanswered.incrementAndGet();
+  }
+
+  @Override public void onCacheRead(boolean hit) {
+    (hit ? cacheHits : cacheMisses).incrementAndGet();
+  }
+
+  @Override public void onWrite(int rows, long nanos, boolean taken) {
+    writes.record(nanos);
+    if (!taken) writesFailed.incrementAndGet();
+  }
+
+  @Override public void onElection(int candidates, long nanos) {
+    elections.record(nanos);
+  }
+
+  @Override public void onDiscoveryScan(int candidates, int matched, long nanos) {
+    discoveryScans.record(nanos);
+  }
+
+  @Override public void onBroadcastSent(int bytes, int keys, boolean sent) {
+    broadcastBytes.record(bytes);
+    if (!sent) broadcastsTooLarge.incrementAndGet();
+  }
+
+  @Override public void onBroadcastReceived(boolean applied) {
+    (applied ? broadcastsApplied : broadcastsResynced).incrementAndGet();
+  }
+
+  /**
+   * Round trips to the master for reads, in nanoseconds.
+   */
+  @NonNull public Histogram getReads() {
+    return reads;
+  }
+
+  public long getReadsUnanswered() {
+    return readsUnanswered.get();
+  }
+
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  public long getCacheMisses() {
+    return cacheMisses.get();
+  }
+
+  /**
+   * Writes sent to the master, in nanoseconds.
+   */
+  @NonNull public Histogram getWrites() {
+    return writes;
+  }
+
+  public long getWritesFailed() {
+    return writesFailed.get();
+  }
+
+  /**
+   * Master elections, in nanoseconds.
+   */
+  @NonNull public Histogram getElections() {
+    return elections;
+  }
+
+  /**
+   * Provider discovery scans, in nanoseconds.
+   */
+  @NonNull public Histogram getDiscoveryScans() {
+    return discoveryScans;
+  }
+
+  /**
+   * Sizes of the changes this app sent as master, in bytes.
+   */
+  @NonNull public Histogram getBroadcastBytes() {
+    return broadcastBytes;
+  }
+
+  public long getBroadcastsTooLarge() {
+    return broadcastsTooLarge.get();
+  }
+
+  /**
+   * Broadcasts this app applied as a slave.
+   */
+  public long getBroadcastsApplied() {
+    return broadcastsApplied.get();
+  }
+
+  /**
+   * Broadcasts after which this app had to resync from the master.
+   */
+  public long getBroadcastsResynced() {
+    return broadcastsResynced.get();
+  }
+
+  /**
+   * Clears everything, e.g. after each export.
+   */
+  public void reset() {
+    reads.reset();
+    readsUnanswered.set(0L);
+    cacheHits.set(0L);
+    cacheMisses.set(0L);
+    writes.reset();
+    writesFailed.set(0L);
+    elections.reset();
+    discoveryScans.reset();
+    broadcastBytes.reset();
+    broadcastsTooLarge.set(0L);
+    broadcastsApplied.set(0L);
+    broadcastsResynced.set(0L);
+  }
+
+  /**
+   * Counts values into power of two buckets, bucket i holds values from 2^(i-1) up to 2^i - 1 and
+   * bucket 0 holds 0. Good to within a factor of two, which is plenty for telling a 50us read from
+   * a 5ms one.
+   */
+  public static final class Histogram {
+
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {
+    }
+
+    void record(long value) {
+      if (value < 0L) value = 0L;
+      buckets.incrementAndGet(getBucket(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current;
+      while (value > (current = max.get())) {
+        if (max.compareAndSet(current, value)) break;
+      }
+    }
+
+    static int getBucket(long value) {
+      return BUCKETS - Long.numberOfLeadingZeros(value);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getSum() {
+      return sum.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public long getMean() {
+      final long count = getCount();
+      return count == 0L ? 0L : getSum() / count;
+    }
+
+    /**
+     * @return how many values fell into this bucket, see {@link #getUpperBound(int)}.
+     */
+    public long getBucketCount(int bucket) {
+      return buckets.get(bucket);
+    }
+
+    /**
+     * @return the largest value counted in this bucket.
+     */
+    public static long getUpperBound(int bucket) {
+      return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1L;
+    }
+
+    /**
+     * @param percentile e.g. 0.99 for the 99th.
+     * @return the upper bound of the bucket holding the percentile, never above {@link #getMax()},
+     * 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+      final long count = getCount();
+      if (count == 0L) return 0L;
+      final long rank = Math.max(1L, (long) Math.ceil(percentile * count));
+      long seen = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) return Math.min(getUpperBound(i), getMax());
+      }
+      return getMax();
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0L);
+      count.set(0L);
+      sum.set(0L);
+      max.set(0L);
+    }
+
+    @Override public String toString() {
+      return "count=" + getCount() + " mean=" + getMean() + " p50=" + getPercentile(0.5d)
+          + " p99=" + getPercentile(0.99d) + " max=" + getMax();
+    }
+  }
+}
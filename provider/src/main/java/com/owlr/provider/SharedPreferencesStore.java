@@ -0,0 +1,186 @@
+package com.owlr.provider;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link SharedStore} over a SharedPreferences, the default, and what a
+ * {@link SharedPreferencesProducer} plugs into.
+ *
+ * SharedPreferences has no type for blobs, they are kept as Base64 in a second one and a key is
+ * in one or the other. Versions live in a third, see {@link SharedVersions}. Every write rewrites
+ * the whole file, fine for small stores, use a {@link SQLiteSharedStore} for large ones.
+ */
+class SharedPreferencesStore implements SharedStore, Types {
+
+  private final SharedPreferences values;
+  private final SharedPreferences blobs;
+  private final SharedVersions versions;
+  /**
+   * The {@link Types} name of each value, so a read goes straight to the right getter.
+   * SharedPreferences has no untyped get, and getAll() copies every value.
+   */
+  private final ConcurrentHashMap<String, String> types = new ConcurrentHashMap<>();
+  private volatile boolean typesLoaded;
+
+  SharedPreferencesStore(SharedPreferences values, SharedPreferences blobs,
+      SharedVersions versions) {
+    this.values = values;
+    this.blobs = blobs;
+    this.versions = versions;
+  }
+
+  @Override public boolean contains(@NonNull String key) {
+    return values.contains(key) || blobs.contains(key);
+  }
+
+  @Nullable @Override public Object get(@NonNull String key) {
+    final String blob = blobs.getString(key, null);
+    if (blob != null) return Base64.decode(blob, Base64.NO_WRAP);
+    if (!values.contains(key)) return null;
+    if (!typesLoaded) loadTypes();
+    final String type = types.get(key);
+    if (type != null) {
+      try {
+        return get(key, type);
+      } catch (ClassCastException ignored) {
+        // Written around us, see below.
+      }
+    }
+    // Someone else writes these SharedPreferences too, e.g. the app a producer got them from.
+    final Object value = values.getAll().get(key);
+    if (value != null) types.put(key, SharedValuesCursor.getValueType(value));
+    return value;
+  }
+
+  @Nullable private Object get(String key, String type) {
+    switch (type) {
+      case STRING_TYPE:
+        return values.getString(key, null);
+      case BOOLEAN_TYPE:
+        return values.getBoolean(key, false);
+      case LONG_TYPE:
+        return values.getLong(key, 0L);
+      case INT_TYPE:
+        return values.getInt(key, 0);
+      case FLOAT_TYPE:
+        return values.getFloat(key, 0f);
+      default:
+        return values.getStringSet(key, null);
+    }
+  }
+
+  /**
+   * One copy of every value to learn their types, our writes keep them up to date from then on.
+   */
+  private synchronized void loadTypes() {
+    if (typesLoaded) return;
+    for (Map.Entry<String, ?> entry : values.getAll().entrySet()) {
+      if (entry.getValue() == null) continue;
+      types.put(entry.getKey(), SharedValuesCursor.getValueType(entry.getValue()));
+    }
+    typesLoaded = true;
+  }
+
+  @NonNull @Override public Map<String, ?> getAll() {
+    final Map<String, Object> all = new HashMap<>(values.getAll());
+    for (Map.Entry<String, ?> entry : blobs.getAll().entrySet()) {
+      all.put(entry.getKey(), Base64.decode((String) entry.getValue(), Base64.NO_WRAP));
+    }
+    return all;
+  }
+
+  @Override public synchronized long write(boolean clear, @NonNull Map<String, ?> changes) {
+    final Set<String> keys = commit(clear, changes);
+    return keys.isEmpty() ? versions.getVersion() : versions.update(keys);
+  }
+
+  /**
+   * Writes without versioning, see {@link ShardedSharedStore}.
+   *
+   * @return every key written, removed or cleared.
+   */
+  synchronized Set<String> commit(boolean clear, Map<String, ?> changes) {
+    final SharedPreferences.Editor editor = values.edit();
+    final SharedPreferences.Editor blobEditor = blobs.edit();
+    boolean blobsChanged = false;
+    final Set<String> keys = new LinkedHashSet<>(changes.keySet());
+    if (clear) {
+      keys.addAll(values.getAll().keySet());
+      keys.addAll(blobs.getAll().keySet());
+      editor.clear();
+      blobEditor.clear();
+      blobsChanged = true;
+      types.clear();
+    }
+    for (Map.Entry<String, ?> entry : changes.entrySet()) {
+      final Object value = entry.getValue();
+      final String key = entry.getKey();
+      if (value instanceof byte[]) {
+        editor.remove(key);
+        blobEditor.putString(key, Base64.encodeToString((byte[]) value, Base64.NO_WRAP));
+        blobsChanged = true;
+        types.remove(key);
+        continue;
+      }
+      if (blobs.contains(key)) {
+        blobEditor.remove(key);
+        blobsChanged = true;
+      }
+      if (value == null) {
+        editor.remove(key);
+        types.remove(key);
+        continue;
+      }
+      if (value instanceof String) {
+        editor.putString(key, (String) value);
+      } else if (value instanceof Boolean) {
+        editor.putBoolean(key, (Boolean) value);
+      } else if (value instanceof Long) {
+        editor.putLong(key, (Long) value);
+      } else if (value instanceof Integer) {
+        editor.putInt(key, (Integer) value);
+      } else if (value instanceof Float) {
+        editor.putFloat(key, (Float) value);
+      } else if (value instanceof Set) {
+        editor.putStringSet(key, toStringSet((Set<?>) value));
+      } else {
+        throw new IllegalArgumentException("Unsupported type " + value.getClass() + " for " + key);
+      }
+      types.put(key, SharedValuesCursor.getValueType(value));
+    }
+    // Blobs first, a reader finding the key in neither would think it was removed.
+    if (blobsChanged) blobEditor.commit();
+    if (clear || Build.VERSION.SDK_INT <= Build.VERSION_CODES.FROYO) {
+      editor.commit();
+    } else {
+      editor.apply();
+    }
+    return keys;
+  }
+
+  @Override public long getVersion() {
+    return versions.getVersion();
+  }
+
+  @NonNull @Override public Map<String, Long> getVersionsSince(long version) {
+    return versions.getVersionsSince(version);
+  }
+
+  private static Set<String> toStringSet(Set<?> values) {
+    final Set<String> strings = new HashSet<>(values.size() * 4 / 3 + 1);
+    for (Object value : values) {
+      strings.add((String) value);
+    }
+    return strings;
+  }
+}
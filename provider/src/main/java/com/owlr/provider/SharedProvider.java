@@ -1,17 +1,35 @@
 package com.owlr.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
-import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 /**
  * Created by chris on 11/06/15.
@@ -22,7 +40,67 @@ public class SharedProvider extends ContentProvider implements Types {
   public static Uri BASE_URI;
   private static UriMatcher sUriMatcher = null;
 
+  static final String PATH_BATCH = "batch";
+  static final String PATH_ALL = "all";
+  static final String PATH_CONTAINS = "contains";
+  static final String PATH_VERSION = "version";
+  static final String PATH_CHANGES = "changes";
+  static final String PATH_SNAPSHOT = "snapshot";
+  static final String PATH_LEASE = "lease";
+  /**
+   * Named stores live under {@code ns/<name>/}, each with the same paths as the default store
+   * except {@link #PATH_LEASE}, which is per provider.
+   */
+  static final String PATH_NAMESPACE = "ns";
+  private static final Pattern NAMESPACE_NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+  /**
+   * {@link #call} methods, a single Bundle each way instead of a cursor. {@link #METHOD_GET} takes
+   * the key as arg and the {@link #TYPE} in extras, the value comes back under {@link #VALUE}.
+   */
+  static final String METHOD_GET = "get";
+  /**
+   * {@link #KEY} and {@link #TYPE} string arrays in extras, comes back as key to value.
+   */
+  static final String METHOD_GET_MANY = "get_many";
+  /**
+   * Extras are key to value, a null value removes the key.
+   */
+  static final String METHOD_PUT = "put";
+  static final String METHOD_VERSION = "version";
+  /**
+   * Goes between a method and the namespace it is for, see {@link #getMethod(String, String)}.
+   */
+  static final char METHOD_NAMESPACE_SEPARATOR = '/';
+
+  /**
+   * Type of the {@link #PATH_SNAPSHOT} stream, a {@link SharedChangesCodec} payload.
+   */
+  static final String SNAPSHOT_TYPE = "application/vnd." + BuildConfig.APPLICATION_ID + ".changes";
+
+  /**
+   * Writes changing more keys than this notify the whole store instead, each notification is a
+   * call to the system.
+   */
+  static final int MAX_KEY_NOTIFICATIONS = 32;
+
+  /**
+   * When the default store was made, kept in the store itself.
+   */
+  private static final String CREATED_KEY = "created";
+  /**
+   * How many shards the default store was last split over, see {@link ShardedSharedStore}.
+   */
+  private static final String SHARD_COUNT_KEY = "shards";
+
   private static final int MATCH_DATA = UriMatcher.NO_MATCH + 1;
+  private static final int MATCH_BATCH = MATCH_DATA + 1;
+  private static final int MATCH_ALL = MATCH_BATCH + 1;
+  private static final int MATCH_CONTAINS = MATCH_ALL + 1;
+  private static final int MATCH_VERSION = MATCH_CONTAINS + 1;
+  private static final int MATCH_CHANGES = MATCH_VERSION + 1;
+  private static final int MATCH_SNAPSHOT = MATCH_CHANGES + 1;
+  private static final int MATCH_LEASE = MATCH_SNAPSHOT + 1;
 
   /**
    * Sets up this content provider with this this apps AUTHORITY pulled from the meta tag.
@@ -33,49 +111,197 @@ public class SharedProvider extends ContentProvider implements Types {
     if (BASE_URI != null) return;
     AUTHORITY = MetaDataUtils.getAppAuthority(context);
     sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    // The matcher takes the first pattern that fits, our fixed paths have to go before the
+    // wildcard key/type pattern. Named stores go first, the default store can't have a key/type
+    // three segments long.
+    final String namespace = PATH_NAMESPACE + "/*/";
+    addPath(namespace, PATH_BATCH, MATCH_BATCH);
+    addPath(namespace, PATH_ALL, MATCH_ALL);
+    addPath(namespace, PATH_CONTAINS, MATCH_CONTAINS);
+    addPath(namespace, PATH_VERSION, MATCH_VERSION);
+    addPath(namespace, PATH_CHANGES + "/#", MATCH_CHANGES);
+    addPath(namespace, PATH_SNAPSHOT, MATCH_SNAPSHOT);
+    sUriMatcher.addURI(AUTHORITY, namespace + "*/*", MATCH_DATA);
+    addPath("", PATH_BATCH, MATCH_BATCH);
+    addPath("", PATH_ALL, MATCH_ALL);
+    addPath("", PATH_CONTAINS, MATCH_CONTAINS);
+    addPath("", PATH_VERSION, MATCH_VERSION);
+    addPath("", PATH_CHANGES + "/#", MATCH_CHANGES);
+    addPath("", PATH_SNAPSHOT, MATCH_SNAPSHOT);
+    addPath("", PATH_LEASE, MATCH_LEASE);
+    // A default store key named like the namespace path.
+    sUriMatcher.addURI(AUTHORITY, PATH_NAMESPACE + "/*", MATCH_DATA);
     sUriMatcher.addURI(AUTHORITY, "*/*", MATCH_DATA);
     BASE_URI = Uri.parse("content://" + AUTHORITY);
   }
 
+  private static void addPath(String prefix, String path, int match) {
+    sUriMatcher.addURI(AUTHORITY, prefix + path, match);
+    // A key can have the same name as one of our paths, it still needs to reach the data match.
+    final int end = path.indexOf('/');
+    sUriMatcher.addURI(AUTHORITY, prefix + (end < 0 ? path : path.substring(0, end)) + "/*",
+        MATCH_DATA);
+  }
+
+  /**
+   * @return the namespace this Uri is for, null for the default store.
+   */
+  @Nullable static String getNamespace(Uri uri) {
+    final List<String> segments = uri.getPathSegments();
+    return segments.size() > 2 && PATH_NAMESPACE.equals(segments.get(0)) ? segments.get(1) : null;
+  }
+
+  /**
+   * @return true if this can be used as a namespace name.
+   */
+  static boolean isNamespace(String name) {
+    return NAMESPACE_NAME.matcher(name).matches();
+  }
+
+  /**
+   * @return the path segments after the namespace, all of them for the default store.
+   */
+  static List<String> getStorePath(Uri uri) {
+    final List<String> segments = uri.getPathSegments();
+    return getNamespace(uri) == null ? segments : segments.subList(2, segments.size());
+  }
+
+  /**
+   * @return the {@link #call} method for this namespace, older providers don't know it and return
+   * null as for any other method they don't support.
+   */
+  static String getMethod(String method, @Nullable String namespace) {
+    return namespace == null ? method : method + METHOD_NAMESPACE_SEPARATOR + namespace;
+  }
+
+  /**
+   * A store with its write locks and its own versions and slave sync. There is the default one,
+   * see {@link SharedStoreProducer}, and any number of named ones under {@link #PATH_NAMESPACE}.
+   */
+  private final class Namespace {
+    @Nullable final String name;
+    final SharedStore store;
+    /**
+     * One lock per store shard, a single one unless the store is a {@link ShardedSharedStore}.
+     */
+    final ReentrantLock[] writeLocks;
+    final SlaveSyncScheduler syncScheduler;
+
+    Namespace(final Context context, @Nullable final String name, SharedStore store) {
+      this.name = name;
+      this.store = store;
+      writeLocks = new ReentrantLock[
+          store instanceof ShardedSharedStore ? ((ShardedSharedStore) store).getShardCount() : 1];
+      for (int i = 0; i < writeLocks.length; i++) {
+        writeLocks[i] = new ReentrantLock();
+      }
+      syncScheduler = new SlaveSyncScheduler(new SlaveSyncScheduler.Sender() {
+        @Override public void send(SharedChanges changes) {
+          Log.d("SharedProviders", "UpdateSlaves Called from [" + AUTHORITY + "] " + name);
+          SharedContentChangedReceiver.sendBroadcast(context, changes, getEpoch(), name);
+        }
+      }, MetaDataUtils.getSyncWindowMillis(context), MetaDataUtils.getSyncMaxKeys(context));
+    }
+  }
+
+  private Namespace mDefault;
+  /**
+   * Named stores, opened the first time they are used.
+   */
+  private final Map<String, Namespace> mNamespaces = new ConcurrentHashMap<>();
+  /**
+   * Our election epoch and whether we are master, kept out of the data store so they are never
+   * synced, versioned or cleared.
+   */
+  private SharedPreferences mLease;
+  private final Object mLeaseLock = new Object();
   /**
-   * This is a normal shared prefs actually related locally to the app. We use this as our
-   * DataStorage.
-   * //TODO allow overriding with BackedSharedPrefs.
+   * Writes staged by the {@link #applyBatch} running on this thread, if any, per namespace.
    */
-  private SharedPreferences mSharedPrefs;
+  private final ThreadLocal<Map<Namespace, SharedChanges>> mBatch = new ThreadLocal<>();
 
   @Override public boolean onCreate() {
-    init(getContext());
-    mSharedPrefs = getSharedPreferences(getContext());
+    final Context context = getContext();
+    init(context);
+    mDefault = new Namespace(context, null, getSharedStore(context));
+    mLease = context.getSharedPreferences("local_shared_prefs_lease", Context.MODE_PRIVATE);
+    migrateMaster();
     return true;
   }
 
+  /**
+   * We may be killed soon after this, get any pending changes out to the slaves.
+   */
+  @Override public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    flushSlaves();
+  }
+
+  @Override public void onLowMemory() {
+    super.onLowMemory();
+    flushSlaves();
+  }
+
+  @Override public void shutdown() {
+    flushSlaves();
+    super.shutdown();
+  }
+
+  private void flushSlaves() {
+    mDefault.syncScheduler.flush();
+    for (Namespace namespace : mNamespaces.values()) {
+      namespace.syncScheduler.flush();
+    }
+  }
+
+  private Namespace getNamespace(@Nullable String name) {
+    if (name == null) return mDefault;
+    Namespace namespace = mNamespaces.get(name);
+    if (namespace != null) return namespace;
+    if (!isNamespace(name)) {
+      throw new IllegalArgumentException("Bad namespace " + name);
+    }
+    synchronized (mNamespaces) {
+      namespace = mNamespaces.get(name);
+      if (namespace == null) {
+        namespace = new Namespace(getContext(), name, getNamespaceStore(getContext(), name));
+        mNamespaces.put(name, namespace);
+      }
+    }
+    return namespace;
+  }
+
   @Override
   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
       String sortOrder) {
-    MatrixCursor cursor;
-    switch (sUriMatcher.match(uri)) {
+    final Cursor cursor;
+    final int match = sUriMatcher.match(uri);
+    final Namespace ns = match == MATCH_LEASE ? mDefault : getNamespace(getNamespace(uri));
+    switch (match) {
       case MATCH_DATA:
-        final String key = uri.getPathSegments().get(0);
-        final String type = uri.getPathSegments().get(1);
-        cursor = new MatrixCursor(new String[] { key });
-        if (!mSharedPrefs.contains(key)) return cursor;
-        MatrixCursor.RowBuilder rowBuilder = cursor.newRow();
-        Object object;
-        if (STRING_TYPE.equals(type)) {
-          object = mSharedPrefs.getString(key, null);
-        } else if (BOOLEAN_TYPE.equals(type)) {
-          object = mSharedPrefs.getBoolean(key, false) ? 1 : 0;
-        } else if (LONG_TYPE.equals(type)) {
-          object = mSharedPrefs.getLong(key, 0l);
-        } else if (INT_TYPE.equals(type)) {
-          object = mSharedPrefs.getInt(key, 0);
-        } else if (FLOAT_TYPE.equals(type)) {
-          object = mSharedPrefs.getFloat(key, 0f);
-        } else {
-          throw new IllegalArgumentException("Unsupported type " + uri);
-        }
-        rowBuilder.add(object);
+        final String key = getStorePath(uri).get(0);
+        // Stores never hold nulls, a key they don't have reads as null.
+        cursor = new SharedValueCursor(key, getValue(ns, key));
+        break;
+      case MATCH_BATCH:
+        cursor = queryBatch(ns, uri, projection, selectionArgs);
+        break;
+      case MATCH_ALL:
+        cursor = SharedValuesCursor.from(ns.store.getAll());
+        break;
+      case MATCH_CONTAINS:
+        cursor = queryContains(ns, uri, projection);
+        break;
+      case MATCH_VERSION:
+        final MatrixCursor versionCursor = new MatrixCursor(new String[] { VERSION }, 1);
+        versionCursor.newRow().add(ns.store.getVersion());
+        cursor = versionCursor;
+        break;
+      case MATCH_CHANGES:
+        cursor = queryChanges(ns, Long.parseLong(uri.getLastPathSegment()));
+        break;
+      case MATCH_LEASE:
+        cursor = queryLease();
         break;
       default:
         throw new IllegalArgumentException("Unsupported uri " + uri);
@@ -83,52 +309,448 @@ public class SharedProvider extends ContentProvider implements Types {
     return cursor;
   }
 
+  /**
+   * The cursor free protocol, see {@link #METHOD_GET} and friends. Older providers return null for
+   * every method, which is how clients know to fall back to {@link #query}.
+   *
+   * The provider permission in the manifest doesn't cover calls, so we check it here. Methods for
+   * a named store carry its name, see {@link #getMethod(String, String)}.
+   */
+  @Override public Bundle call(String method, String arg, Bundle extras) {
+    final String permission = MetaDataUtils.getSharedPermission(getContext());
+    if (permission != null) {
+      getContext().enforceCallingOrSelfPermission(permission, "Shared provider call " + method);
+    }
+    final int separator = method.indexOf(METHOD_NAMESPACE_SEPARATOR);
+    final String name = separator < 0 ? method : method.substring(0, separator);
+    switch (name) {
+      case METHOD_GET:
+      case METHOD_GET_MANY:
+      case METHOD_PUT:
+      case METHOD_VERSION:
+        break;
+      default:
+        // Before the namespace, opening it would create its files for a call we don't answer.
+        return super.call(method, arg, extras);
+    }
+    final Namespace ns = getNamespace(separator < 0 ? null : method.substring(separator + 1));
+    final Bundle result = new Bundle();
+    switch (name) {
+      case METHOD_GET:
+        if (containsValue(ns, arg)) putValue(ns, result, VALUE, arg, extras.getString(TYPE));
+        break;
+      case METHOD_GET_MANY:
+        final String[] keys = extras.getStringArray(KEY);
+        final String[] types = extras.getStringArray(TYPE);
+        if (keys == null || types == null || keys.length != types.length) {
+          throw new IllegalArgumentException("Get many needs a type for every key");
+        }
+        for (int i = 0; i < keys.length; i++) {
+          if (containsValue(ns, keys[i])) putValue(ns, result, keys[i], keys[i], types[i]);
+        }
+        break;
+      case METHOD_PUT:
+        final Map<String, Object> values = new LinkedHashMap<>();
+        for (String key : extras.keySet()) {
+          values.put(key, extras.get(key));
+        }
+        writeValues(ns, values.entrySet());
+        break;
+      case METHOD_VERSION:
+        result.putLong(VERSION, ns.store.getVersion());
+        break;
+    }
+    return result;
+  }
+
+  /**
+   * Puts the stored value for this key into the bundle as the type asked for. String sets go as a
+   * string ArrayList, large blobs as a pipe to read them from.
+   */
+  private void putValue(Namespace ns, Bundle bundle, String bundleKey, String key, String type) {
+    final Object value = getValue(ns, key);
+    if (STRING_TYPE.equals(type)) {
+      bundle.putString(bundleKey, (String) value);
+    } else if (BOOLEAN_TYPE.equals(type)) {
+      bundle.putBoolean(bundleKey, value != null && (Boolean) value);
+    } else if (LONG_TYPE.equals(type)) {
+      bundle.putLong(bundleKey, value == null ? 0L : ((Number) value).longValue());
+    } else if (INT_TYPE.equals(type)) {
+      bundle.putInt(bundleKey, value == null ? 0 : ((Number) value).intValue());
+    } else if (FLOAT_TYPE.equals(type)) {
+      bundle.putFloat(bundleKey, value == null ? 0f : ((Number) value).floatValue());
+    } else if (STRING_SET_TYPE.equals(type)) {
+      // Stored as another type reads as the default, as from the cache.
+      bundle.putStringArrayList(bundleKey,
+          value instanceof Set ? toStringList((Set<?>) value) : null);
+    } else if (BLOB_TYPE.equals(type)) {
+      final byte[] blob = (byte[]) value;
+      if (blob != null && blob.length > SharedValuesCursor.MAX_INLINE_BLOB_BYTES) {
+        try {
+          bundle.putParcelable(bundleKey,
+              openBlob(SharedSharedPreferences.getContentUri(AUTHORITY, ns.name, key, BLOB_TYPE),
+                  blob));
+        } catch (FileNotFoundException e) {
+          throw new IllegalStateException("Couldn't open a pipe for " + key, e);
+        }
+      } else {
+        bundle.putByteArray(bundleKey, blob);
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported type " + type);
+    }
+  }
+
+  private static ArrayList<String> toStringList(Set<?> values) {
+    final ArrayList<String> strings = new ArrayList<>(values.size());
+    for (Object value : values) {
+      strings.add((String) value);
+    }
+    return strings;
+  }
+
+  /**
+   * Reads many keys in one go. The projection holds the keys to read and the selectionArgs hold
+   * the matching type for each key. Returns one {@link #KEY}, {@link #TYPE}, {@link #VALUE} row
+   * per stored key, missing keys are left out.
+   */
+  private MatrixCursor queryBatch(Namespace ns, Uri uri, String[] keys, String[] types) {
+    if (keys == null || types == null || keys.length != types.length) {
+      throw new IllegalArgumentException("Batch needs a type for every key " + uri);
+    }
+    final MatrixCursor cursor = new MatrixCursor(new String[] { KEY, TYPE, VALUE }, keys.length);
+    String key;
+    for (int i = 0; i < keys.length; i++) {
+      key = keys[i];
+      final Object value = getValue(ns, key);
+      if (value == null) continue;
+      cursor.newRow()
+          .add(key)
+          .add(SharedValuesCursor.getRowType(value))
+          .add(SharedValuesCursor.toColumnValue(value));
+    }
+    return cursor;
+  }
+
+  /**
+   * Returns a single {@link #KEY} column listing which of the keys in the projection are stored.
+   */
+  private MatrixCursor queryContains(Namespace ns, Uri uri, String[] keys) {
+    if (keys == null) throw new IllegalArgumentException("No keys to look up " + uri);
+    final MatrixCursor cursor = new MatrixCursor(new String[] { KEY }, keys.length);
+    for (String key : keys) {
+      if (containsValue(ns, key)) cursor.newRow().add(key);
+    }
+    return cursor;
+  }
+
+  /**
+   * Every key changed after this version as {@link #KEY}, {@link #TYPE}, {@link #VALUE},
+   * {@link #VERSION} rows. Removed keys come back as {@link #REMOVED_TYPE} with a null value. The
+   * highest {@link #VERSION} is what the reader is now in sync with.
+   */
+  private MatrixCursor queryChanges(Namespace ns, long since) {
+    final Map<String, Long> versions = ns.store.getVersionsSince(since);
+    final MatrixCursor cursor =
+        new MatrixCursor(new String[] { KEY, TYPE, VALUE, VERSION }, versions.size());
+    for (Map.Entry<String, Long> entry : versions.entrySet()) {
+      final Object value = ns.store.get(entry.getKey());
+      final MatrixCursor.RowBuilder row = cursor.newRow().add(entry.getKey());
+      if (value == null) {
+        row.add(REMOVED_TYPE).add(null);
+      } else {
+        row.add(SharedValuesCursor.getRowType(value)).add(SharedValuesCursor.toColumnValue(value));
+      }
+      row.add(entry.getValue());
+    }
+    return cursor;
+  }
+
+  /**
+   * The heartbeat, a single {@link #MASTER_KEY}, {@link #EPOCH}, {@link #LEASE_EXPIRY} row. Being
+   * able to answer is what keeps a master alive, so a master grants a fresh lease every time.
+   */
+  private MatrixCursor queryLease() {
+    final boolean master = isMaster();
+    final MatrixCursor cursor =
+        new MatrixCursor(new String[] { MASTER_KEY, EPOCH, LEASE_EXPIRY }, 1);
+    cursor.newRow()
+        .add(master ? 1 : 0)
+        .add(getEpoch())
+        .add(master ? System.currentTimeMillis() + MasterLease.LEASE_MILLIS : 0L);
+    return cursor;
+  }
+
   @Override public String getType(Uri uri) {
+    if (sUriMatcher.match(uri) == MATCH_SNAPSHOT) return SNAPSHOT_TYPE;
     //This could be the authority, but thought a constant package name makes more sense.
     return ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd." + BuildConfig.APPLICATION_ID + ".item";
   }
 
-  @Override public Uri insert(Uri uri, ContentValues values) {
-    switch (sUriMatcher.match(uri)) {
+  /**
+   * Streams the whole store through a pipe as a cleared {@link SharedChangesCodec} payload, this is
+   * how slaves that fell behind resync. Nothing is encoded up front, the pipe only holds what the
+   * reader hasn't taken yet. {@link #openTypedAssetFile} serves this too as {@link #getType(Uri)}
+   * knows the snapshot type.
+   */
+  @Override public ParcelFileDescriptor openFile(Uri uri, String mode)
+      throws FileNotFoundException {
+    final int match = sUriMatcher.match(uri);
+    final Namespace ns = match == MATCH_LEASE ? mDefault : getNamespace(getNamespace(uri));
+    final List<String> path = getStorePath(uri);
+    switch (match) {
       case MATCH_DATA:
-        SharedPreferences.Editor editor = mSharedPrefs.edit();
-        for (Map.Entry<String, Object> entry : values.valueSet()) {
-          final Object value = entry.getValue();
-          final String key = entry.getKey();
-          if (value == null) {
-            editor.remove(key);
-          } else if (value instanceof String) {
-            editor.putString(key, (String) value);
-          } else if (value instanceof Boolean) {
-            editor.putBoolean(key, (Boolean) value);
-          } else if (value instanceof Long) {
-            editor.putLong(key, (Long) value);
-          } else if (value instanceof Integer) {
-            editor.putInt(key, (Integer) value);
-          } else if (value instanceof Float) {
-            editor.putFloat(key, (Float) value);
-          } else {
-            throw new IllegalArgumentException("Unsupported type " + uri);
-          }
+        if (!"r".equals(mode)) throw new FileNotFoundException("Read only " + uri);
+        if (!BLOB_TYPE.equals(path.get(1))) {
+          throw new FileNotFoundException("Only blobs can be opened " + uri);
         }
-        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.FROYO) {
-          editor.apply();
-        } else {
-          editor.commit();
+        final Object blob = ns.store.get(path.get(0));
+        if (!(blob instanceof byte[])) throw new FileNotFoundException("No blob " + uri);
+        return openBlob(uri, (byte[]) blob);
+      case MATCH_SNAPSHOT:
+        if (!"r".equals(mode)) throw new FileNotFoundException("Read only " + uri);
+        return openPipeHelper(uri, SNAPSHOT_TYPE, null, ns.store.getAll(),
+            new PipeDataWriter<Map<String, ?>>() {
+              @Override public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                  String mimeType, Bundle opts, Map<String, ?> values) {
+                writeSnapshot(output, values);
+              }
+            });
+      default:
+        throw new FileNotFoundException("Unsupported uri " + uri);
+    }
+  }
+
+  /**
+   * Streams the blob through a pipe, so it is never in a CursorWindow or a binder buffer.
+   */
+  private ParcelFileDescriptor openBlob(Uri uri, byte[] blob) throws FileNotFoundException {
+    return openPipeHelper(uri, null, null, blob, new PipeDataWriter<byte[]>() {
+      @Override public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+          String mimeType, Bundle opts, byte[] blob) {
+        final FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+        try {
+          out.write(blob);
+        } catch (IOException e) {
+          // The reader went away.
+          Log.w("SharedProviders", "Blob not sent from [" + AUTHORITY + "]", e);
+        } finally {
+          try {
+            out.close();
+          } catch (IOException ignored) {
+          }
         }
-        updateSlaves(getContext(), mSharedPrefs);
+      }
+    });
+  }
+
+  private static void writeSnapshot(ParcelFileDescriptor output, Map<String, ?> values) {
+    final FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+    try {
+      // Keys are all unique, a dedup table would just hold a second copy of them.
+      final SharedChangesCodec.Writer writer = new SharedChangesCodec.Writer(out, true, false);
+      for (Map.Entry<String, ?> entry : values.entrySet()) {
+        if (MASTER_KEY.equals(entry.getKey()) || entry.getValue() == null) continue;
+        writer.write(entry.getKey(), entry.getValue());
+      }
+      writer.finish();
+    } catch (IOException e) {
+      // The reader went away, it will ask again.
+      Log.w("SharedProviders", "Snapshot not sent from [" + AUTHORITY + "]", e);
+    } finally {
+      try {
+        out.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  @Override public Uri insert(Uri uri, ContentValues values) {
+    switch (sUriMatcher.match(uri)) {
+      case MATCH_DATA:
+        writeValues(getNamespace(getNamespace(uri)), values.valueSet());
+        break;
+      case MATCH_LEASE:
+        updateLease(values);
         break;
       default:
         throw new IllegalArgumentException("Unsupported uri " + uri);
     }
-    return null;
+    // Anything but null tells the writer we took it.
+    return uri;
+  }
+
+  /**
+   * An elector making us master or not. Anyone electing from an older epoch than ours is working
+   * from stale answers, so they are ignored.
+   */
+  private void updateLease(ContentValues values) {
+    final Boolean master = values.getAsBoolean(MASTER_KEY);
+    final Long epoch = values.getAsLong(EPOCH);
+    if (master == null || epoch == null) {
+      throw new IllegalArgumentException("A lease needs " + MASTER_KEY + " and " + EPOCH);
+    }
+    setLease(master, epoch);
+  }
+
+  private void setLease(boolean master, long epoch) {
+    synchronized (mLeaseLock) {
+      final long current = getEpoch();
+      if (epoch < current) {
+        Log.w("SharedProviders", "Ignored election at epoch " + epoch + ", we are at " + current);
+        return;
+      }
+      mLease.edit().putLong(EPOCH, epoch).putBoolean(MASTER_KEY, master).commit();
+    }
+  }
+
+  /**
+   * Inserts every row in one go, one store commit, one version and one slave sync for the lot.
+   * Later rows win for keys written more than once.
+   */
+  @Override public int bulkInsert(Uri uri, ContentValues[] values) {
+    if (sUriMatcher.match(uri) != MATCH_DATA) return super.bulkInsert(uri, values);
+    final SharedChanges write = new SharedChanges();
+    for (ContentValues row : values) {
+      for (Map.Entry<String, Object> entry : row.valueSet()) {
+        write.put(entry.getKey(), toStoreValue(entry.getValue()));
+      }
+    }
+    writeChanges(getNamespace(getNamespace(uri)), write);
+    return values.length;
+  }
+
+  /**
+   * Runs the operations as one transaction. Inserts and clears are staged as they are applied and
+   * written together at the end, so the batch lands in one store commit and one slave sync per
+   * namespace, or not at all if an operation fails.
+   */
+  @NonNull @Override
+  public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    final Map<Namespace, SharedChanges> batch = new LinkedHashMap<>();
+    mBatch.set(batch);
+    final ContentProviderResult[] results;
+    try {
+      results = super.applyBatch(operations);
+    } finally {
+      mBatch.remove();
+    }
+    for (Map.Entry<Namespace, SharedChanges> entry : batch.entrySet()) {
+      writeChanges(entry.getKey(), entry.getValue());
+    }
+    return results;
+  }
+
+  /**
+   * @return the changes staged for this namespace by the {@link #applyBatch} running on this
+   * thread, null outside of one.
+   */
+  @Nullable private SharedChanges getBatch(Namespace ns) {
+    final Map<Namespace, SharedChanges> batch = mBatch.get();
+    if (batch == null) return null;
+    SharedChanges changes = batch.get(ns);
+    if (changes == null) {
+      changes = new SharedChanges();
+      batch.put(ns, changes);
+    }
+    return changes;
+  }
+
+  /**
+   * Writes these values to the store, null values remove the key, then versions them and sends
+   * them on to the slaves. Inside {@link #applyBatch} they are only staged.
+   */
+  private void writeValues(Namespace ns, Set<Map.Entry<String, Object>> values) {
+    final SharedChanges batch = getBatch(ns);
+    final SharedChanges write = batch != null ? batch : new SharedChanges();
+    for (Map.Entry<String, Object> entry : values) {
+      write.put(entry.getKey(), toStoreValue(entry.getValue()));
+    }
+    if (batch == null) writeChanges(ns, write);
+  }
+
+  /**
+   * String sets and blobs are sent to us {@link SharedChangesCodec#encodeValue} encoded.
+   */
+  private static Object toStoreValue(Object value) {
+    if (!(value instanceof byte[])) return value;
+    try {
+      return SharedChangesCodec.decodeValue((byte[]) value);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unreadable value", e);
+    }
+  }
+
+  /**
+   * Clears the store, keeping whether we are master. Inside {@link #applyBatch} it is only
+   * staged, before anything written after it in the batch.
+   */
+  private void clearValues(Namespace ns) {
+    final SharedChanges batch = getBatch(ns);
+    final SharedChanges write = batch != null ? batch : new SharedChanges();
+    write.clear();
+    if (batch == null) writeChanges(ns, write);
+  }
+
+  /**
+   * Commits a clear and/or writes to the store in one go, then sends them on to the slaves as one
+   * change stamped with the new store version.
+   */
+  private void writeChanges(Namespace ns, SharedChanges write) {
+    if (write.isEmpty()) return;
+    final SharedChanges changes = new SharedChanges();
+    if (write.isCleared()) changes.clear();
+    final Map<String, Object> values = new LinkedHashMap<>(write.getValues());
+    // Master state is local to each provider, older electors still send it as a value. They
+    // know nothing of epochs, so they only count until the first election that does.
+    final Object master = ns == mDefault ? values.remove(MASTER_KEY) : null;
+    if (master instanceof Boolean) setLease((Boolean) master, 0L);
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      changes.put(entry.getKey(), entry.getValue());
+    }
+    if (changes.isEmpty()) return;
+    // Writes, versions and broadcasts to a key have to line up, one writer per shard at a time.
+    final List<ReentrantLock> locks = lockShards(ns, changes);
+    try {
+      final long version = ns.store.write(changes.isCleared(), values);
+      changes.setVersions(version - 1, version);
+      updateSlaves(ns, changes);
+    } finally {
+      for (int i = locks.size() - 1; i >= 0; i--) {
+        locks.get(i).unlock();
+      }
+    }
+    notifyChange(ns, changes);
+  }
+
+  /**
+   * Locks the shards these changes go to, every one of them for a clear. Always in shard order so
+   * writes spanning shards can't deadlock.
+   */
+  private List<ReentrantLock> lockShards(Namespace ns, SharedChanges changes) {
+    final boolean[] shards = new boolean[ns.writeLocks.length];
+    if (changes.isCleared() || shards.length == 1) {
+      Arrays.fill(shards, true);
+    } else {
+      final ShardedSharedStore store = (ShardedSharedStore) ns.store;
+      for (String key : changes.getValues().keySet()) {
+        shards[store.getShard(key)] = true;
+      }
+    }
+    final List<ReentrantLock> locks = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      if (!shards[i]) continue;
+      ns.writeLocks[i].lock();
+      locks.add(ns.writeLocks[i]);
+    }
+    return locks;
   }
 
   @Override public int delete(Uri uri, String selection, String[] selectionArgs) {
     switch (sUriMatcher.match(uri)) {
       case MATCH_DATA:
-        mSharedPrefs.edit().clear().commit();
-        updateSlaves(getContext(), mSharedPrefs);
+        clearValues(getNamespace(getNamespace(uri)));
         break;
       default:
         throw new IllegalArgumentException("Unsupported uri " + uri);
@@ -142,9 +764,114 @@ public class SharedProvider extends ContentProvider implements Types {
   }
 
   /**
-   * Asks your App's local Application object for a SharedPreferences you want to provide one.
+   * Lets observers of {@link #BASE_URI}, such as cached {@link SharedSharedPreferences}, know the
+   * store changed. Each key is notified on its own data Uri, or if the store was cleared or too
+   * many keys changed for that to be worth it, just the {@link #BASE_URI}. A named store notifies
+   * its {@link #PATH_ALL} Uri instead, so observers of the other stores aren't bothered.
+   */
+  private void notifyChange(Namespace ns, SharedChanges changes) {
+    final ContentResolver resolver = getContext().getContentResolver();
+    if (changes.isCleared() || changes.size() > MAX_KEY_NOTIFICATIONS) {
+      resolver.notifyChange(ns.name == null ? BASE_URI
+          : SharedSharedPreferences.getPathUri(AUTHORITY, ns.name, PATH_ALL), null);
+      return;
+    }
+    for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+      final Object value = entry.getValue();
+      final String type = value == null ? REMOVED_TYPE : SharedValuesCursor.getValueType(value);
+      resolver.notifyChange(
+          SharedSharedPreferences.getContentUri(AUTHORITY, ns.name, entry.getKey(), type), null);
+    }
+  }
+
+  /**
+   * Asks your App's local Application object for a {@link SharedStore} if it provides one,
+   * otherwise stores in SharedPreferences.
    */
+  private SharedStore getSharedStore(Context context) {
+    SharedStore store = null;
+    if (context.getApplicationContext() instanceof SharedStoreProducer) {
+      store = ((SharedStoreProducer) context.getApplicationContext()).provideSharedStore(context);
+    }
+    if (store != null) return store;
+    final SharedVersions versions = new SharedVersions(
+        context.getSharedPreferences("local_shared_prefs_versions", Context.MODE_PRIVATE));
+    final SharedPreferences firstBlobs =
+        context.getSharedPreferences("local_shared_prefs_blobs", Context.MODE_PRIVATE);
+    final SharedPreferences shardState =
+        context.getSharedPreferences("local_shared_prefs_shards", Context.MODE_PRIVATE);
+    final int used = shardState.getInt(SHARD_COUNT_KEY, 1);
+    int shards = MetaDataUtils.getStoreShards(context);
+    if (shards > 1 && isSharedPreferencesProduced(context)) {
+      // Those are the apps own, keys it reads there mustn't be moved out from under it.
+      Log.w("SharedProviders", "Not sharding the SharedPreferences the app provides");
+      shards = 1;
+    }
+    if (shards == 1 && used == 1) {
+      return new SharedPreferencesStore(getSharedPreferences(context), firstBlobs, versions);
+    }
+    // The first shard is the unsharded store, turning sharding on moves keys out of it. Every
+    // shard used before is opened too, so going down to fewer moves keys out of the rest.
+    final int opened = Math.max(shards, used);
+    final SharedPreferences[] values = new SharedPreferences[opened];
+    final SharedPreferences[] blobs = new SharedPreferences[opened];
+    values[0] = getProducedSharedPreferences(context);
+    blobs[0] = firstBlobs;
+    for (int i = 1; i < opened; i++) {
+      values[i] = context.getSharedPreferences("local_shared_prefs_" + i, Context.MODE_PRIVATE);
+      blobs[i] =
+          context.getSharedPreferences("local_shared_prefs_blobs_" + i, Context.MODE_PRIVATE);
+    }
+    final ShardedSharedStore sharded = new ShardedSharedStore(values, blobs, shards, versions,
+        MetaDataUtils.getStoreShardSeparator(context));
+    // Only once the keys are where this count puts them.
+    shardState.edit().putInt(SHARD_COUNT_KEY, shards).commit();
+    if (!sharded.contains(CREATED_KEY)) {
+      sharded.commit(Collections.singletonMap(CREATED_KEY, System.currentTimeMillis()));
+    }
+    return sharded;
+  }
+
+  /**
+   * Named stores are always in SharedPreferences of their own, {@link SharedStoreProducer} only
+   * provides the default one.
+   */
+  private static SharedStore getNamespaceStore(Context context, String name) {
+    final String prefix = "local_shared_prefs_ns_" + name;
+    return new SharedPreferencesStore(context.getSharedPreferences(prefix, Context.MODE_PRIVATE),
+        context.getSharedPreferences(prefix + "_blobs", Context.MODE_PRIVATE),
+        new SharedVersions(
+            context.getSharedPreferences(prefix + "_versions", Context.MODE_PRIVATE)));
+  }
+
+  /**
+   * Master state used to live in the data store, carry it over to the lease once. The old value
+   * is left where it is, it is never read or sent on.
+   */
+  private void migrateMaster() {
+    if (mLease.contains(MASTER_KEY)) return;
+    final Object master = mDefault.store.get(MASTER_KEY);
+    mLease.edit().putBoolean(MASTER_KEY, master instanceof Boolean && (Boolean) master).commit();
+  }
+
   private SharedPreferences getSharedPreferences(Context context) {
+    final SharedPreferences sharedPreferences = getProducedSharedPreferences(context);
+    if (!sharedPreferences.contains(CREATED_KEY)) {
+      sharedPreferences.edit().putLong(CREATED_KEY, System.currentTimeMillis()).apply();
+    }
+    return sharedPreferences;
+  }
+
+  private boolean isSharedPreferencesProduced(Context context) {
+    return context.getApplicationContext() instanceof SharedPreferencesProducer
+        && ((SharedPreferencesProducer) context.getApplicationContext())
+        .provideSharedPreferences() != null;
+  }
+
+  /**
+   * Asks your App's local Application object for a SharedPreferences you want to provide one.
+   */
+  private SharedPreferences getProducedSharedPreferences(Context context) {
     SharedPreferences sharedPreferences = null;
     if (context.getApplicationContext() instanceof SharedPreferencesProducer) {
       sharedPreferences =
@@ -153,9 +880,6 @@ public class SharedProvider extends ContentProvider implements Types {
     if (sharedPreferences == null) {
       sharedPreferences = getDefaultSharedPreferences(context);
     }
-    if (!sharedPreferences.contains("created")) {
-      sharedPreferences.edit().putLong("created", System.currentTimeMillis()).apply();
-    }
     return sharedPreferences;
   }
 
@@ -163,10 +887,33 @@ public class SharedProvider extends ContentProvider implements Types {
     return context.getSharedPreferences("local_shared_prefs", Context.MODE_PRIVATE);
   }
 
-  private static void updateSlaves(Context context, SharedPreferences sharedPreferences) {
-    if (sharedPreferences.getBoolean(MASTER_KEY, false)) {
-      Log.d("SharedProviders", "UpdateSlaves Called from [" + AUTHORITY + "]");
-      SharedContentChangedReceiver.sendBroadcast(context, sharedPreferences.getAll());
+  /**
+   * Whether the store has this key. Master state is answered from the lease, older peers still ask
+   * for it as a value.
+   */
+  private boolean containsValue(Namespace ns, String key) {
+    return ns == mDefault && MASTER_KEY.equals(key) || ns.store.contains(key);
+  }
+
+  @Nullable private Object getValue(Namespace ns, String key) {
+    return ns == mDefault && MASTER_KEY.equals(key) ? isMaster() : ns.store.get(key);
+  }
+
+  private boolean isMaster() {
+    return mLease.getBoolean(MASTER_KEY, false);
+  }
+
+  private long getEpoch() {
+    return mLease.getLong(EPOCH, 0L);
+  }
+
+  /**
+   * Queues just these changes to go on to the slaves if we are master. They are merged with other
+   * writes in the same window, see {@link SlaveSyncScheduler}.
+   */
+  private void updateSlaves(Namespace ns, SharedChanges changes) {
+    if (isMaster()) {
+      ns.syncScheduler.schedule(changes);
     }
   }
 }
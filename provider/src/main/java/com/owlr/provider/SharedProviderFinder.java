@@ -1,17 +1,28 @@
 package com.owlr.provider;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ProviderInfo;
 import android.net.Uri;
+import android.os.Build;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,6 +36,9 @@ import static com.owlr.provider.SharedCursorUtils.getBooleanValue;
  */
 public class SharedProviderFinder implements Types {
 
+  private static final long PROBE_TIMEOUT_MILLIS = 3000L;
+  private static final ExecutorService PROBE_EXECUTOR = newProbeExecutor();
+
   private static SharedProviderFinder sharedProviderFinder;
 
   private static SharedProviderFinder initDefaultFinder(Context context) {
@@ -36,15 +50,41 @@ public class SharedProviderFinder implements Types {
     }
     Pattern pattern = Pattern.compile(matcherPattern);
     return new SharedProviderFinder(context, pattern, sharedPermission,
-        context.getContentResolver());
+        context.getContentResolver(), getDefaultDiscovery(context, sharedPermission));
+  }
+
+  /**
+   * Intent lookup from KitKat up, a full package scan before that.
+   */
+  static ProviderDiscovery getDefaultDiscovery(Context context, String sharedPermission) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      return new IntentDiscovery(context, sharedPermission);
+    }
+    return new PackageScanDiscovery(context);
+  }
+
+  /**
+   * A thread for every probe that needs one. Cancelling a probe can't interrupt a binder call, one
+   * stuck on a hung peer keeps its thread, and mustn't hold up probes that come after it.
+   */
+  static ExecutorService newProbeExecutor() {
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override public Thread newThread(@NonNull Runnable runnable) {
+            final Thread thread = new Thread(runnable, "SharedProvider-Probe");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
   }
 
   /**
    * Get a pre-configured finder instance.
    */
-  public static SharedProviderFinder get(Context context) {
+  public static synchronized SharedProviderFinder get(Context context) {
     if (sharedProviderFinder == null) {
       sharedProviderFinder = initDefaultFinder(context);
+      sharedProviderFinder.watchPackages(context.getApplicationContext());
     }
     return sharedProviderFinder;
   }
@@ -53,16 +93,43 @@ public class SharedProviderFinder implements Types {
   private final Pattern authorityMatcherPattern;
   private final String sharedPermission;
   private final ContentResolver contentResolver;
+  private final ProviderDiscovery discovery;
+  private String localAuthority;
+
+  /**
+   * Result of the last election, null until we have one or after {@link #invalidate()}.
+   */
+  private String masterAuthority;
+  /**
+   * Highest election epoch we know of, elections we run go one higher.
+   */
+  private long masterEpoch;
+  /**
+   * We trust {@link #masterAuthority} without asking until then.
+   */
+  private long leaseExpiresAt;
 
   /**
    * Generally used for testing. You should use {@link #get(Context)}
    */
   protected SharedProviderFinder(Context context, Pattern authorityMatcherPattern,
       String sharedPermission, ContentResolver contentResolver) {
+    this(context, authorityMatcherPattern, sharedPermission, contentResolver,
+        new PackageScanDiscovery(context));
+  }
+
+  /**
+   * Generally used for testing. You should use {@link #get(Context)}
+   *
+   * @param discovery how we find candidate providers, see {@link ProviderDiscovery}.
+   */
+  protected SharedProviderFinder(Context context, Pattern authorityMatcherPattern,
+      String sharedPermission, ContentResolver contentResolver, ProviderDiscovery discovery) {
     this.context = context;
     this.authorityMatcherPattern = authorityMatcherPattern;
     this.sharedPermission = sharedPermission;
     this.contentResolver = contentResolver;
+    this.discovery = discovery;
   }
 
   /**
@@ -71,12 +138,27 @@ public class SharedProviderFinder implements Types {
    * @return this could be empty.
    */
   public List<ProviderInfo> findProviders() {
+    final long start = SharedMetrics.start();
+    SharedMetrics.beginSection(SharedMetrics.TRACE_DISCOVERY);
+    final List<ProviderInfo> installedProviders;
+    final List<ProviderInfo> matchedProviders;
+    try {
+      installedProviders = getInstalledProviders();
+      matchedProviders = matchProviders(installedProviders);
+    } finally {
+      SharedMetrics.endSection();
+    }
+    SharedMetrics.getMetrics().onDiscoveryScan(installedProviders.size(),
+        matchedProviders.size(), SharedMetrics.since(start));
+    return matchedProviders;
+  }
+
+  private List<ProviderInfo> matchProviders(List<ProviderInfo> installedProviders) {
     final Pattern authorityMatcherPattern = getAuthorityMatcherPattern();
     Log.i("SharedProviders",
         "Find Authorities using: " + authorityMatcherPattern.pattern() + " Permission: "
             + getSharedPermission());
 
-    final List<ProviderInfo> installedProviders = getInstalledProviders();
     final int count = installedProviders.size();
     final List<ProviderInfo> matchedProviders = new ArrayList<>(count);
     final String sharedPermission = getSharedPermission();
@@ -105,6 +187,9 @@ public class SharedProviderFinder implements Types {
   /**
    * Finds the master authority.
    *
+   * If more than one provider thinks it is master the one elected in the highest epoch wins, or
+   * the first in the list if they are level, the rest are un-delegated.
+   *
    * @param providerInfos Non-null list of found providers to check
    * @return authority to use for the Uri for the master. That could be you as in we can delegate
    * ourselves as master.
@@ -114,45 +199,266 @@ public class SharedProviderFinder implements Types {
       throw new IllegalStateException(
           "There should be at least one Provider registered for this to work.");
     }
-    ProviderInfo providerInfo;
+    final long start = SharedMetrics.start();
+    SharedMetrics.beginSection(SharedMetrics.TRACE_ELECTION);
+    final String masterAuthority;
+    try {
+      masterAuthority = electMaster(providerInfos);
+    } finally {
+      SharedMetrics.endSection();
+    }
+    SharedMetrics.getMetrics().onElection(providerInfos.size(), SharedMetrics.since(start));
+    return masterAuthority;
+  }
+
+  private String electMaster(List<ProviderInfo> providerInfos) {
+    final List<String> authorities = new ArrayList<>(providerInfos.size());
     String authority;
-    boolean isMaster;
-    String masterAuthority = null;
     for (int i = 0, size = providerInfos.size(); i < size; i++) {
-      providerInfo = providerInfos.get(i);
-      authority = providerInfo.authority;
+      authority = providerInfos.get(i).authority;
       //#3 Some shitty apps produce providers with null (or the user match is wrong)
       if (TextUtils.isEmpty(authority)) continue;
-
-      isMaster = isProviderMaster(getContentUri(authority), contentResolver);
-      Log.d("SharedProviders", "Auth " + authority + " isMaster: " + isMaster);
-      //Select the first Master Auth then we un delegate the rest.
-      if (isMaster && TextUtils.isEmpty(masterAuthority)) {
-        masterAuthority = authority;
-      } else if (isMaster && !TextUtils.isEmpty(masterAuthority)) {
+      authorities.add(authority);
+    }
+    final MasterLease[] leases = probeMasters(authorities);
+    MasterLease lease;
+    MasterLease masterLease = null;
+    String masterAuthority = null;
+    long highestEpoch = getMasterEpoch();
+    for (int i = 0, size = authorities.size(); i < size; i++) {
+      lease = leases[i];
+      Log.d("SharedProviders", "Auth " + authorities.get(i) + " " + lease);
+      // Didn't answer in time, we can't use it and we can't un-delegate it either.
+      if (lease == null) continue;
+      highestEpoch = Math.max(highestEpoch, lease.getEpoch());
+      if (lease.isMaster() && (masterLease == null || lease.getEpoch() > masterLease.getEpoch())) {
+        masterLease = lease;
+        masterAuthority = authorities.get(i);
+      }
+    }
+    if (masterLease != null) {
+      setLease(masterLease.getEpoch(), masterLease.getExpiresAt());
+      for (int i = 0, size = authorities.size(); i < size; i++) {
+        authority = authorities.get(i);
+        lease = leases[i];
+        if (lease == null || !lease.isMaster() || authority.equals(masterAuthority)) continue;
         // We un-delegate other masters. This can be if for some reason other masters were delegated
         // by themselves..
         Log.d("SharedProviders", "Un-Delegate Auth: " + authority);
         delegateMaster(authority, false);
       }
-    }
-    if (!TextUtils.isEmpty(masterAuthority)) {
       return masterAuthority;
     }
-    // If we reach here, then there are no masters so we delegate one. (Top of the list in the current impl)
-    masterAuthority = providerInfos.get(0).authority;
-    if (TextUtils.isEmpty(masterAuthority)) {
+    if (authorities.isEmpty()) {
       throw new IllegalStateException("There are no valid providers to delegate. "
           + "Are you sure you have your permissions and authorityMatcher set correctly");
     }
+    // No masters, so we delegate the first in the list that answered. One that didn't may not
+    // be running at all.
+    for (int i = 0, size = authorities.size(); i < size && masterAuthority == null; i++) {
+      if (leases[i] != null) masterAuthority = authorities.get(i);
+    }
+    if (masterAuthority == null) {
+      // Better a master that may be slow than none, reads and writes would fail outright.
+      Log.w("SharedProviders", "None of " + authorities + " answered, delegating the first");
+      masterAuthority = authorities.get(0);
+    }
+    // A new epoch, anyone still electing from older answers is ignored by the providers.
+    setLease(highestEpoch + 1, 0L);
     return delegateMaster(masterAuthority, true);
   }
 
   /**
+   * Same as {@link #findMasterProvider(List)} over {@link #findProviders()}, but the result is
+   * kept. While the masters lease runs we don't ask at all, after that a single heartbeat to the
+   * master renews it. Only if the master has gone or stepped down do we scan again.
+   *
+   * Whenever we had to ask, the master answered, so writes logged while there was none are sent on.
+   *
    * @see SharedProviderFinder#findMasterProvider(List)
    */
-  public String findMasterProvider() {
-    return findMasterProvider(findProviders());
+  public synchronized String findMasterProvider() {
+    if (masterAuthority != null && System.currentTimeMillis() < leaseExpiresAt) {
+      return masterAuthority;
+    }
+    if (masterAuthority == null || !renewLease()) {
+      masterAuthority = findMasterProvider(findProviders());
+    }
+    replayWrites();
+    return masterAuthority;
+  }
+
+  /**
+   * Forget the master we found, the next {@link #findMasterProvider()} scans again.
+   */
+  public synchronized void invalidate() {
+    masterAuthority = null;
+    leaseExpiresAt = 0L;
+  }
+
+  /**
+   * Heartbeat to the master we have.
+   *
+   * @return true if it is still master and hasn't been replaced by a later election.
+   */
+  private boolean renewLease() {
+    final MasterLease lease = probeMaster(masterAuthority);
+    Log.d("SharedProviders", "Heartbeat " + masterAuthority + " " + lease);
+    if (!lease.isMaster() || lease.getEpoch() < masterEpoch) return false;
+    setLease(lease.getEpoch(), lease.getExpiresAt());
+    return true;
+  }
+
+  private synchronized void setLease(long epoch, long expiresAt) {
+    masterEpoch = epoch;
+    leaseExpiresAt = expiresAt;
+  }
+
+  synchronized long getMasterEpoch() {
+    return masterEpoch;
+  }
+
+  /**
+   * Installing, updating or removing any app could change which providers we can see, and what
+   * they can do.
+   */
+  void watchPackages(Context context) {
+    final IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addDataScheme("package");
+    context.registerReceiver(new BroadcastReceiver() {
+      @Override public void onReceive(Context context, Intent intent) {
+        Log.d("SharedProviders", "Packages changed, " + intent.getAction());
+        onPackagesChanged();
+      }
+    }, filter);
+  }
+
+  void onPackagesChanged() {
+    invalidate();
+    // A provider that didn't take calls may do now.
+    SharedCall.reset();
+    // There may be a master again to take what we logged.
+    replayWrites();
+  }
+
+  /**
+   * Sends on the writes {@link SharedWriter} logged while it couldn't reach a master.
+   */
+  void replayWrites() {
+    SharedWriter.get().replayAsync(context);
+  }
+
+  /**
+   * Asks every provider if it is master. Each query may have to start that apps process, so they
+   * all go out at once on {@link #getProbeExecutor()} and we wait at most
+   * {@link #getProbeTimeoutMillis()} for all the answers. Probes still running then are cancelled.
+   * Our own provider is in this process, it is asked on the calling thread meanwhile so it
+   * always gets to answer.
+   *
+   * @return answers in the same order as the authorities, null where one didn't answer in time.
+   */
+  private MasterLease[] probeMasters(List<String> authorities) {
+    final int size = authorities.size();
+    final MasterLease[] leases = new MasterLease[size];
+    final ExecutorService executor = size > 1 ? getProbeExecutor() : null;
+    if (executor == null) {
+      for (int i = 0; i < size; i++) {
+        leases[i] = probeMaster(authorities.get(i));
+      }
+      return leases;
+    }
+    final String localAuthority = getLocalAuthority();
+    final List<Future<MasterLease>> probes = new ArrayList<>(size);
+    int local = -1;
+    for (int i = 0; i < size; i++) {
+      final String authority = authorities.get(i);
+      if (authority.equals(localAuthority)) {
+        local = i;
+        probes.add(null);
+        continue;
+      }
+      probes.add(executor.submit(new Callable<MasterLease>() {
+        @Override public MasterLease call() throws Exception {
+          return probeMaster(authority);
+        }
+      }));
+    }
+    final long timeout = getProbeTimeoutMillis();
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    if (local >= 0) {
+      try {
+        leases[local] = probeMaster(localAuthority);
+      } catch (RuntimeException e) {
+        Log.w("SharedProviders", "Auth " + localAuthority + " failed", e);
+      }
+    }
+    Future<MasterLease> probe;
+    for (int i = 0; i < size; i++) {
+      probe = probes.get(i);
+      if (probe == null) continue;
+      try {
+        leases[i] = probe.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        Log.w("SharedProviders",
+            "Auth " + authorities.get(i) + " didn't answer in " + timeout + "ms");
+        probe.cancel(true);
+      } catch (ExecutionException e) {
+        Log.w("SharedProviders", "Auth " + authorities.get(i) + " failed", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for (int j = i; j < size; j++) {
+          if (probes.get(j) != null) probes.get(j).cancel(true);
+        }
+        break;
+      }
+    }
+    return leases;
+  }
+
+  /**
+   * Peers on an older version have no lease, all they can tell us is whether they are master.
+   */
+  private MasterLease probeMaster(String authority) {
+    final MasterLease lease = queryLease(authority);
+    if (lease != null) return lease;
+    return new MasterLease(isProviderMaster(getContentUri(authority), contentResolver), 0L, 0L);
+  }
+
+  /**
+   * Asks this provider for its lease, see {@link SharedProvider#PATH_LEASE}.
+   *
+   * @return null if it didn't answer or doesn't know about leases.
+   */
+  MasterLease queryLease(String authority) {
+    try {
+      return MasterLease.from(contentResolver.query(
+          SharedSharedPreferences.getPathUri(authority, SharedProvider.PATH_LEASE), null, null,
+          null, null));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return where master probes run, null to run them one after another on the calling thread.
+   */
+  ExecutorService getProbeExecutor() {
+    return PROBE_EXECUTOR;
+  }
+
+  long getProbeTimeoutMillis() {
+    return PROBE_TIMEOUT_MILLIS;
+  }
+
+  /**
+   * @return the authority of this apps own provider, null if it has none.
+   */
+  synchronized String getLocalAuthority() {
+    if (localAuthority == null) localAuthority = MetaDataUtils.getAppAuthority(context);
+    return localAuthority;
   }
 
   /**
@@ -175,30 +481,29 @@ public class SharedProviderFinder implements Types {
   }
 
   /**
-   * Tell this Provider if it should be master or not.
+   * Tell this Provider if it should be master or not, as of our current epoch. A provider that
+   * has already seen a later epoch ignores us.
    */
   String delegateMaster(String authority, boolean isMaster) {
     ContentValues contentValues = new ContentValues();
     contentValues.put(MASTER_KEY, isMaster);
-    context.getContentResolver()
-        .insert(SharedSharedPreferences.getContentUri(authority, KEY, TYPE), contentValues);
+    contentValues.put(EPOCH, getMasterEpoch());
+    final ContentResolver resolver = context.getContentResolver();
+    try {
+      resolver.insert(SharedSharedPreferences.getPathUri(authority, SharedProvider.PATH_LEASE),
+          contentValues);
+    } catch (IllegalArgumentException e) {
+      // Older peer without leases.
+      contentValues.remove(EPOCH);
+      resolver.insert(SharedSharedPreferences.getContentUri(authority, KEY, TYPE), contentValues);
+    }
     return authority;
   }
 
   /**
-   * Finds ALL installed Providers on the Device
+   * Finds the candidate providers on the device, see {@link ProviderDiscovery}.
    */
   List<ProviderInfo> getInstalledProviders() {
-    final List<PackageInfo> installedPackages =
-        context.getPackageManager().getInstalledPackages(PackageManager.GET_PROVIDERS);
-    final List<ProviderInfo> providerInfoList = new ArrayList<>();
-    PackageInfo packageInfo;
-    for (int i = 0; i < installedPackages.size(); i++) {
-      packageInfo = installedPackages.get(i);
-      if (packageInfo.providers != null) {
-        Collections.addAll(providerInfoList, packageInfo.providers);
-      }
-    }
-    return providerInfoList;
+    return discovery.findCandidates();
   }
 }
@@ -1,12 +1,27 @@
 package com.owlr.provider;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,6 +29,7 @@ import static com.owlr.provider.SharedCursorUtils.getBooleanValue;
 import static com.owlr.provider.SharedCursorUtils.getFloatValue;
 import static com.owlr.provider.SharedCursorUtils.getIntValue;
 import static com.owlr.provider.SharedCursorUtils.getLongValue;
+import static com.owlr.provider.SharedCursorUtils.getStringSetValue;
 import static com.owlr.provider.SharedCursorUtils.getStringValue;
 
 /**
@@ -28,11 +44,54 @@ public class SharedSharedPreferences implements SharedPreferences, Types {
    * This allows other shared providers to no care about what they store, just just do.
    */
   static Uri getContentUri(String authority, String key, String type) {
-    return Uri.parse("content://" + authority).buildUpon().appendPath(key).appendPath(type).build();
+    return getContentUri(authority, null, key, type);
+  }
+
+  static Uri getContentUri(String authority, @Nullable String namespace, String key, String type) {
+    return getBaseUri(authority, namespace).buildUpon().appendPath(key).appendPath(type).build();
+  }
+
+  /**
+   * Builds the Uri used to read many keys from a provider in a single query.
+   */
+  static Uri getBatchUri(String authority, @Nullable String namespace) {
+    return getPathUri(authority, namespace, SharedProvider.PATH_BATCH);
+  }
+
+  static Uri getPathUri(String authority, String path) {
+    return getPathUri(authority, null, path);
+  }
+
+  static Uri getPathUri(String authority, @Nullable String namespace, String path) {
+    return getBaseUri(authority, namespace).buildUpon().appendPath(path).build();
+  }
+
+  /**
+   * @param namespace null for the default store.
+   */
+  static Uri getBaseUri(String authority, @Nullable String namespace) {
+    final Uri uri = Uri.parse("content://" + authority);
+    if (namespace == null) return uri;
+    return uri.buildUpon().appendPath(SharedProvider.PATH_NAMESPACE).appendPath(namespace).build();
   }
 
   private final Context context;
+  /**
+   * True when we found the master ourselves, so we can look for another one if it goes away.
+   */
+  private final boolean followMaster;
   private String authority;
+  /**
+   * The store on the master we read and write, null for the default one.
+   */
+  @Nullable private final String namespace;
+  private SharedValueCache cache;
+  private SharedChangeListeners listeners;
+  /**
+   * One observer of the master for both the cache and the listeners, registered while either
+   * needs it.
+   */
+  private ContentObserver masterObserver;
 
   /**
    * Get a SharedPreference instance, this will pull data from the distributed state.
@@ -49,14 +108,18 @@ public class SharedSharedPreferences implements SharedPreferences, Types {
    *
    * The {@code Editor} will refresh the master list on init.
    *
-   * Getting and Setting StringSets are not supported, getAll is also not supported.
-   * Also worth noting that observers are not supported either.
+   * String sets and blobs ({@link #getBlob(String, byte[])}) are supported alongside the usual
+   * types.
    *
    * @see #refreshAuthority()
    */
   public SharedSharedPreferences(@NonNull Context context) {
     this.context = context.getApplicationContext();
+    this.followMaster = true;
+    this.namespace = null;
     refreshAuthority();
+    // Anything we couldn't write last time goes first.
+    SharedWriter.get().replayAsync(this.context);
   }
 
   /**
@@ -65,93 +128,559 @@ public class SharedSharedPreferences implements SharedPreferences, Types {
    * provider.
    */
   protected SharedSharedPreferences(@NonNull Context context, @NonNull String authority) {
+    this(context, authority, false, null);
+  }
+
+  private SharedSharedPreferences(@NonNull Context context, @NonNull String authority,
+      boolean followMaster, @Nullable String namespace) {
     this.context = context.getApplicationContext();
+    this.followMaster = followMaster;
     this.authority = authority;
+    this.namespace = namespace;
+  }
+
+  /**
+   * A separate store on the same master, with its own keys, versions, listeners and write log.
+   * Clearing one namespace leaves the others alone, and a busy one is synced to the slaves
+   * without holding the others up. Every app in the group needs a library version that knows
+   * about namespaces.
+   *
+   * @param namespace letters, digits, '.', '_' and '-' only.
+   */
+  public SharedSharedPreferences getNamespace(@NonNull String namespace) {
+    if (!SharedProvider.isNamespace(namespace)) {
+      throw new IllegalArgumentException("Bad namespace " + namespace);
+    }
+    if (followMaster) refreshAuthority();
+    return new SharedSharedPreferences(context, authority, followMaster, namespace);
+  }
+
+  /**
+   * @return the namespace of this store, null for the default one.
+   */
+  @Nullable public String getNamespace() {
+    return namespace;
   }
 
   public SharedSharedPreferences refreshAuthority() {
     SharedProviderFinder finder = SharedProviderFinder.get(context);
-    authority = finder.findMasterProvider();
+    final String masterAuthority = finder.findMasterProvider();
+    if (!masterAuthority.equals(authority)) {
+      authority = masterAuthority;
+      // Follow the new master.
+      if (masterObserver != null) observeMaster();
+    }
+    return this;
+  }
+
+  /**
+   * Queries the master. A null cursor means it didn't answer, most likely its app was removed, so
+   * we elect again and the next call goes to whoever took over.
+   */
+  private Cursor query(Uri uri, String[] projection, String[] selectionArgs) {
+    SharedWriter.get().awaitPending(authority);
+    final Cursor cursor;
+    final long start = SharedMetrics.start();
+    SharedMetrics.beginSection(SharedMetrics.TRACE_READ);
+    try {
+      cursor = context.getContentResolver().query(uri, projection, null, selectionArgs, null);
+    } finally {
+      SharedMetrics.endSection();
+    }
+    SharedMetrics.getMetrics().onRead(SharedMetrics.since(start), cursor != null);
+    if (cursor == null && followMaster) {
+      Log.w("SharedProviders", "No answer from [" + authority + "], looking for the master again");
+      SharedProviderFinder.get(context).invalidate();
+      refreshAuthority();
+    }
+    return cursor;
+  }
+
+  /**
+   * Asks the master through {@link SharedProvider#call}, one Bundle each way and no cursor.
+   *
+   * @return null if the master doesn't take calls or didn't answer, use {@link #query} then.
+   */
+  @Nullable private Bundle call(String method, String arg, Bundle extras) {
+    SharedWriter.get().awaitPending(authority);
+    final ContentResolver resolver = context.getContentResolver();
+    // Masters that don't take calls are known without asking, that isn't a read.
+    if (!SharedCall.isSupported(resolver, authority)) return null;
+    final Bundle result;
+    final long start = SharedMetrics.start();
+    SharedMetrics.beginSection(SharedMetrics.TRACE_READ);
+    try {
+      result = SharedCall.call(resolver, authority, SharedProvider.getMethod(method, namespace),
+          arg, extras);
+    } finally {
+      SharedMetrics.endSection();
+    }
+    SharedMetrics.getMetrics().onRead(SharedMetrics.since(start), result != null);
+    return result;
+  }
+
+  @Nullable private Bundle callGet(String key, String type) {
+    final Bundle extras = new Bundle(1);
+    extras.putString(TYPE, type);
+    return call(SharedProvider.METHOD_GET, key, extras);
+  }
+
+  /**
+   * Keep an in-process copy of the masters values. Reads are then served from memory with no IPC,
+   * the copy is loaded lazily with {@link #getAll()} and dropped whenever the master notifies
+   * that something changed.
+   *
+   * Off by default, turn it on for hot keys read far more often than they are written.
+   */
+  public synchronized SharedSharedPreferences setCacheEnabled(boolean enabled) {
+    if (enabled == (cache != null)) return this;
+    if (enabled) {
+      cache = new SharedValueCache();
+      observeMaster();
+      cache.invalidate();
+    } else {
+      cache = null;
+      unobserveMasterIfUnused();
+    }
     return this;
   }
 
+  /**
+   * (Re)registers the master observer on the current authority. The master notifies each key
+   * Uri it writes, or just its authority when it can't say which keys changed.
+   */
+  private synchronized void observeMaster() {
+    if (masterObserver == null) {
+      masterObserver = new ContentObserver(null) {
+        @Override public void onChange(boolean selfChange) {
+          // Before Jelly Bean there is no Uri, so we can't tell which key.
+          onChange(selfChange, null);
+        }
+
+        @Override public void onChange(boolean selfChange, Uri uri) {
+          // The default store observes the named ones too, and a named one is told about
+          // clears of the default one.
+          if (uri != null && !isNamespace(SharedProvider.getNamespace(uri))) return;
+          final SharedValueCache cache = SharedSharedPreferences.this.cache;
+          if (cache != null) cache.invalidate();
+          final SharedChangeListeners listeners = SharedSharedPreferences.this.listeners;
+          if (listeners != null) listeners.changed(SharedChangeListeners.getKey(uri));
+        }
+      };
+    } else {
+      context.getContentResolver().unregisterContentObserver(masterObserver);
+      // Whatever we had from the old master may be stale.
+      if (cache != null) cache.invalidate();
+    }
+    context.getContentResolver()
+        .registerContentObserver(getBaseUri(authority, namespace), true, masterObserver);
+  }
+
+  private boolean isNamespace(@Nullable String namespace) {
+    return this.namespace == null ? namespace == null : this.namespace.equals(namespace);
+  }
+
+  private synchronized void unobserveMasterIfUnused() {
+    if (masterObserver == null || cache != null || (listeners != null && !listeners.isEmpty())) {
+      return;
+    }
+    context.getContentResolver().unregisterContentObserver(masterObserver);
+    masterObserver = null;
+  }
+
+  /**
+   * @return the cached values, loading them if needed, or null if caching is off.
+   */
+  @Nullable private Map<String, ?> getCachedValues() {
+    final SharedValueCache cache = this.cache;
+    if (cache == null) return null;
+    SharedWriter.get().awaitPending(authority);
+    Map<String, ?> values = cache.getValues();
+    SharedMetrics.getMetrics().onCacheRead(values != null);
+    if (values == null) {
+      final int generation = cache.getGeneration();
+      values = queryAll();
+      cache.setValues(values, generation);
+    }
+    return values;
+  }
+
+  /**
+   * Dumps the masters store in one query. The rows are paged over from the master as we read them
+   * so this is safe with large stores, but it is still a copy of everything, prefer
+   * {@link #getValues(Map)} when you know which keys you want.
+   */
   @Override public Map<String, ?> getAll() {
-    return null;
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return new HashMap<>(cached);
+    return queryAll();
+  }
+
+  private Map<String, Object> queryAll() {
+    Cursor cursor = query(getPathUri(authority, namespace, SharedProvider.PATH_ALL), null, null);
+    return getValues(cursor);
+  }
+
+  /**
+   * Like {@link SharedCursorUtils#getValues(Cursor)}, but blobs too large for the cursor are read
+   * as streams.
+   */
+  private Map<String, Object> getValues(Cursor cursor) {
+    final List<String> blobRefs = new ArrayList<>();
+    final Map<String, Object> values = SharedCursorUtils.getValues(cursor, blobRefs);
+    for (String key : blobRefs) {
+      final byte[] blob = readBlob(key);
+      if (blob != null) values.put(key, blob);
+    }
+    return values;
   }
 
   @Nullable @Override public Set<String> getStringSet(String key, Set<String> defValues) {
-    throw new UnsupportedOperationException("Not implemented.");
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getStringSet(cached, key, defValues);
+    final Bundle result = callGet(key, STRING_SET_TYPE);
+    if (result != null) {
+      final List<String> strings = result.getStringArrayList(VALUE);
+      return strings != null ? new HashSet<>(strings) : defValues;
+    }
+    Cursor cursor = query(getContentUri(authority, namespace, key, STRING_SET_TYPE), null, null);
+    return getStringSetValue(cursor, defValues);
+  }
+
+  /**
+   * Reads a blob, large ones are streamed from the master rather than sent in one go.
+   */
+  @Nullable public byte[] getBlob(String key, @Nullable byte[] def) {
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getBlob(cached, key, def);
+    final Bundle result = callGet(key, BLOB_TYPE);
+    if (result == null) {
+      final byte[] blob = readBlob(key);
+      return blob != null ? blob : def;
+    }
+    final Object value = toValue(result.get(VALUE));
+    return value instanceof byte[] ? (byte[]) value : def;
+  }
+
+  /**
+   * Streams the blob from the master.
+   *
+   * @return null if there is no such blob or it couldn't be read.
+   */
+  @Nullable private byte[] readBlob(String key) {
+    SharedWriter.get().awaitPending(authority);
+    final InputStream in;
+    try {
+      in = context.getContentResolver()
+          .openInputStream(getContentUri(authority, namespace, key, BLOB_TYPE));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    return in == null ? null : readFully(in, key);
+  }
+
+  @Nullable private static byte[] readFully(InputStream in, String key) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    try {
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      Log.w("SharedProviders", "Couldn't read blob " + key, e);
+      return null;
+    } finally {
+      try {
+        in.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Turns a value from a {@link SharedProvider#call} result into the type we hand out. String
+   * sets come as lists and large blobs as a pipe to read.
+   */
+  @Nullable private static Object toValue(Object value) {
+    if (value instanceof List) return new HashSet<>((List<?>) value);
+    if (value instanceof ParcelFileDescriptor) {
+      return readFully(new ParcelFileDescriptor.AutoCloseInputStream((ParcelFileDescriptor) value),
+          "from pipe");
+    }
+    return value;
   }
 
   @Override public String getString(String key, String def) {
-    Cursor cursor = context.getContentResolver()
-        .query(getContentUri(authority, key, STRING_TYPE), null, null, null, null);
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getString(cached, key, def);
+    final Bundle result = callGet(key, STRING_TYPE);
+    if (result != null) return result.containsKey(VALUE) ? result.getString(VALUE) : def;
+    Cursor cursor = query(getContentUri(authority, namespace, key, STRING_TYPE), null, null);
     return getStringValue(cursor, def);
   }
 
   public long getLong(String key, long def) {
-    Cursor cursor = context.getContentResolver()
-        .query(getContentUri(authority, key, LONG_TYPE), null, null, null, null);
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getLong(cached, key, def);
+    final Bundle result = callGet(key, LONG_TYPE);
+    if (result != null) return result.containsKey(VALUE) ? result.getLong(VALUE) : def;
+    Cursor cursor = query(getContentUri(authority, namespace, key, LONG_TYPE), null, null);
     return getLongValue(cursor, def);
   }
 
   public float getFloat(String key, float def) {
-    Cursor cursor = context.getContentResolver()
-        .query(getContentUri(authority, key, FLOAT_TYPE), null, null, null, null);
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getFloat(cached, key, def);
+    final Bundle result = callGet(key, FLOAT_TYPE);
+    if (result != null) return result.containsKey(VALUE) ? result.getFloat(VALUE) : def;
+    Cursor cursor = query(getContentUri(authority, namespace, key, FLOAT_TYPE), null, null);
     return getFloatValue(cursor, def);
   }
 
   public boolean getBoolean(String key, boolean def) {
-    Cursor cursor = context.getContentResolver()
-        .query(getContentUri(authority, key, BOOLEAN_TYPE), null, null, null, null);
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getBoolean(cached, key, def);
+    final Bundle result = callGet(key, BOOLEAN_TYPE);
+    if (result != null) return result.containsKey(VALUE) ? result.getBoolean(VALUE) : def;
+    Cursor cursor = query(getContentUri(authority, namespace, key, BOOLEAN_TYPE), null, null);
     return getBooleanValue(cursor, def);
   }
 
   public int getInt(String key, int def) {
-    Cursor cursor = context.getContentResolver()
-        .query(getContentUri(authority, key, INT_TYPE), null, null, null, null);
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getInt(cached, key, def);
+    final Bundle result = callGet(key, INT_TYPE);
+    if (result != null) return result.containsKey(VALUE) ? result.getInt(VALUE) : def;
+    Cursor cursor = query(getContentUri(authority, namespace, key, INT_TYPE), null, null);
     return getIntValue(cursor, def);
   }
 
+  /**
+   * Reads through a {@link SharedKey} handle, nothing is allocated when the cache has the value.
+   */
+  public boolean getBoolean(@NonNull SharedKey<Boolean> key, boolean def) {
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getBoolean(cached, key.getName(), def);
+    final Bundle result = call(SharedProvider.METHOD_GET, key.getName(), key.getExtras());
+    if (result != null) return result.containsKey(VALUE) ? result.getBoolean(VALUE) : def;
+    return getBooleanValue(query(key.getUri(authority, namespace), null, null), def);
+  }
+
+  public int getInt(@NonNull SharedKey<Integer> key, int def) {
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getInt(cached, key.getName(), def);
+    final Bundle result = call(SharedProvider.METHOD_GET, key.getName(), key.getExtras());
+    if (result != null) return result.containsKey(VALUE) ? result.getInt(VALUE) : def;
+    return getIntValue(query(key.getUri(authority, namespace), null, null), def);
+  }
+
+  public long getLong(@NonNull SharedKey<Long> key, long def) {
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getLong(cached, key.getName(), def);
+    final Bundle result = call(SharedProvider.METHOD_GET, key.getName(), key.getExtras());
+    if (result != null) return result.containsKey(VALUE) ? result.getLong(VALUE) : def;
+    return getLongValue(query(key.getUri(authority, namespace), null, null), def);
+  }
+
+  public float getFloat(@NonNull SharedKey<Float> key, float def) {
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getFloat(cached, key.getName(), def);
+    final Bundle result = call(SharedProvider.METHOD_GET, key.getName(), key.getExtras());
+    if (result != null) return result.containsKey(VALUE) ? result.getFloat(VALUE) : def;
+    return getFloatValue(query(key.getUri(authority, namespace), null, null), def);
+  }
+
+  public String getString(@NonNull SharedKey<String> key, String def) {
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return SharedValueCache.getString(cached, key.getName(), def);
+    final Bundle result = call(SharedProvider.METHOD_GET, key.getName(), key.getExtras());
+    if (result != null) return result.containsKey(VALUE) ? result.getString(VALUE) : def;
+    return getStringValue(query(key.getUri(authority, namespace), null, null), def);
+  }
+
+  /**
+   * Reads many values from the master in one round trip, e.g. everything a settings screen needs.
+   *
+   * @param keyTypes the keys to read mapped to their type, e.g. {@link #STRING_TYPE}.
+   * @return the values found, keys which are not set are missing from the map. Booleans come back
+   * as {@link Boolean}.
+   */
+  public Map<String, Object> getValues(@NonNull Map<String, String> keyTypes) {
+    final int size = keyTypes.size();
+    final String[] keys = new String[size];
+    final String[] types = new String[size];
+    int i = 0;
+    for (Map.Entry<String, String> entry : keyTypes.entrySet()) {
+      keys[i] = entry.getKey();
+      types[i] = entry.getValue();
+      i++;
+    }
+    final Bundle extras = new Bundle(2);
+    extras.putStringArray(KEY, keys);
+    extras.putStringArray(TYPE, types);
+    final Bundle result = call(SharedProvider.METHOD_GET_MANY, null, extras);
+    if (result != null) {
+      final Map<String, Object> values = new HashMap<>(result.size());
+      for (String key : result.keySet()) {
+        values.put(key, toValue(result.get(key)));
+      }
+      return values;
+    }
+    Cursor cursor = query(getBatchUri(authority, namespace), keys, types);
+    return getValues(cursor);
+  }
+
+  /**
+   * @return the masters store version, it goes up with every write. 0 if unknown.
+   */
+  public long getVersion() {
+    final Bundle result = call(SharedProvider.METHOD_VERSION, null, null);
+    if (result != null) return result.getLong(VERSION);
+    Cursor cursor =
+        query(getPathUri(authority, namespace, SharedProvider.PATH_VERSION), null, null);
+    return getLongValue(cursor, 0L);
+  }
+
+  /**
+   * Reads only what changed on the master after this version. Read {@link #getVersion()} first
+   * and keep it for the next call, anything written in between is just read again. Keys removed
+   * long ago may be missing, see {@link SharedStore#getVersionsSince(long)}.
+   *
+   * @return changed keys with their current value, removed keys map to null.
+   */
+  public Map<String, Object> getChangesSince(long version) {
+    final Uri uri = getPathUri(authority, namespace, SharedProvider.PATH_CHANGES)
+        .buildUpon()
+        .appendPath(String.valueOf(version))
+        .build();
+    return getValues(query(uri, null, null));
+  }
+
   @Override public boolean contains(String key) {
-    return false;
+    final Map<String, ?> cached = getCachedValues();
+    if (cached != null) return cached.containsKey(key);
+    Cursor cursor = query(getPathUri(authority, namespace, SharedProvider.PATH_CONTAINS),
+        new String[] { key }, null);
+    if (cursor == null) return false;
+    final boolean contains = cursor.getCount() > 0;
+    cursor.close();
+    return contains;
   }
 
   @Override public SharedEditor edit() {
     refreshAuthority();
-    return new SharedEditor(context, authority);
+    return new SharedEditor(context, authority, namespace, cache, followMaster);
+  }
+
+  /**
+   * Groups the commits of many editors so the master writes them all at once, in one store commit
+   * and one sync to the slaves, e.g. for a migration. Nothing is sent until the transaction itself
+   * is committed.
+   */
+  public SharedTransaction beginTransaction() {
+    refreshAuthority();
+    return new SharedTransaction(context, authority, namespace, cache, followMaster);
   }
 
-  @Override
-  public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-    throw new UnsupportedOperationException("Not implemented.");
+  /**
+   * Listeners are called on the main thread with each key changed on the master, a burst of
+   * writes is coalesced into one call per key. The key is null when the master can't say which
+   * keys changed, e.g. after a clear, read what you need again. As with the platform
+   * SharedPreferences the listener is only weakly held.
+   */
+  @Override public synchronized void registerOnSharedPreferenceChangeListener(
+      OnSharedPreferenceChangeListener listener) {
+    if (listeners == null) {
+      listeners = new SharedChangeListeners(this, new Handler(Looper.getMainLooper()));
+    }
+    listeners.register(listener);
+    if (masterObserver == null) observeMaster();
   }
 
-  @Override public void unregisterOnSharedPreferenceChangeListener(
+  @Override public synchronized void unregisterOnSharedPreferenceChangeListener(
       OnSharedPreferenceChangeListener listener) {
-    throw new UnsupportedOperationException("Not implemented.");
+    if (listeners == null) return;
+    listeners.unregister(listener);
+    unobserveMasterIfUnused();
   }
 
   public static class SharedEditor implements SharedPreferences.Editor {
 
     private final Context context;
+    private final boolean followMaster;
     private final String authority;
+    @Nullable private final String namespace;
+    @Nullable private final SharedValueCache cache;
+    /**
+     * Commits go to this instead of the master, if set.
+     */
+    @Nullable private final SharedTransaction transaction;
 
     SharedEditor(Context context, String authority) {
+      this(context, authority, null);
+    }
+
+    SharedEditor(Context context, String authority, @Nullable String namespace) {
+      this(context, authority, namespace, null, false);
+    }
+
+    SharedEditor(Context context, String authority, @Nullable String namespace,
+        @Nullable SharedValueCache cache, boolean followMaster) {
+      this(context, authority, namespace, cache, followMaster, null);
+    }
+
+    private SharedEditor(Context context, String authority, @Nullable String namespace,
+        @Nullable SharedValueCache cache, boolean followMaster,
+        @Nullable SharedTransaction transaction) {
       this.context = context;
       this.authority = authority;
+      this.namespace = namespace;
+      this.cache = cache;
+      this.followMaster = followMaster;
+      this.transaction = transaction;
     }
 
     private ContentValues values = new ContentValues();
 
+    /**
+     * Queues the edits and returns straight away, they go to the master in the background. Reads
+     * through {@link SharedSharedPreferences} wait a little for them, so they see our own writes
+     * unless the master is slow to take them.
+     */
     @Override public void apply() {
-      context.getContentResolver().insert(getContentUri(authority, KEY, TYPE), values);
-      values.clear();
+      if (transaction != null) {
+        transaction.add(takeValues());
+        return;
+      }
+      write();
     }
 
+    /**
+     * Same as {@link #apply()} but waits for the master to take the write.
+     *
+     * @return false if the master didn't take it. If we found the master ourselves the write is
+     * kept and sent once there is a master to take it. Always true in a transaction, it is only
+     * staged.
+     */
     @Override public boolean commit() {
-      apply();
-      return true;
+      if (transaction != null) {
+        transaction.add(takeValues());
+        return true;
+      }
+      return write().await();
+    }
+
+    private SharedWriter.Write write() {
+      return SharedWriter.get()
+          .insert(context, authority, namespace, takeValues(), followMaster, cache);
+    }
+
+    private ContentValues takeValues() {
+      final ContentValues values = this.values;
+      this.values = new ContentValues();
+      return values;
     }
 
     @Override public SharedEditor putString(String key, String value) {
@@ -159,8 +688,20 @@ public class SharedSharedPreferences implements SharedPreferences, Types {
       return this;
     }
 
-    @Override public SharedEditor putStringSet(String key, Set<String> values) {
-      throw new UnsupportedOperationException("Not implemented.");
+    @Override public SharedEditor putStringSet(String key, @Nullable Set<String> values) {
+      if (values == null) return remove(key);
+      this.values.put(key, SharedChangesCodec.encodeValue(new HashSet<>(values)));
+      return this;
+    }
+
+    /**
+     * Stores raw bytes. Large blobs are fine, they are streamed to readers rather than put in a
+     * cursor.
+     */
+    public SharedEditor putBlob(String key, @Nullable byte[] value) {
+      if (value == null) return remove(key);
+      values.put(key, SharedChangesCodec.encodeValue(value));
+      return this;
     }
 
     @Override public SharedEditor putLong(String key, long value) {
@@ -183,6 +724,33 @@ public class SharedSharedPreferences implements SharedPreferences, Types {
       return this;
     }
 
+    /**
+     * Puts any supported value, null removes the key.
+     */
+    SharedEditor putValue(String key, Object value) {
+      if (value == null) {
+        remove(key);
+      } else if (value instanceof String) {
+        putString(key, (String) value);
+      } else if (value instanceof Boolean) {
+        putBoolean(key, (Boolean) value);
+      } else if (value instanceof Long) {
+        putLong(key, (Long) value);
+      } else if (value instanceof Integer) {
+        putInt(key, (Integer) value);
+      } else if (value instanceof Float) {
+        putFloat(key, (Float) value);
+      } else if (value instanceof Set) {
+        @SuppressWarnings("unchecked") final Set<String> strings = (Set<String>) value;
+        putStringSet(key, strings);
+      } else if (value instanceof byte[]) {
+        putBlob(key, (byte[]) value);
+      } else {
+        throw new IllegalArgumentException("Unsupported type " + value.getClass() + " for " + key);
+      }
+      return this;
+    }
+
     @Override public SharedEditor remove(String key) {
       values.putNull(key);
       return this;
@@ -190,11 +758,90 @@ public class SharedSharedPreferences implements SharedPreferences, Types {
 
     /**
      * Call content provider method immediately. apply or commit is not required for this case
-     * So it's sync method.
+     * So it's sync method. It still goes after any earlier apply, they are queued in order.
+     * In a transaction the clear is staged with it instead.
      */
     @Override public SharedEditor clear() {
-      context.getContentResolver().delete(getContentUri(authority, KEY, TYPE), null, null);
+      if (transaction != null) {
+        transaction.clear();
+        return this;
+      }
+      SharedWriter.get().clear(context, authority, namespace, followMaster, cache).await();
+      return this;
+    }
+  }
+
+  /**
+   * Editor commits staged to be written together, see {@link #beginTransaction()}. Later commits
+   * win for keys written more than once.
+   */
+  public static class SharedTransaction {
+
+    private final Context context;
+    private final String authority;
+    @Nullable private final String namespace;
+    @Nullable private final SharedValueCache cache;
+    private final boolean followMaster;
+    private final List<ContentValues> rows = new ArrayList<>();
+    private boolean clear;
+
+    SharedTransaction(Context context, String authority, @Nullable String namespace,
+        @Nullable SharedValueCache cache, boolean followMaster) {
+      this.context = context;
+      this.authority = authority;
+      this.namespace = namespace;
+      this.cache = cache;
+      this.followMaster = followMaster;
+    }
+
+    /**
+     * @return an editor whose commits are staged in this transaction.
+     */
+    public SharedEditor edit() {
+      return new SharedEditor(context, authority, namespace, cache, followMaster, this);
+    }
+
+    /**
+     * Clears the store first, dropping anything staged so far.
+     */
+    public synchronized SharedTransaction clear() {
+      rows.clear();
+      clear = true;
       return this;
     }
+
+    synchronized void add(ContentValues values) {
+      if (values.size() > 0) rows.add(values);
+    }
+
+    /**
+     * Sends the transaction to the master in the background.
+     */
+    public void apply() {
+      write();
+    }
+
+    /**
+     * Same as {@link #apply()} but waits for the master to take it.
+     *
+     * @return false if the master didn't take it, see {@link SharedEditor#commit()}.
+     */
+    public boolean commit() {
+      final SharedWriter.Write write = write();
+      return write == null || write.await();
+    }
+
+    /**
+     * @return the queued write, or null if there was nothing to send.
+     */
+    @Nullable private synchronized SharedWriter.Write write() {
+      if (!clear && rows.isEmpty()) return null;
+      final List<ContentValues> rows = new ArrayList<>(this.rows);
+      final boolean clear = this.clear;
+      this.rows.clear();
+      this.clear = false;
+      return SharedWriter.get()
+          .transaction(context, authority, namespace, clear, rows, followMaster, cache);
+    }
   }
 }
@@ -0,0 +1,53 @@
+package com.owlr.provider;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Storage engine behind a {@link SharedProvider}, return one from a {@link SharedStoreProducer}.
+ *
+ * Values are String, Boolean, Integer, Long, Float, Set of String or byte[]. Besides the values a
+ * store keeps a version that goes up with every write, and the version each key was last written
+ * or removed at, so slaves and readers can ask for just what changed.
+ *
+ * The provider makes one write at a time, reads can come in from any thread alongside it.
+ */
+public interface SharedStore {
+
+  boolean contains(@NonNull String key);
+
+  /**
+   * @return the value, or null if there is none.
+   */
+  @Nullable Object get(@NonNull String key);
+
+  /**
+   * @return a snapshot of every entry to iterate over, later writes don't change it.
+   */
+  @NonNull Map<String, ?> getAll();
+
+  /**
+   * Applies a batch in one go, so readers see all of it or none of it. Every key written, removed
+   * or cleared is stamped with the next version.
+   *
+   * @param clear remove everything before writing the values.
+   * @param values keys to their new value, a null value removes the key.
+   * @return the new store version.
+   */
+  long write(boolean clear, @NonNull Map<String, ?> values);
+
+  /**
+   * @return the version of the last write, 0 if there hasn't been one.
+   */
+  long getVersion();
+
+  /**
+   * A store may forget removed keys after a while, as {@link LogSharedStore} does when it compacts,
+   * they are then missing here however far back the version.
+   *
+   * @return every key written or removed after this version, mapped to the version it last
+   * changed at.
+   */
+  @NonNull Map<String, Long> getVersionsSince(long version);
+}
@@ -0,0 +1,20 @@
+package com.owlr.provider;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+/**
+ * Implement this on the Application class to pick the storage engine of the content provider,
+ * e.g. a {@link SQLiteSharedStore} for large stores. Takes precedence over a
+ * {@link SharedPreferencesProducer}.
+ */
+public interface SharedStoreProducer {
+
+  /**
+   * Called once when the provider is created, keep the same engine and name across releases or
+   * the stored values are left behind.
+   *
+   * @return the store, or null to use SharedPreferences.
+   */
+  @Nullable SharedStore provideSharedStore(Context context);
+}
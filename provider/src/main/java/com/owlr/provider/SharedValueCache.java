@@ -0,0 +1,84 @@
+package com.owlr.provider;
+
+import android.support.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-process copy of the masters key/value map used by {@link SharedSharedPreferences} when
+ * caching is turned on.
+ *
+ * The map is swapped as a whole, never mutated, so reads are a lock free field read plus a map
+ * lookup. Any change on the master invalidates the whole copy, it is re-loaded lazily on the next
+ * read.
+ */
+class SharedValueCache {
+
+  private volatile Map<String, ?> values;
+  private int generation;
+
+  /**
+   * @return the cached map, or null if it needs (re)loading.
+   */
+  @Nullable Map<String, ?> getValues() {
+    return values;
+  }
+
+  /**
+   * Call before loading, pass the result to {@link #setValues(Map, int)}.
+   */
+  synchronized int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Stores a freshly loaded map. Ignored if the cache was invalidated since
+   * {@link #getGeneration()} was read, as the map may already be stale.
+   */
+  synchronized void setValues(Map<String, ?> values, int generation) {
+    if (this.generation != generation) return;
+    this.values = Collections.unmodifiableMap(values);
+  }
+
+  synchronized void invalidate() {
+    generation++;
+    values = null;
+  }
+
+  static String getString(Map<String, ?> values, String key, String def) {
+    final Object value = values.get(key);
+    return value instanceof String ? (String) value : def;
+  }
+
+  static boolean getBoolean(Map<String, ?> values, String key, boolean def) {
+    final Object value = values.get(key);
+    return value instanceof Boolean ? (Boolean) value : def;
+  }
+
+  static int getInt(Map<String, ?> values, String key, int def) {
+    final Object value = values.get(key);
+    return value instanceof Integer ? (Integer) value : def;
+  }
+
+  static long getLong(Map<String, ?> values, String key, long def) {
+    final Object value = values.get(key);
+    return value instanceof Long ? (Long) value : def;
+  }
+
+  static float getFloat(Map<String, ?> values, String key, float def) {
+    final Object value = values.get(key);
+    return value instanceof Float ? (Float) value : def;
+  }
+
+  @SuppressWarnings("unchecked")
+  static Set<String> getStringSet(Map<String, ?> values, String key, Set<String> def) {
+    final Object value = values.get(key);
+    return value instanceof Set ? (Set<String>) value : def;
+  }
+
+  static byte[] getBlob(Map<String, ?> values, String key, byte[] def) {
+    final Object value = values.get(key);
+    return value instanceof byte[] ? (byte[]) value : def;
+  }
+}
@@ -0,0 +1,115 @@
+package com.owlr.provider;
+
+import android.database.AbstractCursor;
+import android.support.annotation.Nullable;
+
+/**
+ * The answer to a single key/type query, one column named after the key and one row if it is
+ * stored.
+ *
+ * A MatrixCursor would copy the value into an Object[] row, boxing booleans as ints on the way.
+ * This unpacks the stored value once into a primitive field, which is what the platform reads
+ * when it fills the client's CursorWindow. The value still comes out of the {@link SharedStore}
+ * boxed, this only saves the row and the copies made from it.
+ */
+final class SharedValueCursor extends AbstractCursor {
+
+  private final String[] columns;
+  private final int fieldType;
+  private final long longValue;
+  private final double doubleValue;
+  /**
+   * The String or byte[] value, if it is one.
+   */
+  @Nullable private final Object objectValue;
+
+  /**
+   * @param value the stored value, null for no row.
+   */
+  SharedValueCursor(String key, @Nullable Object value) {
+    columns = new String[] { key };
+    if (value == null) {
+      fieldType = -1;
+      longValue = 0L;
+      doubleValue = 0d;
+      objectValue = null;
+    } else if (value instanceof Boolean) {
+      fieldType = FIELD_TYPE_INTEGER;
+      longValue = (Boolean) value ? 1L : 0L;
+      doubleValue = longValue;
+      objectValue = null;
+    } else if (value instanceof Float || value instanceof Double) {
+      fieldType = FIELD_TYPE_FLOAT;
+      doubleValue = ((Number) value).doubleValue();
+      longValue = (long) doubleValue;
+      objectValue = null;
+    } else if (value instanceof Number) {
+      fieldType = FIELD_TYPE_INTEGER;
+      longValue = ((Number) value).longValue();
+      doubleValue = longValue;
+      objectValue = null;
+    } else {
+      // Strings as they are, string sets encoded and large blobs left out.
+      objectValue = SharedValuesCursor.toColumnValue(value);
+      fieldType = objectValue == null ? FIELD_TYPE_NULL
+          : objectValue instanceof byte[] ? FIELD_TYPE_BLOB : FIELD_TYPE_STRING;
+      longValue = 0L;
+      doubleValue = 0d;
+    }
+  }
+
+  @Override public int getCount() {
+    return fieldType < 0 ? 0 : 1;
+  }
+
+  @Override public String[] getColumnNames() {
+    return columns;
+  }
+
+  @Override public int getType(int column) {
+    return fieldType;
+  }
+
+  @Override public String getString(int column) {
+    switch (fieldType) {
+      case FIELD_TYPE_INTEGER:
+        return String.valueOf(longValue);
+      case FIELD_TYPE_FLOAT:
+        return String.valueOf((float) doubleValue);
+      case FIELD_TYPE_STRING:
+        return (String) objectValue;
+      default:
+        return null;
+    }
+  }
+
+  @Override public short getShort(int column) {
+    return (short) getLong(column);
+  }
+
+  @Override public int getInt(int column) {
+    return (int) getLong(column);
+  }
+
+  @Override public long getLong(int column) {
+    if (fieldType == FIELD_TYPE_STRING) return Long.parseLong((String) objectValue);
+    return longValue;
+  }
+
+  @Override public float getFloat(int column) {
+    return (float) getDouble(column);
+  }
+
+  @Override public double getDouble(int column) {
+    if (fieldType == FIELD_TYPE_STRING) return Double.parseDouble((String) objectValue);
+    return doubleValue;
+  }
+
+  @Override public byte[] getBlob(int column) {
+    return fieldType == FIELD_TYPE_BLOB ? (byte[]) objectValue : null;
+  }
+
+  @Override public boolean isNull(int column) {
+    return fieldType == FIELD_TYPE_NULL;
+  }
+}
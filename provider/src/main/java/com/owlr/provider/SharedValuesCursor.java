@@ -0,0 +1,184 @@
+package com.owlr.provider;
+
+import android.database.AbstractCursor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read only {@link Types#KEY}, {@link Types#TYPE}, {@link Types#VALUE} cursor over a snapshot of
+ * store entries.
+ *
+ * Unlike a MatrixCursor this doesn't copy every value into its own row up front, rows are read
+ * straight from the entries as they are asked for. Across processes the platform fills the
+ * client's CursorWindow a page at a time from this cursor, so a dump of thousands of keys is never
+ * held twice in the provider.
+ *
+ * String sets come back as {@link SharedChangesCodec#encodeValue} blobs. Blobs bigger than
+ * {@link #MAX_INLINE_BLOB_BYTES} are left out as {@link #BLOB_REF_TYPE} rows, they would take up
+ * most of a CursorWindow, read them as a stream instead.
+ */
+class SharedValuesCursor extends AbstractCursor implements Types {
+
+  static final int MAX_INLINE_BLOB_BYTES = 64 * 1024;
+
+  private static final String[] COLUMNS = { KEY, TYPE, VALUE };
+  private static final int COLUMN_KEY = 0;
+  private static final int COLUMN_TYPE = 1;
+  private static final int COLUMN_VALUE = 2;
+
+  private final List<Map.Entry<String, ?>> entries;
+  /**
+   * {@link #toColumnValue(Object)} of the row at {@link #columnValuePosition}, the platform asks
+   * for it more than once a row and string sets are encoded for it.
+   */
+  private Object columnValue;
+  private int columnValuePosition = -1;
+
+  /**
+   * @param entries the entries to serve, values must be one of the supported {@link Types}.
+   */
+  SharedValuesCursor(List<Map.Entry<String, ?>> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Snapshot of every entry in this map apart from the ones we use internally.
+   */
+  static SharedValuesCursor from(Map<String, ?> values) {
+    final List<Map.Entry<String, ?>> entries = new ArrayList<>(values.size());
+    for (Map.Entry<String, ?> entry : values.entrySet()) {
+      if (MASTER_KEY.equals(entry.getKey()) || entry.getValue() == null) continue;
+      entries.add(entry);
+    }
+    return new SharedValuesCursor(entries);
+  }
+
+  /**
+   * The {@link Types} name for this stored value.
+   */
+  static String getValueType(Object value) {
+    if (value instanceof String) {
+      return STRING_TYPE;
+    } else if (value instanceof Boolean) {
+      return BOOLEAN_TYPE;
+    } else if (value instanceof Long) {
+      return LONG_TYPE;
+    } else if (value instanceof Integer) {
+      return INT_TYPE;
+    } else if (value instanceof Float) {
+      return FLOAT_TYPE;
+    } else if (value instanceof Set) {
+      return STRING_SET_TYPE;
+    } else if (value instanceof byte[]) {
+      return BLOB_TYPE;
+    }
+    throw new IllegalArgumentException("Unsupported type " + value);
+  }
+
+  /**
+   * The type of a row for this value, as {@link #getValueType(Object)} apart from large blobs.
+   */
+  static String getRowType(Object value) {
+    return isLargeBlob(value) ? BLOB_REF_TYPE : getValueType(value);
+  }
+
+  /**
+   * This value in the form we put in a cursor column, booleans as 1/0, string sets encoded and
+   * large blobs left out.
+   */
+  static Object toColumnValue(Object value) {
+    if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+    if (value instanceof Set) return SharedChangesCodec.encodeValue(value);
+    if (isLargeBlob(value)) return null;
+    return value;
+  }
+
+  private static boolean isLargeBlob(Object value) {
+    return value instanceof byte[] && ((byte[]) value).length > MAX_INLINE_BLOB_BYTES;
+  }
+
+  @Override public int getCount() {
+    return entries.size();
+  }
+
+  @Override public String[] getColumnNames() {
+    return COLUMNS;
+  }
+
+  @Override public int getType(int column) {
+    switch (column) {
+      case COLUMN_KEY:
+      case COLUMN_TYPE:
+        return FIELD_TYPE_STRING;
+      default:
+        final Object value = getColumnValue();
+        if (value == null) return FIELD_TYPE_NULL;
+        if (value instanceof byte[]) return FIELD_TYPE_BLOB;
+        if (value instanceof Float) return FIELD_TYPE_FLOAT;
+        if (value instanceof String) return FIELD_TYPE_STRING;
+        return FIELD_TYPE_INTEGER;
+    }
+  }
+
+  @Override public String getString(int column) {
+    switch (column) {
+      case COLUMN_KEY:
+        return entries.get(getPosition()).getKey();
+      case COLUMN_TYPE:
+        return getRowType(getValue());
+      default:
+        final Object value = getValue();
+        return value instanceof Boolean ? String.valueOf(getLong(column)) : String.valueOf(value);
+    }
+  }
+
+  @Override public short getShort(int column) {
+    return (short) getLong(column);
+  }
+
+  @Override public int getInt(int column) {
+    return (int) getLong(column);
+  }
+
+  @Override public long getLong(int column) {
+    final Object value = getValue();
+    if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+    if (value instanceof Number) return ((Number) value).longValue();
+    return Long.parseLong(String.valueOf(value));
+  }
+
+  @Override public float getFloat(int column) {
+    return (float) getDouble(column);
+  }
+
+  @Override public double getDouble(int column) {
+    final Object value = getValue();
+    if (value instanceof Number) return ((Number) value).doubleValue();
+    return getLong(column);
+  }
+
+  @Override public byte[] getBlob(int column) {
+    if (column != COLUMN_VALUE) return super.getBlob(column);
+    final Object value = getColumnValue();
+    return value instanceof byte[] ? (byte[]) value : null;
+  }
+
+  @Override public boolean isNull(int column) {
+    if (column == COLUMN_VALUE) return getColumnValue() == null;
+    return column != COLUMN_KEY && getValue() == null;
+  }
+
+  private Object getColumnValue() {
+    if (columnValuePosition != getPosition()) {
+      columnValue = toColumnValue(getValue());
+      columnValuePosition = getPosition();
+    }
+    return columnValue;
+  }
+
+  private Object getValue() {
+    return entries.get(getPosition()).getValue();
+  }
+}
@@ -0,0 +1,62 @@
+package com.owlr.provider;
+
+import android.content.SharedPreferences;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a monotonically increasing version for a store, plus the version each key was last
+ * written or removed at. This lets anyone ask "what changed since version x" and only get those
+ * keys back, removed keys included.
+ *
+ * Versions are kept in their own SharedPreferences next to the store they describe.
+ */
+class SharedVersions {
+
+  private static final String VERSION_KEY = "version";
+  private static final String KEY_PREFIX = "key:";
+
+  private final SharedPreferences versions;
+  private long version;
+
+  SharedVersions(SharedPreferences versions) {
+    this.versions = versions;
+    this.version = versions.getLong(VERSION_KEY, 0L);
+  }
+
+  synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * Stamps these keys, written or removed, with the next version.
+   *
+   * @return the new store version.
+   */
+  synchronized long update(Collection<String> keys) {
+    version++;
+    final SharedPreferences.Editor editor = versions.edit();
+    for (String key : keys) {
+      editor.putLong(KEY_PREFIX + key, version);
+    }
+    editor.putLong(VERSION_KEY, version);
+    editor.apply();
+    return version;
+  }
+
+  /**
+   * @return the keys written or removed after this version mapped to the version they changed at.
+   */
+  synchronized Map<String, Long> getVersionsSince(long since) {
+    final Map<String, Long> keys = new HashMap<>();
+    if (since >= version) return keys;
+    for (Map.Entry<String, ?> entry : versions.getAll().entrySet()) {
+      final String key = entry.getKey();
+      if (key.startsWith(KEY_PREFIX) && (Long) entry.getValue() > since) {
+        keys.put(key.substring(KEY_PREFIX.length()), (Long) entry.getValue());
+      }
+    }
+    return keys;
+  }
+}
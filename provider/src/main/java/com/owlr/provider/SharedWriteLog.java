@@ -0,0 +1,133 @@
+package com.owlr.provider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Append only file of writes the master couldn't take, kept until they can be sent again.
+ *
+ * Each frame is a length, a {@link SharedChangesCodec} payload and a CRC32 of it. Appends are
+ * only buffered, call {@link #sync()} once for a batch of them. A frame torn by a crash fails its
+ * length or CRC check and it and anything after it are dropped.
+ */
+final class SharedWriteLog {
+
+  /**
+   * Anything claiming to be bigger than this is garbage, not a frame.
+   */
+  private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+  private final File file;
+  private FileOutputStream fileOut;
+  private DataOutputStream out;
+
+  SharedWriteLog(File file) {
+    this.file = file;
+  }
+
+  synchronized boolean isEmpty() {
+    return out == null && file.length() == 0;
+  }
+
+  /**
+   * Buffers a frame, it is not durable until {@link #sync()}.
+   */
+  synchronized void append(SharedChanges changes) throws IOException {
+    if (out == null) {
+      // Cut off a frame torn by a crash, or it would hide everything we add after it.
+      final long valid = scan(null);
+      if (valid < file.length()) {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+          raf.setLength(valid);
+        } finally {
+          raf.close();
+        }
+      }
+      fileOut = new FileOutputStream(file, true);
+      out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+    final byte[] payload = SharedChangesCodec.encode(changes, true);
+    final CRC32 crc = new CRC32();
+    crc.update(payload);
+    out.writeInt(payload.length);
+    out.write(payload);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /**
+   * Flushes and fsyncs everything appended so far.
+   */
+  synchronized void sync() throws IOException {
+    if (out == null) return;
+    out.flush();
+    fileOut.getFD().sync();
+  }
+
+  /**
+   * @return every intact frame merged in order, empty if there are none.
+   */
+  synchronized SharedChanges read() throws IOException {
+    sync();
+    final SharedChanges changes = new SharedChanges();
+    scan(changes);
+    return changes;
+  }
+
+  /**
+   * Walks the intact frames.
+   *
+   * @param into merges the frames into this, can be null.
+   * @return length of the file up to the end of the last intact frame.
+   */
+  private long scan(SharedChanges into) throws IOException {
+    if (!file.exists()) return 0L;
+    final DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    long valid = 0L;
+    try {
+      final CRC32 crc = new CRC32();
+      while (true) {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) break;
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload);
+        if (in.readInt() != (int) crc.getValue()) break;
+        if (into != null) into.merge(SharedChangesCodec.decode(payload));
+        valid += 8 + length;
+      }
+    } catch (EOFException ignored) {
+      // End of the file or a torn frame, either way we're done.
+    } finally {
+      in.close();
+    }
+    return valid;
+  }
+
+  /**
+   * Drops everything, once it has been sent.
+   */
+  synchronized void clear() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException ignored) {
+      }
+      out = null;
+      fileOut = null;
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
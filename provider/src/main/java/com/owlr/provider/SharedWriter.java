@@ -0,0 +1,528 @@
+package com.owlr.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.owlr.provider.SharedSharedPreferences.getContentUri;
+
+/**
+ * Sends editor writes to the master off the calling thread, one at a time and in order.
+ *
+ * Writes queue up behind the one in flight. A write to the same place as the last queued one is
+ * merged into it, so a burst of edits becomes a single insert.
+ *
+ * Writes to the master that it doesn't take are kept in a {@link SharedWriteLog} rather than
+ * lost. The log is sent on, to whoever is master by then, before the next write goes out. Once
+ * there is anything in the log new writes go to the back of it, so they stay in order. Each
+ * namespace has a log of its own, they are versioned apart on the master anyway.
+ */
+class SharedWriter implements Types {
+
+  static final String LOG_FILE = "shared_write_log";
+  /**
+   * Logs of named stores are {@link #LOG_FILE} with this and the namespace after it.
+   */
+  static final String NAMESPACE_LOG_SUFFIX = "_ns_";
+  /**
+   * Longest a read waits for our own writes, often on the main thread. A master that is slow to
+   * answer, or an election, shouldn't hold it up, the read just sees the old value then.
+   */
+  static final long MAX_READ_WAIT_MILLIS = 200L;
+
+  private static SharedWriter sInstance;
+
+  static synchronized SharedWriter get() {
+    if (sInstance == null) {
+      sInstance = new SharedWriter(Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(@NonNull Runnable runnable) {
+          final Thread thread = new Thread(runnable, "SharedProvider-Writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      }));
+    }
+    return sInstance;
+  }
+
+  private final Executor executor;
+  private final ArrayDeque<Write> queue = new ArrayDeque<>();
+  private final Runnable drainRunnable = new Runnable() {
+    @Override public void run() {
+      drain();
+    }
+  };
+  private Write inFlight;
+  private boolean draining;
+  /**
+   * A replay is queued and hasn't finished, finding the master for it may ask for another.
+   */
+  private boolean replaying;
+  /**
+   * Write logs by namespace, null for the default store.
+   */
+  private final Map<String, SharedWriteLog> logs = new HashMap<>();
+
+  SharedWriter(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Queues an insert of these values, the caller must not touch them afterwards.
+   *
+   * @param followMaster this is a write to the master, elect again and retry once if it doesn't
+   * take it, then keep it in the log.
+   * @param cache dropped once the write is done, can be null.
+   */
+  Write insert(Context context, String authority, ContentValues values, boolean followMaster,
+      @Nullable SharedValueCache cache) {
+    return insert(context, authority, null, values, followMaster, cache);
+  }
+
+  /**
+   * @param namespace the store to write to, null for the default one.
+   */
+  Write insert(Context context, String authority, @Nullable String namespace,
+      ContentValues values, boolean followMaster, @Nullable SharedValueCache cache) {
+    synchronized (this) {
+      final Write last = queue.peekLast();
+      if (last != null && last.canMerge(authority, namespace, followMaster, cache)) {
+        last.rows.get(last.rows.size() - 1).putAll(values);
+        return last;
+      }
+    }
+    return enqueue(new Write(context, authority, namespace, false,
+        Collections.singletonList(values), followMaster, cache));
+  }
+
+  /**
+   * Queues a transaction, the master writes all of it at once or none of it.
+   *
+   * @param clear clear the store before writing the rows.
+   * @param rows the caller must not touch them afterwards.
+   */
+  Write transaction(Context context, String authority, boolean clear, List<ContentValues> rows,
+      boolean followMaster, @Nullable SharedValueCache cache) {
+    return transaction(context, authority, null, clear, rows, followMaster, cache);
+  }
+
+  Write transaction(Context context, String authority, @Nullable String namespace, boolean clear,
+      List<ContentValues> rows, boolean followMaster, @Nullable SharedValueCache cache) {
+    return enqueue(new Write(context, authority, namespace, clear, rows, followMaster, cache));
+  }
+
+  /**
+   * Queues a clear of the whole store, after anything already queued.
+   */
+  Write clear(Context context, String authority, boolean followMaster,
+      @Nullable SharedValueCache cache) {
+    return clear(context, authority, null, followMaster, cache);
+  }
+
+  Write clear(Context context, String authority, @Nullable String namespace,
+      boolean followMaster, @Nullable SharedValueCache cache) {
+    return enqueue(new Write(context, authority, namespace, true,
+        Collections.<ContentValues>emptyList(), followMaster, cache));
+  }
+
+  /**
+   * Sends on anything left in the logs from before, e.g. by a process that died or while there
+   * was no master. Does nothing if a replay is already on its way.
+   */
+  void replayAsync(final Context context) {
+    synchronized (this) {
+      if (replaying) return;
+      replaying = true;
+    }
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          replayAll(context);
+        } finally {
+          synchronized (SharedWriter.this) {
+            replaying = false;
+          }
+        }
+      }
+    });
+  }
+
+  private void replayAll(Context context) {
+    final Context appContext = context.getApplicationContext();
+    replay(appContext, null);
+    final String[] files = context.getFilesDir().list();
+    if (files == null) return;
+    final String prefix = LOG_FILE + NAMESPACE_LOG_SUFFIX;
+    for (String file : files) {
+      if (file.startsWith(prefix)) replay(appContext, file.substring(prefix.length()));
+    }
+  }
+
+  /**
+   * Blocks until everything queued for this authority so far has been written, so reads see our
+   * own writes, for at most {@link #MAX_READ_WAIT_MILLIS}.
+   */
+  void awaitPending(String authority) {
+    Write last = null;
+    synchronized (this) {
+      // Most reads find nothing queued, don't make an iterator for them.
+      if (queue.isEmpty() && inFlight == null) return;
+      final Iterator<Write> writes = queue.descendingIterator();
+      while (writes.hasNext()) {
+        final Write write = writes.next();
+        if (write.authority.equals(authority)) {
+          last = write;
+          break;
+        }
+      }
+      if (last == null && inFlight != null && inFlight.authority.equals(authority)) {
+        last = inFlight;
+      }
+    }
+    if (last != null) last.await(MAX_READ_WAIT_MILLIS);
+  }
+
+  private Write enqueue(Write write) {
+    final boolean start;
+    synchronized (this) {
+      queue.addLast(write);
+      start = !draining;
+      draining = true;
+    }
+    if (start) executor.execute(drainRunnable);
+    return write;
+  }
+
+  private void drain() {
+    // Writes we logged, they aren't done until their log is synced.
+    final List<Write> logged = new ArrayList<>();
+    final Set<SharedWriteLog> loggedTo = new LinkedHashSet<>();
+    // Namespaces whose log we've replayed.
+    final Set<String> replayed = new LinkedHashSet<>();
+    while (true) {
+      final Write write;
+      synchronized (this) {
+        write = queue.pollFirst();
+        inFlight = write;
+        if (write == null) {
+          draining = false;
+          break;
+        }
+      }
+      if (!write.followMaster) {
+        write.finish(write(write));
+        continue;
+      }
+      final SharedWriteLog log = getLog(write.context, write.namespace);
+      // Once per batch, older writes have to go before this one.
+      if (replayed.add(write.namespace)) replay(write.context, write.namespace);
+      if (log.isEmpty() && send(write)) {
+        write.finish(true);
+      } else if (append(log, write)) {
+        logged.add(write);
+        loggedTo.add(log);
+      } else {
+        write.finish(false);
+      }
+    }
+    if (!logged.isEmpty()) {
+      for (SharedWriteLog log : loggedTo) {
+        try {
+          log.sync();
+        } catch (IOException e) {
+          Log.w("SharedProviders", "Couldn't sync the write log", e);
+        }
+      }
+      // Not taken by the master, but it will be.
+      for (Write write : logged) write.finish(false);
+    }
+  }
+
+  /**
+   * Writes to the master, electing again and retrying once if that fails.
+   */
+  private boolean send(Write write) {
+    if (write(write)) return true;
+    // The master we were given is gone, elect again and give the write one more go.
+    Log.w("SharedProviders", "Write to [" + write.authority + "] failed, looking for a master");
+    try {
+      write.authority = findMaster(write.context, true);
+    } catch (RuntimeException e) {
+      Log.w("SharedProviders", "No master to write to", e);
+      return false;
+    }
+    return write(write);
+  }
+
+  private boolean append(SharedWriteLog log, Write write) {
+    final SharedChanges changes = new SharedChanges();
+    if (write.clear) changes.clear();
+    for (ContentValues row : write.rows) {
+      for (Map.Entry<String, Object> entry : row.valueSet()) {
+        if (MASTER_KEY.equals(entry.getKey())) continue;
+        Object value = entry.getValue();
+        if (value instanceof byte[]) {
+          // A string set or blob, log the value itself.
+          try {
+            value = SharedChangesCodec.decodeValue((byte[]) value);
+          } catch (IOException e) {
+            Log.w("SharedProviders", "Lost a write to [" + write.authority + "]", e);
+            return false;
+          }
+        }
+        changes.put(entry.getKey(), value);
+      }
+    }
+    try {
+      log.append(changes);
+      return true;
+    } catch (IOException | IllegalArgumentException e) {
+      Log.w("SharedProviders", "Lost a write to [" + write.authority + "]", e);
+      return false;
+    }
+  }
+
+  /**
+   * Sends the whole log of this namespace to the current master as one batch.
+   *
+   * @return true if the log is now empty.
+   */
+  private boolean replay(Context context, @Nullable String namespace) {
+    final SharedWriteLog log = getLog(context, namespace);
+    if (log.isEmpty()) return true;
+    final SharedChanges changes;
+    try {
+      changes = log.read();
+    } catch (IOException e) {
+      Log.w("SharedProviders", "Dropped an unreadable write log", e);
+      log.clear();
+      return true;
+    }
+    final String authority;
+    try {
+      authority = findMaster(context, false);
+    } catch (RuntimeException e) {
+      Log.w("SharedProviders", "No master to replay the write log to", e);
+      return false;
+    }
+    final List<ContentValues> rows = changes.getValues().isEmpty()
+        ? Collections.<ContentValues>emptyList()
+        : Collections.singletonList(toContentValues(changes));
+    final boolean sent =
+        write(new Write(context, authority, namespace, changes.isCleared(), rows, true, null));
+    if (sent) {
+      Log.d("SharedProviders",
+          "Replayed " + changes.size() + " logged keys to [" + authority + "]");
+      log.clear();
+    } else {
+      // Next time look for a new master.
+      forgetMaster(context);
+    }
+    return sent;
+  }
+
+  /**
+   * @param elect forget the master we have and elect again.
+   */
+  String findMaster(Context context, boolean elect) {
+    final SharedProviderFinder finder = SharedProviderFinder.get(context);
+    if (elect) finder.invalidate();
+    return finder.findMasterProvider();
+  }
+
+  void forgetMaster(Context context) {
+    SharedProviderFinder.get(context).invalidate();
+  }
+
+  private synchronized SharedWriteLog getLog(Context context, @Nullable String namespace) {
+    SharedWriteLog log = logs.get(namespace);
+    if (log == null) {
+      final String file =
+          namespace == null ? LOG_FILE : LOG_FILE + NAMESPACE_LOG_SUFFIX + namespace;
+      log = new SharedWriteLog(new File(context.getFilesDir(), file));
+      logs.put(namespace, log);
+    }
+    return log;
+  }
+
+  private static boolean write(Write write) {
+    final long start = SharedMetrics.start();
+    SharedMetrics.beginSection(SharedMetrics.TRACE_WRITE);
+    final boolean taken;
+    try {
+      taken = writeTo(write.context.getContentResolver(), write);
+    } finally {
+      SharedMetrics.endSection();
+    }
+    SharedMetrics.getMetrics().onWrite(write.rows.size(), SharedMetrics.since(start), taken);
+    return taken;
+  }
+
+  /**
+   * A single row goes as a plain insert, several as one bulk insert, and a clear with anything
+   * else as one batch so the master applies it as a transaction.
+   */
+  private static boolean writeTo(ContentResolver resolver, Write write) {
+    final Uri uri = getContentUri(write.authority, write.namespace, KEY, TYPE);
+    try {
+      if (write.clear && write.rows.isEmpty()) {
+        resolver.delete(uri, null, null);
+        return true;
+      } else if (write.clear) {
+        final ArrayList<ContentProviderOperation> operations =
+            new ArrayList<>(write.rows.size() + 1);
+        operations.add(ContentProviderOperation.newDelete(uri).build());
+        for (ContentValues row : write.rows) {
+          operations.add(ContentProviderOperation.newInsert(uri).withValues(row).build());
+        }
+        resolver.applyBatch(write.authority, operations);
+        return true;
+      } else if (write.rows.size() == 1) {
+        return insert(resolver, write.authority, write.namespace, uri, write.rows.get(0));
+      }
+      return resolver.bulkInsert(uri, write.rows.toArray(new ContentValues[write.rows.size()]))
+          == write.rows.size();
+    } catch (RuntimeException | RemoteException | OperationApplicationException e) {
+      Log.w("SharedProviders", "Write to [" + write.authority + "] failed", e);
+      return false;
+    }
+  }
+
+  private static boolean insert(ContentResolver resolver, String authority,
+      @Nullable String namespace, Uri uri, ContentValues values) {
+    if (SharedCall.isSupported(resolver, authority)) {
+      return SharedCall.call(resolver, authority,
+          SharedProvider.getMethod(SharedProvider.METHOD_PUT, namespace), null,
+          SharedCall.toBundle(values)) != null;
+    }
+    return resolver.insert(uri, values) != null;
+  }
+
+  static ContentValues toContentValues(SharedChanges changes) {
+    final ContentValues values = new ContentValues();
+    for (Map.Entry<String, Object> entry : changes.getValues().entrySet()) {
+      final String key = entry.getKey();
+      final Object value = entry.getValue();
+      if (value == null) {
+        values.putNull(key);
+      } else if (value instanceof String) {
+        values.put(key, (String) value);
+      } else if (value instanceof Boolean) {
+        values.put(key, (Boolean) value);
+      } else if (value instanceof Long) {
+        values.put(key, (Long) value);
+      } else if (value instanceof Integer) {
+        values.put(key, (Integer) value);
+      } else if (value instanceof Float) {
+        values.put(key, (Float) value);
+      } else if (value instanceof Set || value instanceof byte[]) {
+        values.put(key, SharedChangesCodec.encodeValue(value));
+      } else {
+        throw new IllegalArgumentException("Unsupported type " + value.getClass() + " for " + key);
+      }
+    }
+    return values;
+  }
+
+  static final class Write {
+
+    private final Context context;
+    /**
+     * Changes on the writer thread if the master does, readers look for it under no lock.
+     */
+    private volatile String authority;
+    @Nullable private final String namespace;
+    /**
+     * Clear the store before writing the rows.
+     */
+    private final boolean clear;
+    private final List<ContentValues> rows;
+    private final boolean followMaster;
+    @Nullable private final SharedValueCache cache;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean success;
+
+    Write(Context context, String authority, @Nullable String namespace, boolean clear,
+        List<ContentValues> rows, boolean followMaster, @Nullable SharedValueCache cache) {
+      this.context = context;
+      this.authority = authority;
+      this.namespace = namespace;
+      this.clear = clear;
+      this.rows = rows;
+      this.followMaster = followMaster;
+      this.cache = cache;
+    }
+
+    private boolean canMerge(String authority, @Nullable String namespace, boolean followMaster,
+        SharedValueCache cache) {
+      return !clear && rows.size() == 1 && this.authority.equals(authority)
+          && (this.namespace == null ? namespace == null : this.namespace.equals(namespace))
+          && this.followMaster == followMaster && this.cache == cache;
+    }
+
+    /**
+     * Blocks until written.
+     *
+     * @return true if the master took it. A write to the master it didn't take is still kept
+     * and sent later.
+     */
+    boolean await() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+      return success;
+    }
+
+    /**
+     * Blocks until written or for this long, whichever comes first.
+     *
+     * @return true if it was written, taken by the master or not.
+     */
+    boolean await(long timeoutMillis) {
+      try {
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // A read goes ahead rather than wait any longer.
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    private void finish(boolean success) {
+      this.success = success;
+      // Don't wait for the masters notification, our next read should see this write.
+      if (cache != null) cache.invalidate();
+      done.countDown();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package com.owlr.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import static com.owlr.provider.SharedCursorUtils.getLongValue;
+
+/**
+ * Tracks which master, and which of its versions, this slave is in sync with. When a broadcast
+ * doesn't follow on from that we have missed something, so we pull the masters whole store
+ * through its {@link SharedProvider#PATH_SNAPSHOT} pipe instead.
+ *
+ * The snapshot is streamed, so it works for stores far too big to fit in a broadcast, and staged
+ * in a single transaction. Our store is replaced in one commit or not at all, a resync that fails
+ * half way never leaves it empty or partial, which would be handed on if we were elected master.
+ *
+ * Each namespace is versioned on its own, so it is tracked on its own too. The election epoch is
+ * the masters, it is shared by them all.
+ */
+final class SlaveResync {
+
+  private static final String SYNC_STATE = "shared_slave_sync";
+  private static final String MASTER_AUTHORITY_KEY = "master_authority";
+  private static final String MASTER_VERSION_KEY = "master_version";
+  private static final String MASTER_EPOCH_KEY = "master_epoch";
+  private static final int CHUNK_SIZE = 500;
+
+  /**
+   * One resync at a time, two interleaved ones could leave older values behind.
+   */
+  private static final Executor RESYNC_EXECUTOR = Executors.newSingleThreadExecutor();
+
+  private final Context context;
+  @Nullable private final String namespace;
+  private final SharedPreferences state;
+  private final SharedPreferences epochState;
+
+  /**
+   * @param namespace the store to keep in sync, null for the default one.
+   */
+  SlaveResync(Context context, @Nullable String namespace) {
+    this.context = context.getApplicationContext();
+    this.namespace = namespace;
+    this.epochState = context.getSharedPreferences(SYNC_STATE, Context.MODE_PRIVATE);
+    this.state = namespace == null ? epochState
+        : context.getSharedPreferences(SYNC_STATE + "_ns_" + namespace, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return true if we already have everything up to this masters version.
+   */
+  synchronized boolean isSyncedTo(String masterAuthority, long version) {
+    return masterAuthority.equals(state.getString(MASTER_AUTHORITY_KEY, null))
+        && state.getLong(MASTER_VERSION_KEY, -1L) >= version;
+  }
+
+  /**
+   * @return true if changes starting at this masters version carry on from what we have.
+   */
+  synchronized boolean follows(String masterAuthority, long fromVersion) {
+    return masterAuthority.equals(state.getString(MASTER_AUTHORITY_KEY, null))
+        && state.getLong(MASTER_VERSION_KEY, -1L) == fromVersion;
+  }
+
+  /**
+   * Fences masters that have been replaced, their epoch is lower than one we've already seen.
+   *
+   * @return false if a broadcast from this epoch should be ignored.
+   */
+  synchronized boolean acceptEpoch(long epoch) {
+    final long highest = epochState.getLong(MASTER_EPOCH_KEY, 0L);
+    if (epoch < highest) return false;
+    if (epoch > highest) epochState.edit().putLong(MASTER_EPOCH_KEY, epoch).apply();
+    return true;
+  }
+
+  synchronized void setSyncedTo(String masterAuthority, long version) {
+    state.edit()
+        .putString(MASTER_AUTHORITY_KEY, masterAuthority)
+        .putLong(MASTER_VERSION_KEY, version)
+        .apply();
+  }
+
+  /**
+   * Queues a full resync from the master into our own provider.
+   *
+   * @param version the version that told us we are behind, skipped if we reach it first.
+   * @param done run once finished, whether it worked or not. Can be null.
+   */
+  void resyncAsync(final String masterAuthority, final String appAuthority, final long version,
+      final Runnable done) {
+    RESYNC_EXECUTOR.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          if (!isSyncedTo(masterAuthority, version)) resync(masterAuthority, appAuthority);
+        } finally {
+          if (done != null) done.run();
+        }
+      }
+    });
+  }
+
+  /**
+   * Pulls the masters snapshot into our own provider. Blocks, don't call on the main thread.
+   *
+   * @return true if we are now in sync.
+   */
+  boolean resync(String masterAuthority, String appAuthority) {
+    if (TextUtils.isEmpty(masterAuthority) || TextUtils.isEmpty(appAuthority)) return false;
+    Log.d("SharedProvider", "Resync from [" + masterAuthority + "] " + namespace);
+    final ContentResolver resolver = context.getContentResolver();
+    // Read the version first, the snapshot then holds at least everything up to it.
+    final long version = getLongValue(resolver.query(
+        SharedSharedPreferences.getPathUri(masterAuthority, namespace, SharedProvider.PATH_VERSION),
+        null, null, null, null), -1L);
+    if (version < 0) return false;
+
+    InputStream in = null;
+    try {
+      in = resolver.openInputStream(
+          SharedSharedPreferences.getPathUri(masterAuthority, namespace,
+              SharedProvider.PATH_SNAPSHOT));
+      if (in == null) return false;
+      final SharedChangesCodec.Reader reader = new SharedChangesCodec.Reader(in);
+      final SharedSharedPreferences.SharedTransaction transaction =
+          new SharedSharedPreferences.SharedTransaction(context, appAuthority, namespace, null,
+              false);
+      if (reader.isCleared()) transaction.clear();
+      final SharedSharedPreferences.SharedEditor edit = transaction.edit();
+      int count = 0;
+      while (reader.next()) {
+        edit.putValue(reader.getKey(), reader.getValue());
+        // Only staged, nothing is written until the transaction commits.
+        if (++count % CHUNK_SIZE == 0) edit.commit();
+      }
+      edit.commit();
+      if (!transaction.commit()) return false;
+      setSyncedTo(masterAuthority, version);
+      Log.d("SharedProvider", "Resynced " + count + " keys from [" + masterAuthority + "]");
+      return true;
+    } catch (IOException | SecurityException e) {
+      Log.w("SharedProvider", "Resync from [" + masterAuthority + "] failed", e);
+      return false;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+}
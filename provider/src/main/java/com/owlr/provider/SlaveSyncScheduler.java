@@ -0,0 +1,118 @@
+package com.owlr.provider;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the masters writes and sends them on to the slaves as one merged broadcast per window,
+ * instead of waking every slave process for every single write.
+ *
+ * A window opens with the first write and is sent when it closes, or straight away once it holds
+ * {@code maxKeys} keys or the store is cleared. Changes whose versions don't run on from the
+ * window's close it early and start the next one, see {@link SharedChanges#canMerge}. Call
+ * {@link #flush()} when the process may be about to go away.
+ */
+class SlaveSyncScheduler {
+
+  static final long DEFAULT_WINDOW_MILLIS = 500L;
+  static final int DEFAULT_MAX_KEYS = 100;
+  /**
+   * Windows of every namespace go out on the one thread, sending one is only a broadcast.
+   */
+  private static final ScheduledExecutorService EXECUTOR = newExecutor();
+
+  interface Sender {
+    void send(SharedChanges changes);
+  }
+
+  private final Sender sender;
+  private final ScheduledExecutorService executor;
+  private final long windowMillis;
+  private final int maxKeys;
+
+  private final Runnable flushRunnable = new Runnable() {
+    @Override public void run() {
+      flush();
+    }
+  };
+
+  private final Object sendLock = new Object();
+  private SharedChanges pending;
+  /**
+   * Windows closed early by a gap in the versions, they go out before {@link #pending}.
+   */
+  private final List<SharedChanges> closed = new ArrayList<>();
+
+  SlaveSyncScheduler(Sender sender, long windowMillis, int maxKeys) {
+    this(sender, EXECUTOR, windowMillis, maxKeys);
+  }
+
+  SlaveSyncScheduler(Sender sender, ScheduledExecutorService executor, long windowMillis,
+      int maxKeys) {
+    this.sender = sender;
+    this.executor = executor;
+    this.windowMillis = windowMillis;
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Queue these changes to go out with the current window.
+   */
+  void schedule(SharedChanges changes) {
+    if (changes.isEmpty()) return;
+    final boolean sendNow;
+    synchronized (this) {
+      final boolean gap = pending != null && !pending.canMerge(changes);
+      if (gap) {
+        closed.add(pending);
+        pending = null;
+      }
+      final boolean opened = pending == null;
+      if (opened) pending = new SharedChanges();
+      pending.merge(changes);
+      sendNow = gap || windowMillis <= 0 || changes.isCleared() || pending.size() >= maxKeys;
+      if (opened && !sendNow) {
+        executor.schedule(flushRunnable, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (sendNow) executor.execute(flushRunnable);
+  }
+
+  /**
+   * Sends anything pending on the calling thread.
+   */
+  void flush() {
+    // Windows have to go out in order, so only one flush sends at a time.
+    synchronized (sendLock) {
+      final List<SharedChanges> windows;
+      synchronized (this) {
+        windows = new ArrayList<>(closed);
+        closed.clear();
+        if (pending != null) windows.add(pending);
+        pending = null;
+      }
+      for (SharedChanges changes : windows) {
+        sender.send(changes);
+      }
+    }
+  }
+
+  private static ScheduledExecutorService newExecutor() {
+    final ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+          @Override public Thread newThread(@NonNull Runnable runnable) {
+            final Thread thread = new Thread(runnable, "SharedProvider-Sync");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.setKeepAliveTime(30L, TimeUnit.SECONDS);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
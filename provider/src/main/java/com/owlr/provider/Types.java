@@ -7,11 +7,28 @@ public interface Types {
 
   String KEY = "key";
   String TYPE = "type";
+  String VALUE = "value";
+  String VERSION = "version";
   String MASTER_KEY = "master";
+  /**
+   * Election epoch of a master, see {@link MasterLease}.
+   */
+  String EPOCH = "epoch";
+  String LEASE_EXPIRY = "lease_expiry";
 
   String INT_TYPE = "integer";
   String LONG_TYPE = "long";
   String FLOAT_TYPE = "float";
   String BOOLEAN_TYPE = "boolean";
   String STRING_TYPE = "string";
+  String STRING_SET_TYPE = "string_set";
+  String BLOB_TYPE = "blob";
+  /**
+   * A blob too large to put in a cursor, read it from its data Uri with openInputStream.
+   */
+  String BLOB_REF_TYPE = "blob_ref";
+  /**
+   * Marks a key that has been removed, used when reading changes.
+   */
+  String REMOVED_TYPE = "removed";
 }
@@ -0,0 +1,133 @@
+package com.owlr.provider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class LogSharedStoreTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Holds the background syncs and compactions until {@link #runQueued()}.
+   */
+  private final List<Runnable> queued = new ArrayList<>();
+  private final Executor executor = new Executor() {
+    @Override public void execute(Runnable command) {
+      queued.add(command);
+    }
+  };
+
+  private File file;
+  private LogSharedStore store;
+
+  @Before public void setUp() throws Exception {
+    file = new File(folder.getRoot(), "log");
+    store = new LogSharedStore(file, executor);
+  }
+
+  @Test public void testWrite_replayedOnReopen() throws Exception {
+    store.write(false, Collections.singletonMap("a", "1"));
+    store.write(false, Collections.singletonMap("b", 2L));
+    store.write(false, Collections.<String, Object>singletonMap("a", null));
+
+    final LogSharedStore reopened = new LogSharedStore(file, executor);
+    assertThat(reopened.getVersion()).isEqualTo(3L);
+    assertThat(reopened.contains("a")).isFalse();
+    assertThat(reopened.getAll()).containsOnly(entry("b", 2L));
+    assertThat(reopened.getVersionsSince(1L)).containsOnly(entry("a", 3L), entry("b", 2L));
+  }
+
+  @Test public void testWrite_clearKeepsRemovedKeysVersioned() throws Exception {
+    store.write(false, Collections.singletonMap("a", "1"));
+    store.write(true, Collections.singletonMap("b", true));
+
+    assertThat(store.getAll()).containsOnly(entry("b", true));
+    assertThat(store.getVersionsSince(1L)).containsOnly(entry("a", 2L), entry("b", 2L));
+  }
+
+  @Test public void testTornFrameCutOff() throws Exception {
+    store.write(false, Collections.singletonMap("a", "1"));
+    final long intact = file.length();
+    store.write(false, Collections.singletonMap("b", "2"));
+    // Simulate the second frame being cut short by a crash.
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(file.length() - 3);
+    raf.close();
+
+    final LogSharedStore reopened = new LogSharedStore(file, executor);
+    assertThat(reopened.getAll()).containsOnly(entry("a", "1"));
+    assertThat(reopened.getVersion()).isEqualTo(1L);
+    reopened.write(false, Collections.singletonMap("c", "3"));
+    assertThat(file.length()).isGreaterThan(intact);
+
+    assertThat(new LogSharedStore(file, executor).getAll())
+        .containsOnly(entry("a", "1"), entry("c", "3"));
+  }
+
+  @Test public void testCorruptFrameCutOff() throws Exception {
+    store.write(false, Collections.singletonMap("a", "1"));
+    final FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[] { 0, 0, 0, 12, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 0, 0, 0, 0 });
+    out.close();
+
+    final LogSharedStore reopened = new LogSharedStore(file, executor);
+    assertThat(reopened.getAll()).containsOnly(entry("a", "1"));
+  }
+
+  @Test public void testCompaction() throws Exception {
+    long counter = 0;
+    while (file.length() < LogSharedStore.MIN_COMPACT_BYTES) {
+      store.write(false, Collections.singletonMap("counter", ++counter));
+    }
+    // One sync and one compaction queued however many writes came in.
+    assertThat(queued).hasSize(2);
+    // Not logged yet when the compaction was asked for.
+    store.write(false, Collections.singletonMap("other", "x"));
+    runQueued();
+
+    assertThat(file.length()).isLessThan(LogSharedStore.MIN_COMPACT_BYTES / 2);
+    assertThat(new File(file.getPath() + ".compact").exists()).isFalse();
+    final LogSharedStore reopened = new LogSharedStore(file, executor);
+    assertThat(reopened.getAll()).containsOnly(entry("counter", counter), entry("other", "x"));
+    assertThat(reopened.getVersion()).isEqualTo(store.getVersion());
+    assertThat(reopened.getVersionsSince(counter - 1))
+        .containsOnly(entry("counter", counter), entry("other", counter + 1));
+  }
+
+  @Test public void testCompaction_dropsRemovedKeys() throws Exception {
+    store.write(false, Collections.singletonMap("kept", "x"));
+    int i = 0;
+    while (file.length() < LogSharedStore.MIN_COMPACT_BYTES) {
+      store.write(false, Collections.singletonMap("key" + i, "value"));
+      store.write(false, Collections.<String, Object>singletonMap("key" + i++, null));
+    }
+    final long version = store.getVersion();
+    runQueued();
+
+    assertThat(store.getVersionsSince(0L)).containsOnly(entry("kept", 1L));
+    final LogSharedStore reopened = new LogSharedStore(file, executor);
+    assertThat(reopened.getAll()).containsOnly(entry("kept", "x"));
+    assertThat(reopened.getVersion()).isEqualTo(version);
+    assertThat(reopened.getVersionsSince(0L)).containsOnly(entry("kept", 1L));
+  }
+
+  private void runQueued() {
+    final List<Runnable> running = new ArrayList<>(queued);
+    queued.clear();
+    for (Runnable runnable : running) {
+      runnable.run();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.owlr.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ResolveInfo;
+import android.text.TextUtils;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the full package scan with the intent lookup over devices with 50 to 500 apps, three
+ * of which are ours. The PackageManager is mocked so the counts are exact, the timings are only
+ * printed.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TextUtils.class, Log.class, IntentDiscovery.class })
+public class ProviderDiscoveryTest {
+
+  private static final String PERMISSION = "com.test.PERMISSION";
+  private static final Pattern MATCHER = Pattern.compile("com\\.test\\.(?:[a-z0-9]+\\.)*provider");
+  private static final int OUR_APPS = 3;
+  private static final int PROVIDERS_PER_APP = 2;
+
+  private Context context;
+  private PackageManager packageManager;
+  /**
+   * Objects the PackageManager handed us for the last discovery, what we paid for across binder.
+   */
+  private int inspected;
+
+  @Before public void setUp() throws Exception {
+    PowerMockito.mockStatic(TextUtils.class);
+    PowerMockito.mockStatic(Log.class);
+    when(TextUtils.isEmpty(anyString())).thenAnswer(new Answer<Boolean>() {
+      @Override public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        final String s = invocation.getArgumentAt(0, String.class);
+        return s == null || s.length() == 0;
+      }
+    });
+    PowerMockito.whenNew(Intent.class).withAnyArguments().thenReturn(mock(Intent.class));
+    context = mock(Context.class);
+    packageManager = mock(PackageManager.class);
+    when(context.getPackageManager()).thenReturn(packageManager);
+  }
+
+  @Test public void testBothFindTheSameProviders() throws Exception {
+    installApps(50);
+    final List<String> scanned = findAuthorities(new PackageScanDiscovery(context));
+    final List<String> resolved = findAuthorities(new IntentDiscovery(context, PERMISSION));
+
+    assertThat(scanned).hasSize(OUR_APPS);
+    assertThat(resolved).containsOnly(scanned.toArray(new String[scanned.size()]));
+  }
+
+  @Test public void testIntentDiscovery_nothingResolved() throws Exception {
+    when(packageManager.queryIntentContentProviders(any(Intent.class), anyInt())).thenReturn(null);
+    assertThat(new IntentDiscovery(context, PERMISSION).findCandidates()).isEmpty();
+  }
+
+  @Test public void testInspected_scanGrowsWithPackages() throws Exception {
+    for (int apps : new int[] { 50, 100, 250, 500 }) {
+      installApps(apps);
+
+      findAuthorities(new PackageScanDiscovery(context));
+      final int scanInspected = inspected;
+      findAuthorities(new IntentDiscovery(context, PERMISSION));
+      final int intentInspected = inspected;
+
+      // Every package and all of its providers, against just ours.
+      assertThat(scanInspected).isEqualTo(apps * (1 + PROVIDERS_PER_APP));
+      assertThat(intentInspected).isEqualTo(OUR_APPS * 2);
+    }
+  }
+
+  private List<String> findAuthorities(ProviderDiscovery discovery) {
+    inspected = 0;
+    final SharedProviderFinder finder =
+        new SharedProviderFinder(context, MATCHER, PERMISSION, mock(ContentResolver.class),
+            discovery);
+    final List<ProviderInfo> providers = finder.findProviders();
+    final List<String> authorities = new ArrayList<>(providers.size());
+    for (ProviderInfo provider : providers) {
+      authorities.add(provider.authority);
+    }
+    return authorities;
+  }
+
+  /**
+   * Installs this many apps with two providers each, the first {@link #OUR_APPS} are ours.
+   */
+  private void installApps(int apps) {
+    final List<PackageInfo> packages = new ArrayList<>(apps);
+    final List<ResolveInfo> resolved = new ArrayList<>(OUR_APPS);
+    for (int i = 0; i < apps; i++) {
+      final boolean ours = i < OUR_APPS;
+      final PackageInfo packageInfo = mock(PackageInfo.class);
+      packageInfo.providers = new ProviderInfo[PROVIDERS_PER_APP];
+      for (int p = 0; p < PROVIDERS_PER_APP; p++) {
+        final ProviderInfo provider = mock(ProviderInfo.class);
+        if (ours && p == 0) {
+          provider.authority = "com.test.app" + i + ".provider";
+          provider.writePermission = PERMISSION;
+          final ResolveInfo resolveInfo = mock(ResolveInfo.class);
+          resolveInfo.providerInfo = provider;
+          resolved.add(resolveInfo);
+        } else {
+          provider.authority = "com.other.app" + i + ".p" + p;
+        }
+        packageInfo.providers[p] = provider;
+      }
+      packages.add(packageInfo);
+    }
+
+    when(packageManager.getInstalledPackages(PackageManager.GET_PROVIDERS)).thenAnswer(
+        new Answer<List<PackageInfo>>() {
+          @Override public List<PackageInfo> answer(InvocationOnMock invocation) {
+            inspected += packages.size() * (1 + PROVIDERS_PER_APP);
+            return packages;
+          }
+        });
+    when(packageManager.queryIntentContentProviders(any(Intent.class), anyInt())).thenAnswer(
+        new Answer<List<ResolveInfo>>() {
+          @Override public List<ResolveInfo> answer(InvocationOnMock invocation) {
+            // Each result is a ResolveInfo wrapping a ProviderInfo.
+            inspected += resolved.size() * 2;
+            return resolved;
+          }
+        });
+  }
+}
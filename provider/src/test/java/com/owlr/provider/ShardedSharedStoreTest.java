@@ -0,0 +1,142 @@
+package com.owlr.provider;
+
+import android.content.SharedPreferences;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class ShardedSharedStoreTest {
+
+  FakeSharedPreferences[] values;
+  SharedVersions versions;
+  ShardedSharedStore store;
+
+  @Before public void setUp() throws Exception {
+    values = shards(4);
+    versions = new SharedVersions(new FakeSharedPreferences());
+    store = new ShardedSharedStore(values, shards(4), versions, null);
+  }
+
+  @Test public void testWrite_onlyTouchesItsShard() throws Exception {
+    final Map<String, Object> write = new HashMap<>();
+    for (int i = 0; i < 20; i++) {
+      write.put("key" + i, i);
+    }
+    assertThat(store.write(false, write)).isEqualTo(1L);
+
+    for (int i = 0; i < 20; i++) {
+      final String key = "key" + i;
+      assertThat(store.get(key)).isEqualTo(i);
+      for (int shard = 0; shard < values.length; shard++) {
+        assertThat(values[shard].contains(key)).isEqualTo(shard == store.getShard(key));
+      }
+    }
+    assertThat(store.getAll()).hasSize(20);
+    assertThat(store.getVersionsSince(0L)).hasSize(20);
+  }
+
+  @Test public void testWrite_clearFansOut() throws Exception {
+    final Map<String, Object> write = new HashMap<>();
+    for (int i = 0; i < 20; i++) {
+      write.put("key" + i, i);
+    }
+    store.write(false, write);
+
+    final long version = store.write(true, new HashMap<String, Object>());
+
+    assertThat(store.getAll()).isEmpty();
+    for (FakeSharedPreferences shard : values) {
+      assertThat(shard.getAll()).isEmpty();
+    }
+    assertThat(version).isEqualTo(2L);
+    assertThat(store.getVersionsSince(1L)).hasSize(20);
+  }
+
+  @Test public void testGetShard_bySeparatorPrefix() throws Exception {
+    store = new ShardedSharedStore(shards(8), shards(8), versions, ":");
+
+    final int shard = store.getShard("user:name");
+    assertThat(store.getShard("user:email")).isEqualTo(shard);
+    assertThat(store.getShard("user")).isEqualTo(shard);
+  }
+
+  @Test public void testRebalance_movesKeysOutOfTheUnshardedStore() throws Exception {
+    final FakeSharedPreferences unsharded = new FakeSharedPreferences();
+    final SharedPreferences.Editor editor = unsharded.edit();
+    for (int i = 0; i < 20; i++) {
+      editor.putString("key" + i, "v" + i);
+    }
+    editor.commit();
+    final FakeSharedPreferences[] grown = shards(4);
+    grown[0] = unsharded;
+
+    store = new ShardedSharedStore(grown, shards(4), versions, null);
+
+    for (int i = 0; i < 20; i++) {
+      final String key = "key" + i;
+      assertThat(store.get(key)).isEqualTo("v" + i);
+      assertThat(grown[store.getShard(key)].getAll()).contains(entry(key, "v" + i));
+    }
+    assertThat(unsharded.getAll()).hasSize(countInShard(0));
+    // Moving keys doesn't change them, so nothing is versioned.
+    assertThat(versions.getVersion()).isEqualTo(0L);
+  }
+
+  @Test public void testFewerShards_movesKeysOutOfTheOnesLeftOver() throws Exception {
+    final Map<String, Object> write = new HashMap<>();
+    for (int i = 0; i < 20; i++) {
+      write.put("key" + i, "v" + i);
+    }
+    store.write(false, write);
+    final long version = versions.getVersion();
+
+    store = new ShardedSharedStore(values, shards(4), 2, versions, null);
+
+    assertThat(store.getShardCount()).isEqualTo(2);
+    assertThat(store.getAll()).hasSize(20);
+    for (int i = 0; i < 20; i++) {
+      final String key = "key" + i;
+      assertThat(store.get(key)).isEqualTo("v" + i);
+      assertThat(values[store.getShard(key)].getAll()).contains(entry(key, "v" + i));
+    }
+    for (int shard = 2; shard < 4; shard++) {
+      assertThat(values[shard].getAll()).isEmpty();
+    }
+    assertThat(versions.getVersion()).isEqualTo(version);
+  }
+
+  @Test public void testFewerShards_downToOne() throws Exception {
+    final Map<String, Object> write = new HashMap<>();
+    for (int i = 0; i < 20; i++) {
+      write.put("key" + i, i);
+    }
+    store.write(false, write);
+
+    store = new ShardedSharedStore(values, shards(4), 1, versions, null);
+
+    assertThat(values[0].getAll()).hasSize(20);
+    for (int i = 0; i < 20; i++) {
+      assertThat(store.get("key" + i)).isEqualTo(i);
+    }
+  }
+
+  private int countInShard(int shard) {
+    int count = 0;
+    for (int i = 0; i < 20; i++) {
+      if (store.getShard("key" + i) == shard) count++;
+    }
+    return count;
+  }
+
+  private static FakeSharedPreferences[] shards(int count) {
+    final FakeSharedPreferences[] shards = new FakeSharedPreferences[count];
+    for (int i = 0; i < count; i++) {
+      shards[i] = new FakeSharedPreferences();
+    }
+    return shards;
+  }
+}
@@ -0,0 +1,130 @@
+package com.owlr.provider;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class) @PrepareForTest({ Uri.class, Log.class })
+public class SharedCallTest {
+
+  private ContentResolver resolver;
+  private Uri uri;
+
+  @Before public void setUp() throws Exception {
+    PowerMockito.mockStatic(Uri.class);
+    PowerMockito.mockStatic(Log.class);
+    uri = mock(Uri.class);
+    when(Uri.parse(anyString())).thenReturn(uri);
+    resolver = mock(ContentResolver.class);
+  }
+
+  @Test public void testCall_olderProviderAskedOnce() throws Exception {
+    SharedCall.reset("com.owlr.old");
+
+    assertThat(SharedCall.call(resolver, "com.owlr.old", SharedProvider.METHOD_GET, "a", null))
+        .isNull();
+    assertThat(SharedCall.call(resolver, "com.owlr.old", SharedProvider.METHOD_GET, "a", null))
+        .isNull();
+
+    verify(resolver).call(uri, SharedProvider.METHOD_VERSION, null, null);
+    verify(resolver, never()).call(eq(uri), eq(SharedProvider.METHOD_GET), anyString(),
+        any(Bundle.class));
+  }
+
+  @Test public void testCall_supportedProviderCalled() throws Exception {
+    SharedCall.reset("com.owlr.new");
+    final Bundle version = mock(Bundle.class);
+    final Bundle value = mock(Bundle.class);
+    when(resolver.call(uri, SharedProvider.METHOD_VERSION, null, null)).thenReturn(version);
+    when(resolver.call(eq(uri), eq(SharedProvider.METHOD_GET), eq("a"), (Bundle) isNull()))
+        .thenReturn(value);
+
+    assertThat(SharedCall.call(resolver, "com.owlr.new", SharedProvider.METHOD_GET, "a", null))
+        .isSameAs(value);
+    assertThat(SharedCall.call(resolver, "com.owlr.new", SharedProvider.METHOD_GET, "a", null))
+        .isSameAs(value);
+
+    verify(resolver).call(uri, SharedProvider.METHOD_VERSION, null, null);
+  }
+
+  @Test public void testCall_missingProviderAskedAgain() throws Exception {
+    SharedCall.reset("com.owlr.gone");
+    when(resolver.call(uri, SharedProvider.METHOD_VERSION, null, null))
+        .thenThrow(new IllegalArgumentException("Unknown authority"));
+
+    assertThat(SharedCall.isSupported(resolver, "com.owlr.gone")).isFalse();
+    assertThat(SharedCall.isSupported(resolver, "com.owlr.gone")).isFalse();
+
+    verify(resolver, times(2)).call(uri, SharedProvider.METHOD_VERSION, null, null);
+  }
+
+  @Test public void testIsSupported_failedProbeAskedAgain() throws Exception {
+    SharedCall.reset("com.owlr.busy");
+    final ContentProviderClient client = mock(ContentProviderClient.class);
+    when(resolver.acquireUnstableContentProviderClient("com.owlr.busy")).thenReturn(client);
+    when(client.call(SharedProvider.METHOD_VERSION, null, null))
+        .thenThrow(new RemoteException());
+    setSdkInt(Build.VERSION_CODES.JELLY_BEAN_MR1);
+    try {
+      assertThat(SharedCall.isSupported(resolver, "com.owlr.busy")).isFalse();
+      assertThat(SharedCall.isSupported(resolver, "com.owlr.busy")).isFalse();
+    } finally {
+      setSdkInt(0);
+    }
+
+    verify(client, times(2)).call(SharedProvider.METHOD_VERSION, null, null);
+    verify(client, times(2)).release();
+  }
+
+  @Test public void testIsSupported_unknownMethodKept() throws Exception {
+    SharedCall.reset("com.owlr.old");
+    final ContentProviderClient client = mock(ContentProviderClient.class);
+    when(resolver.acquireUnstableContentProviderClient("com.owlr.old")).thenReturn(client);
+    setSdkInt(Build.VERSION_CODES.JELLY_BEAN_MR1);
+    try {
+      assertThat(SharedCall.isSupported(resolver, "com.owlr.old")).isFalse();
+      assertThat(SharedCall.isSupported(resolver, "com.owlr.old")).isFalse();
+      // Until an app changes, it may have been updated.
+      SharedCall.reset();
+      assertThat(SharedCall.isSupported(resolver, "com.owlr.old")).isFalse();
+    } finally {
+      setSdkInt(0);
+    }
+
+    verify(client, times(2)).call(SharedProvider.METHOD_VERSION, null, null);
+  }
+
+  /**
+   * SDK_INT isn't a constant in the stubs, so it can be changed under the code that reads it.
+   */
+  private static void setSdkInt(int sdkInt) throws Exception {
+    final Field field = Build.VERSION.class.getField("SDK_INT");
+    final Field modifiers = Field.class.getDeclaredField("modifiers");
+    modifiers.setAccessible(true);
+    modifiers.setInt(field, field.getModifiers() & ~Modifier.FINAL);
+    field.set(null, sdkInt);
+  }
+}
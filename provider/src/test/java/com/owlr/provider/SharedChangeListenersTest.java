@@ -0,0 +1,116 @@
+package com.owlr.provider;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.net.Uri;
+import android.os.Handler;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SharedChangeListenersTest {
+
+  private SharedPreferences preferences;
+  private Handler handler;
+  private SharedChangeListeners listeners;
+
+  @Before public void setUp() throws Exception {
+    preferences = mock(SharedPreferences.class);
+    handler = mock(Handler.class);
+    listeners = new SharedChangeListeners(preferences, handler);
+  }
+
+  @Test public void testChanged_burstCoalesced() throws Exception {
+    final OnSharedPreferenceChangeListener listener = mock(OnSharedPreferenceChangeListener.class);
+    listeners.register(listener);
+
+    listeners.changed("a");
+    listeners.changed("b");
+    listeners.changed("a");
+
+    final ArgumentCaptor<Runnable> dispatch = ArgumentCaptor.forClass(Runnable.class);
+    verify(handler, times(1))
+        .postDelayed(dispatch.capture(), eq(SharedChangeListeners.COALESCE_MILLIS));
+    verify(listener, never()).onSharedPreferenceChanged(preferences, "a");
+    dispatch.getValue().run();
+    final InOrder inOrder = inOrder(listener);
+    inOrder.verify(listener).onSharedPreferenceChanged(preferences, "a");
+    inOrder.verify(listener).onSharedPreferenceChanged(preferences, "b");
+    inOrder.verifyNoMoreInteractions();
+
+    // The next change is a new burst.
+    listeners.changed("c");
+    verify(handler, times(2)).postDelayed(dispatch.capture(), anyLong());
+  }
+
+  @Test public void testChanged_unknownKeysSentOnceAsNull() throws Exception {
+    final OnSharedPreferenceChangeListener listener = mock(OnSharedPreferenceChangeListener.class);
+    listeners.register(listener);
+
+    listeners.changed("a");
+    listeners.changed(null);
+
+    final ArgumentCaptor<Runnable> dispatch = ArgumentCaptor.forClass(Runnable.class);
+    verify(handler).postDelayed(dispatch.capture(), anyLong());
+    dispatch.getValue().run();
+    verify(listener).onSharedPreferenceChanged(preferences, null);
+    verify(listener, never()).onSharedPreferenceChanged(preferences, "a");
+  }
+
+  @Test public void testChanged_nothingScheduledWithoutListeners() throws Exception {
+    final OnSharedPreferenceChangeListener listener = mock(OnSharedPreferenceChangeListener.class);
+    listeners.register(listener);
+    listeners.unregister(listener);
+
+    listeners.changed("a");
+
+    assertThat(listeners.isEmpty()).isTrue();
+    verify(handler, never()).postDelayed(any(Runnable.class), anyLong());
+  }
+
+  @Test public void testGetKey() throws Exception {
+    final Uri keyUri = mock(Uri.class);
+    when(keyUri.getPathSegments()).thenReturn(Arrays.asList("a", Types.STRING_TYPE));
+    final Uri baseUri = mock(Uri.class);
+    when(baseUri.getPathSegments()).thenReturn(Collections.<String>emptyList());
+
+    assertThat(SharedChangeListeners.getKey(keyUri)).isEqualTo("a");
+    assertThat(SharedChangeListeners.getKey(baseUri)).isNull();
+    assertThat(SharedChangeListeners.getKey(null)).isNull();
+  }
+
+  @Test public void testGetKey_namespaced() throws Exception {
+    assertThat(SharedChangeListeners.getKey(uri("ns", "settings", "a", Types.STRING_TYPE)))
+        .isEqualTo("a");
+    assertThat(SharedChangeListeners.getKey(uri("ns", "settings", SharedProvider.PATH_ALL)))
+        .isNull();
+    // A key named ns in the default store.
+    assertThat(SharedChangeListeners.getKey(uri("ns", Types.STRING_TYPE))).isEqualTo("ns");
+
+    assertThat(SharedProvider.getNamespace(uri("ns", "settings", "a", Types.STRING_TYPE)))
+        .isEqualTo("settings");
+    assertThat(SharedProvider.getNamespace(uri("ns", Types.STRING_TYPE))).isNull();
+    assertThat(SharedProvider.isNamespace("user.settings-2")).isTrue();
+    assertThat(SharedProvider.isNamespace("a/b")).isFalse();
+  }
+
+  private static Uri uri(String... segments) {
+    final Uri uri = mock(Uri.class);
+    when(uri.getPathSegments()).thenReturn(Arrays.asList(segments));
+    return uri;
+  }
+}
@@ -0,0 +1,199 @@
+package com.owlr.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class SharedChangesCodecTest {
+
+  private static SharedChanges allTypes() {
+    final SharedChanges changes = new SharedChanges();
+    changes.put("string", "value");
+    changes.put("empty", "");
+    changes.put("unicode", "caf\u00e9 \u2603");
+    changes.put("true", true);
+    changes.put("false", false);
+    changes.put("int", Integer.MIN_VALUE);
+    changes.put("small", -1);
+    changes.put("long", Long.MAX_VALUE);
+    changes.put("float", 1.5f);
+    changes.put("nan", Float.NaN);
+    changes.remove("removed");
+    return changes;
+  }
+
+  private static SharedChanges manyKeys(int count) {
+    final SharedChanges changes = new SharedChanges();
+    for (int i = 0; i < count; i++) {
+      switch (i % 4) {
+        case 0:
+          changes.put("com.owlr.key." + i, "some shared value " + (i % 10));
+          break;
+        case 1:
+          changes.put("com.owlr.key." + i, (long) i * 1000L);
+          break;
+        case 2:
+          changes.put("com.owlr.key." + i, i % 3 == 0);
+          break;
+        default:
+          changes.put("com.owlr.key." + i, i);
+      }
+    }
+    return changes;
+  }
+
+  @Test public void testRoundTrip_allTypes() throws Exception {
+    for (boolean dedup : new boolean[] { false, true }) {
+      final SharedChanges decoded =
+          SharedChangesCodec.decode(SharedChangesCodec.encode(allTypes(), dedup));
+      assertThat(decoded.isCleared()).isFalse();
+      assertThat(decoded.getValues()).isEqualTo(allTypes().getValues());
+      assertThat(decoded.getValues().get("int")).isInstanceOf(Integer.class);
+      assertThat(decoded.getValues().get("long")).isInstanceOf(Long.class);
+    }
+  }
+
+  @Test public void testRoundTrip_cleared() throws Exception {
+    final SharedChanges changes = new SharedChanges();
+    changes.clear();
+    changes.put("after", 1);
+    final SharedChanges decoded =
+        SharedChangesCodec.decode(SharedChangesCodec.encode(changes, false));
+    assertThat(decoded.isCleared()).isTrue();
+    assertThat(decoded.getValues()).containsOnlyKeys("after");
+  }
+
+  @Test public void testRoundTrip_keepsOrder() throws Exception {
+    final SharedChanges decoded =
+        SharedChangesCodec.decode(SharedChangesCodec.encode(manyKeys(100), true));
+    assertThat(decoded.getValues().keySet()).containsExactlyElementsOf(
+        manyKeys(100).getValues().keySet());
+  }
+
+  @Test public void testReader_streamsEntries() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final SharedChangesCodec.Writer writer = new SharedChangesCodec.Writer(out, false, true);
+    writer.write("a", 1);
+    writer.write("b", null);
+    writer.finish();
+
+    final SharedChangesCodec.Reader reader =
+        new SharedChangesCodec.Reader(new ByteArrayInputStream(out.toByteArray()));
+    assertThat(reader.next()).isTrue();
+    assertThat(reader.getKey()).isEqualTo("a");
+    assertThat(reader.getValue()).isEqualTo(1);
+    assertThat(reader.next()).isTrue();
+    assertThat(reader.getKey()).isEqualTo("b");
+    assertThat(reader.getValue()).isNull();
+    assertThat(reader.next()).isFalse();
+    assertThat(reader.next()).isFalse();
+  }
+
+  @Test public void testDecode_truncated() throws Exception {
+    final byte[] data = SharedChangesCodec.encode(allTypes(), false);
+    try {
+      SharedChangesCodec.decode(Arrays.copyOf(data, data.length - 1));
+    } catch (EOFException e) {
+      return;
+    }
+    fail("Should throw EOFException");
+  }
+
+  @Test public void testDecode_unknownVersion() throws Exception {
+    final byte[] data = SharedChangesCodec.encode(allTypes(), false);
+    data[0] = (byte) (SharedChangesCodec.FORMAT_VERSION + 1);
+    try {
+      SharedChangesCodec.decode(data);
+    } catch (Exception e) {
+      assertThat(e.getMessage()).contains("version");
+      return;
+    }
+    fail("Should throw IOException");
+  }
+
+  @Test public void testRoundTrip_stringSetsAndBlobs() throws Exception {
+    final Set<String> strings = new HashSet<>(Arrays.asList("a", "b", "caf\u00e9"));
+    final byte[] blob = new byte[] { 0, 1, -1, 127, -128 };
+    for (boolean dedup : new boolean[] { false, true }) {
+      final SharedChanges changes = new SharedChanges();
+      changes.put("set", strings);
+      changes.put("empty_set", new HashSet<String>());
+      changes.put("blob", blob);
+      changes.put("empty_blob", new byte[0]);
+
+      final SharedChanges decoded =
+          SharedChangesCodec.decode(SharedChangesCodec.encode(changes, dedup));
+
+      assertThat(decoded.getValues().get("set")).isEqualTo(strings);
+      assertThat(decoded.getValues().get("empty_set")).isEqualTo(new HashSet<String>());
+      assertThat((byte[]) decoded.getValues().get("blob")).isEqualTo(blob);
+      assertThat((byte[]) decoded.getValues().get("empty_blob")).isEmpty();
+    }
+  }
+
+  @Test public void testEncodeValue_compact() throws Exception {
+    final Set<String> strings = new HashSet<>(Arrays.asList("one", "two"));
+    final byte[] encoded = SharedChangesCodec.encodeValue(strings);
+
+    assertThat(SharedChangesCodec.decodeValue(encoded)).isEqualTo(strings);
+    // Header, tag, empty key, count, two length prefixed strings, end.
+    assertThat(encoded.length).isEqualTo(2 + 1 + 1 + 1 + 4 + 4 + 1);
+    assertThat((byte[]) SharedChangesCodec.decodeValue(SharedChangesCodec.encodeValue(
+        new byte[] { 4, 2 }))).isEqualTo(new byte[] { 4, 2 });
+  }
+
+  @Test public void testEncode_unsupportedType() throws Exception {
+    final SharedChanges changes = new SharedChanges();
+    changes.put("double", 1.0d);
+    try {
+      SharedChangesCodec.encode(changes, false);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    fail("Should throw IllegalArgumentException");
+  }
+
+  @Test public void testSize_smallerThanSerializedMap() throws Exception {
+    final SharedChanges changes = manyKeys(1000);
+    final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    final ObjectOutputStream objects = new ObjectOutputStream(serialized);
+    objects.writeObject(new HashMap<>(changes.getValues()));
+    objects.close();
+
+    final int plain = SharedChangesCodec.encode(changes, false).length;
+    final int dedup = SharedChangesCodec.encode(changes, true).length;
+    assertThat(plain).isLessThan(serialized.size());
+    // Only 10 distinct string values, dedup should win.
+    assertThat(dedup).isLessThan(plain);
+  }
+
+  @Test public void testSize_varints() throws Exception {
+    final SharedChanges changes = new SharedChanges();
+    changes.put("k", 1L);
+    // version, flags, tag, key length, key, value, end tag
+    assertThat(SharedChangesCodec.encode(changes, false)).hasSize(7);
+  }
+
+  /**
+   * Throughput is measured in the benchmark module, see ChangesBenchmark.
+   */
+  @Test public void testRoundTrip_tenThousandKeys() throws Exception {
+    final SharedChanges changes = manyKeys(10000);
+    final long start = System.nanoTime();
+    for (int i = 0; i < 20; i++) {
+      final byte[] data = SharedChangesCodec.encode(changes, true);
+      assertThat(SharedChangesCodec.decode(data).size()).isEqualTo(10000);
+    }
+    // Very loose bound, this is here to catch an accidental quadratic, not to benchmark.
+    assertThat((System.nanoTime() - start) / 1000000L).isLessThan(10000L);
+  }
+}
@@ -0,0 +1,91 @@
+package com.owlr.provider;
+
+import android.database.Cursor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SharedCursorUtilsTest {
+
+  @Mock Cursor cursor;
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(cursor.getColumnIndexOrThrow(Types.KEY)).thenReturn(0);
+    when(cursor.getColumnIndexOrThrow(Types.TYPE)).thenReturn(1);
+    when(cursor.getColumnIndexOrThrow(Types.VALUE)).thenReturn(2);
+  }
+
+  @Test public void testGetValues_nullCursor() throws Exception {
+    assertThat(SharedCursorUtils.getValues(null)).isNotNull().isEmpty();
+  }
+
+  @Test public void testGetValues_decodesRows() throws Exception {
+    when(cursor.moveToNext()).thenReturn(true, true, true, false);
+    when(cursor.getString(0)).thenReturn("name", "enabled", "count");
+    when(cursor.getString(1)).thenReturn(Types.STRING_TYPE, Types.BOOLEAN_TYPE, Types.LONG_TYPE);
+    when(cursor.getString(2)).thenReturn("owlr");
+    when(cursor.getInt(2)).thenReturn(1);
+    when(cursor.getLong(2)).thenReturn(42L);
+
+    final Map<String, Object> values = SharedCursorUtils.getValues(cursor);
+
+    assertThat(values).hasSize(3)
+        .containsEntry("name", "owlr")
+        .containsEntry("enabled", true)
+        .containsEntry("count", 42L);
+    verify(cursor).close();
+  }
+
+  @Test public void testGetValues_stringSetsBlobsAndRefs() throws Exception {
+    final Set<String> strings = new HashSet<>(Arrays.asList("a", "b"));
+    final byte[] blob = new byte[] { 1, 2, 3 };
+    when(cursor.moveToNext()).thenReturn(true, true, true, false);
+    when(cursor.getString(0)).thenReturn("set", "blob", "large");
+    when(cursor.getString(1))
+        .thenReturn(Types.STRING_SET_TYPE, Types.BLOB_TYPE, Types.BLOB_REF_TYPE);
+    when(cursor.getBlob(2)).thenReturn(SharedChangesCodec.encodeValue(strings), blob);
+    final List<String> blobRefs = new ArrayList<>();
+
+    final Map<String, Object> values = SharedCursorUtils.getValues(cursor, blobRefs);
+
+    assertThat(values).hasSize(2).containsEntry("set", strings).containsEntry("blob", blob);
+    assertThat(blobRefs).containsExactly("large");
+  }
+
+  @Test public void testGetStringSetValue_otherTypeReadsAsDefault() throws Exception {
+    final Set<String> def = new HashSet<>(Arrays.asList("default"));
+    when(cursor.moveToFirst()).thenReturn(true);
+    when(cursor.getType(0)).thenReturn(Cursor.FIELD_TYPE_STRING);
+    when(cursor.getString(0)).thenReturn("owlr");
+
+    assertThat(SharedCursorUtils.getStringSetValue(cursor, def)).isSameAs(def);
+    verify(cursor).close();
+  }
+
+  @Test public void testGetStringSetValue_decodesBlob() throws Exception {
+    final Set<String> strings = new HashSet<>(Arrays.asList("a", "b"));
+    when(cursor.moveToFirst()).thenReturn(true);
+    when(cursor.getType(0)).thenReturn(Cursor.FIELD_TYPE_BLOB);
+    when(cursor.getBlob(0)).thenReturn(SharedChangesCodec.encodeValue(strings));
+
+    assertThat(SharedCursorUtils.getStringSetValue(cursor, null)).isEqualTo(strings);
+  }
+
+  @Test public void testGetValues_emptyCursor() throws Exception {
+    when(cursor.moveToNext()).thenReturn(false);
+    assertThat(SharedCursorUtils.getValues(cursor)).isEmpty();
+    verify(cursor).close();
+  }
+}
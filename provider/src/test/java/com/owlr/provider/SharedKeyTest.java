@@ -0,0 +1,82 @@
+package com.owlr.provider;
+
+import android.content.Context;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SharedKeyTest {
+
+  private static final SharedKey<Boolean> FLAG = SharedKey.ofBoolean("flag");
+  private static final SharedKey<Long> COUNT = SharedKey.ofLong("count");
+  private static final SharedKey<String> NAME = SharedKey.ofString("name");
+
+  private SharedSharedPreferences preferences;
+
+  @Before public void setUp() throws Exception {
+    final Context context = mock(Context.class);
+    when(context.getApplicationContext()).thenReturn(context);
+    preferences = new SharedSharedPreferences(context, "com.owlr.test1");
+    final Map<String, Object> values = new HashMap<>();
+    values.put("flag", true);
+    values.put("count", 1234567L);
+    values.put("name", "owlr");
+    final SharedValueCache cache = new SharedValueCache();
+    cache.setValues(values, cache.getGeneration());
+    Whitebox.setInternalState(preferences, "cache", cache);
+  }
+
+  @Test public void testInterned() throws Exception {
+    assertThat(SharedKey.ofBoolean("flag")).isSameAs(FLAG);
+    assertThat(SharedKey.ofString("flag")).isNotSameAs((Object) FLAG);
+    assertThat(SharedKey.ofString("flag").getType()).isEqualTo(Types.STRING_TYPE);
+  }
+
+  @Test public void testCachedRead() throws Exception {
+    assertThat(preferences.getBoolean(FLAG, false)).isTrue();
+    assertThat(preferences.getLong(COUNT, 0L)).isEqualTo(1234567L);
+    assertThat(preferences.getString(NAME, null)).isEqualTo("owlr");
+    assertThat(preferences.getInt(SharedKey.ofInt("missing"), 7)).isEqualTo(7);
+  }
+
+  /**
+   * Flag checks run in list binding, a read served from the cache mustn't make garbage.
+   */
+  @Test public void testCachedRead_allocatesNothing() throws Exception {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    final long thread = Thread.currentThread().getId();
+    final int reads = 100000;
+
+    // Warm up, loading classes allocates.
+    readAll(reads);
+    final long before = threads.getThreadAllocatedBytes(thread);
+    final long sink = readAll(reads);
+    final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+    assertThat(sink).isEqualTo(reads * (1L + 1234567L + 4L));
+    // Reading the counter allocates a little itself, far less than a byte a read.
+    assertThat(allocated).isLessThan(reads / 10);
+  }
+
+  private long readAll(int reads) {
+    long sink = 0;
+    for (int i = 0; i < reads; i++) {
+      if (preferences.getBoolean(FLAG, false)) sink++;
+      sink += preferences.getLong(COUNT, 0L);
+      sink += preferences.getString(NAME, "").length();
+    }
+    return sink;
+  }
+}
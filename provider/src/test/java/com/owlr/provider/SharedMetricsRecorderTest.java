@@ -0,0 +1,63 @@
+package com.owlr.provider;
+
+import com.owlr.provider.SharedMetricsRecorder.Histogram;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedMetricsRecorderTest {
+
+  @Test public void testGetBucket() throws Exception {
+    assertThat(Histogram.getBucket(0L)).isEqualTo(0);
+    assertThat(Histogram.getBucket(1L)).isEqualTo(1);
+    assertThat(Histogram.getBucket(3L)).isEqualTo(2);
+    assertThat(Histogram.getBucket(4L)).isEqualTo(3);
+    assertThat(Histogram.getBucket(Long.MAX_VALUE)).isEqualTo(Histogram.BUCKETS - 1);
+    // Every value fits under the upper bound of its bucket.
+    for (long value : new long[] { 0L, 1L, 2L, 1000L, 1L << 40, Long.MAX_VALUE }) {
+      assertThat(value).isLessThanOrEqualTo(Histogram.getUpperBound(Histogram.getBucket(value)));
+    }
+  }
+
+  @Test public void testPercentiles() throws Exception {
+    final SharedMetricsRecorder recorder = new SharedMetricsRecorder();
+    for (int i = 0; i < 99; i++) recorder.onRead(50000L, true);
+    recorder.onRead(5000000L, false);
+
+    final Histogram reads = recorder.getReads();
+    assertThat(reads.getCount()).isEqualTo(100L);
+    assertThat(reads.getMax()).isEqualTo(5000000L);
+    assertThat(reads.getMean()).isEqualTo((99L * 50000L + 5000000L) / 100L);
+    // Within a factor of two, never below the value.
+    assertThat(reads.getPercentile(0.5d)).isBetween(50000L, 100000L);
+    assertThat(reads.getPercentile(0.99d)).isBetween(50000L, 100000L);
+    assertThat(reads.getPercentile(1d)).isEqualTo(5000000L);
+    assertThat(recorder.getReadsUnanswered()).isEqualTo(1L);
+  }
+
+  @Test public void testCounters() throws Exception {
+    final SharedMetricsRecorder recorder = new SharedMetricsRecorder();
+    recorder.onCacheRead(true);
+    recorder.onCacheRead(true);
+    recorder.onCacheRead(false);
+    recorder.onWrite(3, 1000L, false);
+    recorder.onBroadcastSent(200 * 1024, 5000, false);
+    recorder.onBroadcastReceived(true);
+    recorder.onBroadcastReceived(false);
+
+    assertThat(recorder.getCacheHits()).isEqualTo(2L);
+    assertThat(recorder.getCacheMisses()).isEqualTo(1L);
+    assertThat(recorder.getWrites().getCount()).isEqualTo(1L);
+    assertThat(recorder.getWritesFailed()).isEqualTo(1L);
+    assertThat(recorder.getBroadcastBytes().getMax()).isEqualTo(200 * 1024L);
+    assertThat(recorder.getBroadcastsTooLarge()).isEqualTo(1L);
+    assertThat(recorder.getBroadcastsApplied()).isEqualTo(1L);
+    assertThat(recorder.getBroadcastsResynced()).isEqualTo(1L);
+
+    recorder.reset();
+    assertThat(recorder.getCacheHits()).isEqualTo(0L);
+    assertThat(recorder.getWrites().getCount()).isEqualTo(0L);
+    assertThat(recorder.getWrites().getPercentile(0.5d)).isEqualTo(0L);
+    assertThat(recorder.getBroadcastBytes().getMax()).isEqualTo(0L);
+  }
+}
@@ -0,0 +1,103 @@
+package com.owlr.provider;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedPreferencesStoreTest {
+
+  FakeSharedPreferences values;
+  SharedPreferencesStore store;
+
+  @Before public void setUp() throws Exception {
+    values = new FakeSharedPreferences();
+    store = new SharedPreferencesStore(values, new FakeSharedPreferences(),
+        new SharedVersions(new FakeSharedPreferences()));
+  }
+
+  @Test public void testGet_eachType() throws Exception {
+    final Map<String, Object> write = new HashMap<>();
+    write.put("string", "a");
+    write.put("boolean", true);
+    write.put("int", 1);
+    write.put("long", 2L);
+    write.put("float", 3f);
+    write.put("set", new HashSet<>(Arrays.asList("b", "c")));
+    store.write(false, write);
+
+    for (Map.Entry<String, Object> entry : write.entrySet()) {
+      assertThat(store.contains(entry.getKey())).isTrue();
+      assertThat(store.get(entry.getKey())).isEqualTo(entry.getValue());
+    }
+    assertThat(store.get("missing")).isNull();
+    assertThat(store.contains("missing")).isFalse();
+  }
+
+  @Test public void testGet_typedGetterOnly() throws Exception {
+    final int[] copies = new int[1];
+    final FakeSharedPreferences values = new FakeSharedPreferences() {
+      @Override public synchronized Map<String, ?> getAll() {
+        copies[0]++;
+        return super.getAll();
+      }
+
+      @Override public synchronized String getString(String key, String defValue) {
+        // FakeSharedPreferences would throw a ClassCastException, that should never be needed.
+        if (this.values.containsKey(key) && !(this.values.get(key) instanceof String)) {
+          throw new AssertionError("Read " + key + " as a String");
+        }
+        return super.getString(key, defValue);
+      }
+    };
+    store = new SharedPreferencesStore(values, new FakeSharedPreferences(),
+        new SharedVersions(new FakeSharedPreferences()));
+    final Map<String, Object> write = new HashMap<>();
+    write.put("a", "a");
+    write.put("b", 1L);
+    store.write(false, write);
+    // Written before the store knew it.
+    values.values.put("c", true);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(store.get("a")).isEqualTo("a");
+      assertThat(store.get("b")).isEqualTo(1L);
+      assertThat(store.get("c")).isEqualTo(true);
+    }
+    assertThat(copies[0]).isEqualTo(1);
+  }
+
+  @Test public void testGet_typeChangedAroundUs() throws Exception {
+    store.write(false, Collections.singletonMap("a", "1"));
+    assertThat(store.get("a")).isEqualTo("1");
+    values.values.put("a", 1L);
+    assertThat(store.get("a")).isEqualTo(1L);
+    values.values.remove("a");
+    assertThat(store.get("a")).isNull();
+  }
+
+  @Test public void testWrite_versionsEachWrite() throws Exception {
+    assertThat(store.getVersion()).isEqualTo(0L);
+    assertThat(store.write(false, Collections.singletonMap("a", "1"))).isEqualTo(1L);
+    assertThat(store.write(false, Collections.singletonMap("b", "2"))).isEqualTo(2L);
+    assertThat(store.write(false, Collections.singletonMap("a", null))).isEqualTo(3L);
+
+    assertThat(store.contains("a")).isFalse();
+    assertThat(store.getVersionsSince(1L)).containsOnlyKeys("a", "b");
+    assertThat(store.getVersionsSince(1L).get("a")).isEqualTo(3L);
+  }
+
+  @Test public void testWrite_clearVersionsClearedKeys() throws Exception {
+    store.write(false, Collections.singletonMap("a", "1"));
+    final long version = store.write(true, Collections.singletonMap("b", "2"));
+
+    assertThat(store.getAll()).containsOnlyKeys("b");
+    assertThat(store.getVersionsSince(1L)).containsOnlyKeys("a", "b");
+    assertThat(store.getVersionsSince(1L).get("a")).isEqualTo(version);
+  }
+}
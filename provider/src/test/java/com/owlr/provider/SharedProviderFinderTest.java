@@ -6,9 +6,16 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import org.junit.After;
 import org.junit.Before;
@@ -25,10 +32,15 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -116,6 +128,30 @@ public class SharedProviderFinderTest {
     assertThat(results).isNotNull().hasSize(0);
   }
 
+  @Test public void testFindProviders_reportsScan() throws Exception {
+    final ProviderInfo providerInfo = mock(ProviderInfo.class);
+    providerInfo.authority = "com.owlr.test";
+    providerInfo.writePermission = "com.owlr.test.PERMISSION";
+    final ProviderInfo other = mock(ProviderInfo.class);
+    other.authority = "com.other";
+
+    when(sharedProviderFinder.getInstalledProviders()).thenReturn(
+        Arrays.asList(providerInfo, other));
+    when(sharedProviderFinder.getAuthorityMatcherPattern()).thenReturn(
+        Pattern.compile("com\\.owlr\\.test"));
+    when(sharedProviderFinder.getSharedPermission()).thenReturn("com.owlr.test.PERMISSION");
+    when(sharedProviderFinder.findProviders()).thenCallRealMethod();
+    final SharedMetrics metrics = mock(SharedMetrics.class);
+    SharedMetrics.setMetrics(metrics);
+    try {
+      sharedProviderFinder.findProviders();
+    } finally {
+      SharedMetrics.setMetrics(null);
+    }
+
+    verify(metrics).onDiscoveryScan(eq(2), eq(1), anyLong());
+  }
+
   @Test public void testFindMasterProvider_throwException() throws Exception {
     when(sharedProviderFinder.findMasterProvider(
         anyListOf(ProviderInfo.class))).thenCallRealMethod();
@@ -178,6 +214,25 @@ public class SharedProviderFinderTest {
     assertThat(masterProvider).isEqualTo(auth);
   }
 
+  @Test public void testFindMasterProvider_reportsElection() throws Exception {
+    final String auth = "com.owlr.test.provider";
+
+    when(sharedProviderFinder.findMasterProvider(
+        anyListOf(ProviderInfo.class))).thenCallRealMethod();
+    final ProviderInfo providerInfo = mock(ProviderInfo.class);
+    providerInfo.authority = auth;
+    when(sharedProviderFinder.delegateMaster(auth, true)).thenReturn(auth);
+    final SharedMetrics metrics = mock(SharedMetrics.class);
+    SharedMetrics.setMetrics(metrics);
+    try {
+      sharedProviderFinder.findMasterProvider(Collections.singletonList(providerInfo));
+    } finally {
+      SharedMetrics.setMetrics(null);
+    }
+
+    verify(metrics).onElection(eq(1), anyLong());
+  }
+
   @Test public void testFindMasterProvider_multipleProviders_assignThisProvider() throws Exception {
     final String auth = "com.owlr.test.provider";
     final String auth2 = "com.owlr.test2.provider";
@@ -251,6 +306,305 @@ public class SharedProviderFinderTest {
     assertThat(masterProvider).isEqualTo(auth);
   }
 
+  @Test public void testFindMasterProvider_cachesElection() throws Exception {
+    final List<ProviderInfo> providers = providers("com.owlr.test1");
+    when(sharedProviderFinder.findProviders()).thenReturn(providers);
+    when(sharedProviderFinder.queryLease("com.owlr.test1")).thenReturn(
+        new MasterLease(true, 1L, System.currentTimeMillis() + 60000L));
+    when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+    when(sharedProviderFinder.findMasterProvider()).thenCallRealMethod();
+
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test1");
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test1");
+
+    // The lease is still running, so not even a heartbeat.
+    verify(sharedProviderFinder, times(1)).findProviders();
+    verify(sharedProviderFinder, times(1)).queryLease("com.owlr.test1");
+  }
+
+  @Test public void testFindMasterProvider_replaysWritesOnceMasterAnswers() throws Exception {
+    final List<ProviderInfo> providers = providers("com.owlr.test1");
+    when(sharedProviderFinder.findProviders()).thenReturn(providers);
+    when(sharedProviderFinder.queryLease("com.owlr.test1")).thenReturn(
+        new MasterLease(true, 1L, System.currentTimeMillis() + 60000L),
+        new MasterLease(true, 1L, System.currentTimeMillis() + 60000L));
+    when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+    when(sharedProviderFinder.findMasterProvider()).thenCallRealMethod();
+    doCallRealMethod().when(sharedProviderFinder).invalidate();
+
+    // Elected.
+    sharedProviderFinder.findMasterProvider();
+    verify(sharedProviderFinder, times(1)).replayWrites();
+    // Within the lease nobody was asked, nothing to go on.
+    sharedProviderFinder.findMasterProvider();
+    verify(sharedProviderFinder, times(1)).replayWrites();
+    // Elected again after being told the master went.
+    sharedProviderFinder.invalidate();
+    sharedProviderFinder.findMasterProvider();
+    verify(sharedProviderFinder, times(2)).replayWrites();
+  }
+
+  @Test public void testOnPackagesChanged_forgetsMasterAndReplaysWrites() throws Exception {
+    doCallRealMethod().when(sharedProviderFinder).onPackagesChanged();
+
+    sharedProviderFinder.onPackagesChanged();
+
+    verify(sharedProviderFinder).invalidate();
+    verify(sharedProviderFinder).replayWrites();
+  }
+
+  @Test public void testFindMasterProvider_expiredLeaseHeartbeat() throws Exception {
+    final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2");
+    when(sharedProviderFinder.findProviders()).thenReturn(providers);
+    when(sharedProviderFinder.queryLease("com.owlr.test1")).thenReturn(
+        new MasterLease(true, 1L, System.currentTimeMillis() - 1L));
+    when(sharedProviderFinder.queryLease("com.owlr.test2")).thenReturn(
+        new MasterLease(false, 1L, 0L));
+    when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+    when(sharedProviderFinder.findMasterProvider()).thenCallRealMethod();
+
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test1");
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test1");
+
+    // Renewed with a heartbeat to the master alone, no scan.
+    verify(sharedProviderFinder, times(1)).findProviders();
+    verify(sharedProviderFinder, times(2)).queryLease("com.owlr.test1");
+    verify(sharedProviderFinder, times(1)).queryLease("com.owlr.test2");
+  }
+
+  @Test public void testFindMasterProvider_masterSteppedDown_electsAgain() throws Exception {
+    final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2");
+    when(sharedProviderFinder.findProviders()).thenReturn(providers);
+    when(sharedProviderFinder.queryLease("com.owlr.test1")).thenReturn(
+        new MasterLease(true, 1L, 0L), new MasterLease(false, 2L, 0L));
+    when(sharedProviderFinder.queryLease("com.owlr.test2")).thenReturn(
+        new MasterLease(false, 1L, 0L), new MasterLease(true, 2L, 0L));
+    when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+    when(sharedProviderFinder.findMasterProvider()).thenCallRealMethod();
+
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test1");
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test2");
+
+    verify(sharedProviderFinder, times(2)).findProviders();
+  }
+
+  @Test public void testFindMasterProvider_highestEpochWins() throws Exception {
+    final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2");
+    when(sharedProviderFinder.queryLease("com.owlr.test1")).thenReturn(
+        new MasterLease(true, 1L, 0L));
+    when(sharedProviderFinder.queryLease("com.owlr.test2")).thenReturn(
+        new MasterLease(true, 3L, 0L));
+    when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+    when(sharedProviderFinder.getMasterEpoch()).thenCallRealMethod();
+
+    final String masterProvider = sharedProviderFinder.findMasterProvider(providers);
+
+    assertThat(masterProvider).isEqualTo("com.owlr.test2");
+    assertThat(sharedProviderFinder.getMasterEpoch()).isEqualTo(3L);
+    verify(sharedProviderFinder).delegateMaster("com.owlr.test1", false);
+    verify(sharedProviderFinder, never()).delegateMaster(anyString(), eq(true));
+  }
+
+  @Test public void testFindMasterProvider_noMaster_delegatesInNewEpoch() throws Exception {
+    final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2");
+    when(sharedProviderFinder.queryLease("com.owlr.test1")).thenReturn(
+        new MasterLease(false, 2L, 0L));
+    when(sharedProviderFinder.queryLease("com.owlr.test2")).thenReturn(
+        new MasterLease(false, 4L, 0L));
+    when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+    when(sharedProviderFinder.getMasterEpoch()).thenCallRealMethod();
+    when(sharedProviderFinder.delegateMaster("com.owlr.test1", true)).thenReturn(
+        "com.owlr.test1");
+
+    final String masterProvider = sharedProviderFinder.findMasterProvider(providers);
+
+    assertThat(masterProvider).isEqualTo("com.owlr.test1");
+    assertThat(sharedProviderFinder.getMasterEpoch()).isEqualTo(5L);
+  }
+
+  @Test public void testFindMasterProvider_invalidateScansAgain() throws Exception {
+    final List<ProviderInfo> providers = Collections.singletonList(mock(ProviderInfo.class));
+    when(sharedProviderFinder.findProviders()).thenReturn(providers);
+    when(sharedProviderFinder.findMasterProvider(providers)).thenReturn("com.owlr.test1",
+        "com.owlr.test2");
+    when(sharedProviderFinder.findMasterProvider()).thenCallRealMethod();
+    doCallRealMethod().when(sharedProviderFinder).invalidate();
+
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test1");
+    sharedProviderFinder.invalidate();
+    assertThat(sharedProviderFinder.findMasterProvider()).isEqualTo("com.owlr.test2");
+
+    verify(sharedProviderFinder, times(2)).findProviders();
+  }
+
+  @Test public void testFindMasterProvider_parallel_firstMasterInListOrder() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      when(sharedProviderFinder.getProbeExecutor()).thenReturn(executor);
+      when(sharedProviderFinder.getProbeTimeoutMillis()).thenReturn(5000L);
+      final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2",
+          "com.owlr.test3");
+      // test3 answers first, but test2 comes first in the list so it has to win.
+      probeAnswers(providers, new long[] { 0, 200, 0 }, new boolean[] { false, true, true });
+      when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+
+      final String masterProvider = sharedProviderFinder.findMasterProvider(providers);
+
+      assertThat(masterProvider).isEqualTo("com.owlr.test2");
+      verify(sharedProviderFinder).delegateMaster("com.owlr.test3", false);
+      verify(sharedProviderFinder, never()).delegateMaster(anyString(), eq(true));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testFindMasterProvider_parallel_hungProviderSkipped() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      when(sharedProviderFinder.getProbeExecutor()).thenReturn(executor);
+      when(sharedProviderFinder.getProbeTimeoutMillis()).thenReturn(100L);
+      final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2",
+          "com.owlr.test3");
+      // test1 claims master, but far too late.
+      probeAnswers(providers, new long[] { 10000, 0, 0 }, new boolean[] { true, false, true });
+      when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+
+      final long start = System.nanoTime();
+      final String masterProvider = sharedProviderFinder.findMasterProvider(providers);
+      final long tookMillis = (System.nanoTime() - start) / 1000000L;
+
+      assertThat(masterProvider).isEqualTo("com.owlr.test3");
+      assertThat(tookMillis).isLessThan(5000L);
+      verify(sharedProviderFinder, never()).delegateMaster(eq("com.owlr.test1"), anyBoolean());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testFindMasterProvider_parallel_oneDeadlineForAllProbes() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      when(sharedProviderFinder.getProbeExecutor()).thenReturn(executor);
+      when(sharedProviderFinder.getProbeTimeoutMillis()).thenReturn(300L);
+      final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2",
+          "com.owlr.test3", "com.owlr.test4");
+      probeAnswers(providers, new long[] { 0, 10000, 10000, 10000 },
+          new boolean[] { false, false, false, false });
+      when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+      when(sharedProviderFinder.delegateMaster("com.owlr.test1", true)).thenReturn(
+          "com.owlr.test1");
+
+      final long start = System.nanoTime();
+      final String masterProvider = sharedProviderFinder.findMasterProvider(providers);
+      final long tookMillis = (System.nanoTime() - start) / 1000000L;
+
+      assertThat(masterProvider).isEqualTo("com.owlr.test1");
+      // Three hung peers cost one timeout, not three.
+      assertThat(tookMillis).isLessThan(900L);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testFindMasterProvider_parallel_noAnswers_delegatesFirst() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      when(sharedProviderFinder.getProbeExecutor()).thenReturn(executor);
+      when(sharedProviderFinder.getProbeTimeoutMillis()).thenReturn(100L);
+      final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2");
+      probeAnswers(providers, new long[] { 10000, 10000 }, new boolean[] { false, false });
+      when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+      when(sharedProviderFinder.delegateMaster("com.owlr.test1", true)).thenReturn(
+          "com.owlr.test1");
+
+      assertThat(sharedProviderFinder.findMasterProvider(providers)).isEqualTo("com.owlr.test1");
+      verify(sharedProviderFinder, never()).delegateMaster(eq("com.owlr.test2"), anyBoolean());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testFindMasterProvider_parallel_ownProviderAskedInline() throws Exception {
+    // Every probe thread is stuck on an earlier hung peer.
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(new Runnable() {
+        @Override public void run() {
+          try {
+            Thread.sleep(10000L);
+          } catch (InterruptedException ignored) {
+          }
+        }
+      });
+      when(sharedProviderFinder.getProbeExecutor()).thenReturn(executor);
+      when(sharedProviderFinder.getProbeTimeoutMillis()).thenReturn(100L);
+      when(sharedProviderFinder.getLocalAuthority()).thenReturn("com.owlr.test2");
+      final List<ProviderInfo> providers = providers("com.owlr.test1", "com.owlr.test2");
+      probeAnswers(providers, new long[] { 0, 0 }, new boolean[] { false, false });
+      when(sharedProviderFinder.findMasterProvider(providers)).thenCallRealMethod();
+      when(sharedProviderFinder.delegateMaster("com.owlr.test2", true)).thenReturn(
+          "com.owlr.test2");
+
+      assertThat(sharedProviderFinder.findMasterProvider(providers)).isEqualTo("com.owlr.test2");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 5000) public void testNewProbeExecutor_stuckProbesDontQueueNewOnes()
+      throws Exception {
+    final ExecutorService executor = SharedProviderFinder.newProbeExecutor();
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      for (int i = 0; i < 8; i++) {
+        executor.submit(new Callable<Void>() {
+          @Override public Void call() throws Exception {
+            release.await();
+            return null;
+          }
+        });
+      }
+      final Future<Boolean> probe = executor.submit(new Callable<Boolean>() {
+        @Override public Boolean call() throws Exception {
+          return true;
+        }
+      });
+      assertThat(probe.get(1, TimeUnit.SECONDS)).isTrue();
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private static List<ProviderInfo> providers(String... authorities) {
+    final List<ProviderInfo> providers = new ArrayList<>(authorities.length);
+    for (String authority : authorities) {
+      final ProviderInfo providerInfo = mock(ProviderInfo.class);
+      providerInfo.authority = authority;
+      providers.add(providerInfo);
+    }
+    return providers;
+  }
+
+  /**
+   * Each provider answers isMaster after its delay.
+   */
+  private void probeAnswers(List<ProviderInfo> providers, long[] delays, boolean[] masters) {
+    for (int i = 0; i < providers.size(); i++) {
+      final Uri uri = mock(Uri.class);
+      final long delay = delays[i];
+      final boolean master = masters[i];
+      when(sharedProviderFinder.getContentUri(providers.get(i).authority)).thenReturn(uri);
+      when(sharedProviderFinder.isProviderMaster(eq(uri), any(ContentResolver.class))).thenAnswer(
+          new Answer<Boolean>() {
+            @Override public Boolean answer(InvocationOnMock invocation) throws Throwable {
+              if (delay > 0) Thread.sleep(delay);
+              return master;
+            }
+          });
+    }
+  }
+
   @Test public void testIsProviderMaster_notSet_returnFalse() throws Exception {
     when(cursor.moveToFirst()).thenReturn(false);
     when(contentResolver.query(Uri.EMPTY, null, null, null, null)).thenReturn(cursor);
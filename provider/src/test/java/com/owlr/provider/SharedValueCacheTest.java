@@ -0,0 +1,57 @@
+package com.owlr.provider;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedValueCacheTest {
+
+  SharedValueCache cache;
+  Map<String, Object> values;
+
+  @Before public void setUp() throws Exception {
+    cache = new SharedValueCache();
+    values = new HashMap<>();
+    values.put("string", "value");
+    values.put("boolean", true);
+    values.put("int", 1);
+    values.put("long", 2L);
+    values.put("float", 3f);
+  }
+
+  @Test public void testGetValues_emptyUntilLoaded() throws Exception {
+    assertThat(cache.getValues()).isNull();
+    cache.setValues(values, cache.getGeneration());
+    assertThat(cache.getValues()).isEqualTo(values);
+  }
+
+  @Test public void testInvalidate_dropsValues() throws Exception {
+    cache.setValues(values, cache.getGeneration());
+    cache.invalidate();
+    assertThat(cache.getValues()).isNull();
+  }
+
+  @Test public void testSetValues_ignoredIfInvalidatedWhileLoading() throws Exception {
+    final int generation = cache.getGeneration();
+    cache.invalidate();
+    cache.setValues(values, generation);
+    assertThat(cache.getValues()).isNull();
+  }
+
+  @Test public void testTypedGetters() throws Exception {
+    assertThat(SharedValueCache.getString(values, "string", null)).isEqualTo("value");
+    assertThat(SharedValueCache.getBoolean(values, "boolean", false)).isTrue();
+    assertThat(SharedValueCache.getInt(values, "int", 0)).isEqualTo(1);
+    assertThat(SharedValueCache.getLong(values, "long", 0L)).isEqualTo(2L);
+    assertThat(SharedValueCache.getFloat(values, "float", 0f)).isEqualTo(3f);
+  }
+
+  @Test public void testTypedGetters_defaultWhenMissingOrOtherType() throws Exception {
+    assertThat(SharedValueCache.getString(values, "missing", "def")).isEqualTo("def");
+    assertThat(SharedValueCache.getLong(values, "int", 5L)).isEqualTo(5L);
+    assertThat(SharedValueCache.getBoolean(values, "string", true)).isTrue();
+  }
+}
@@ -0,0 +1,53 @@
+package com.owlr.provider;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class SharedVersionsTest {
+
+  FakeSharedPreferences preferences;
+  SharedVersions versions;
+
+  @Before public void setUp() throws Exception {
+    preferences = new FakeSharedPreferences();
+    versions = new SharedVersions(preferences);
+  }
+
+  @Test public void testGetVersion_startsAtZero() throws Exception {
+    assertThat(versions.getVersion()).isEqualTo(0L);
+    assertThat(versions.getVersionsSince(0L)).isEmpty();
+  }
+
+  @Test public void testUpdate_bumpsVersionOncePerBatch() throws Exception {
+    assertThat(versions.update(Arrays.asList("a", "b"))).isEqualTo(1L);
+    assertThat(versions.update(Collections.singletonList("c"))).isEqualTo(2L);
+    assertThat(versions.getVersion()).isEqualTo(2L);
+    assertThat(versions.getVersionsSince(0L))
+        .containsOnly(entry("a", 1L), entry("b", 1L), entry("c", 2L));
+  }
+
+  @Test public void testGetVersionsSince_onlyNewerKeys() throws Exception {
+    versions.update(Arrays.asList("a", "b"));
+    versions.update(Collections.singletonList("c"));
+    versions.update(Collections.singletonList("a"));
+
+    assertThat(versions.getVersionsSince(0L)).containsOnlyKeys("a", "b", "c");
+    assertThat(versions.getVersionsSince(1L)).containsOnly(entry("a", 3L), entry("c", 2L));
+    assertThat(versions.getVersionsSince(2L)).containsOnly(entry("a", 3L));
+    assertThat(versions.getVersionsSince(3L)).isEmpty();
+  }
+
+  @Test public void testVersion_persisted() throws Exception {
+    versions.update(Arrays.asList("a", "b"));
+    versions.update(Collections.singletonList("c"));
+
+    final SharedVersions reloaded = new SharedVersions(preferences);
+    assertThat(reloaded.getVersion()).isEqualTo(2L);
+    assertThat(reloaded.getVersionsSince(1L)).containsOnly(entry("c", 2L));
+  }
+}
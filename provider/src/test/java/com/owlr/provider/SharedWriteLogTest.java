@@ -0,0 +1,114 @@
+package com.owlr.provider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class SharedWriteLogTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private SharedWriteLog log;
+
+  @Before public void setUp() throws Exception {
+    file = new File(folder.getRoot(), "log");
+    log = new SharedWriteLog(file);
+  }
+
+  @Test public void testEmpty() throws Exception {
+    assertThat(log.isEmpty()).isTrue();
+    final SharedChanges changes = log.read();
+    assertThat(changes.isEmpty()).isTrue();
+  }
+
+  @Test public void testAppendAndRead_mergesInOrder() throws Exception {
+    log.append(changes("a", "1", "b", 2));
+    log.append(changes("a", "3", "c", null));
+    log.sync();
+
+    assertThat(log.isEmpty()).isFalse();
+    final SharedChanges read = new SharedWriteLog(file).read();
+    assertThat(read.getValues()).containsOnly(entry("a", "3"), entry("b", 2), entry("c", null));
+  }
+
+  @Test public void testClearedFrame() throws Exception {
+    log.append(changes("a", "1"));
+    final SharedChanges cleared = new SharedChanges();
+    cleared.clear();
+    log.append(cleared);
+    log.append(changes("b", true));
+
+    final SharedChanges read = log.read();
+    assertThat(read.isCleared()).isTrue();
+    assertThat(read.getValues()).containsOnly(entry("b", true));
+  }
+
+  @Test public void testClear() throws Exception {
+    log.append(changes("a", "1"));
+    log.sync();
+    log.clear();
+
+    assertThat(log.isEmpty()).isTrue();
+    assertThat(file.exists()).isFalse();
+    assertThat(log.read().isEmpty()).isTrue();
+  }
+
+  @Test public void testTornFrameDropped() throws Exception {
+    log.append(changes("a", "1"));
+    log.append(changes("b", "2"));
+    log.sync();
+    log.clear();
+    // Simulate the second of two frames being cut short by a crash.
+    final SharedWriteLog writer = new SharedWriteLog(file);
+    writer.append(changes("a", "1"));
+    writer.append(changes("b", "2"));
+    writer.sync();
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    assertThat(new SharedWriteLog(file).read().getValues()).containsOnly(entry("a", "1"));
+  }
+
+  @Test public void testBadCrcDropped() throws Exception {
+    log.append(changes("a", "1"));
+    log.sync();
+    final FileOutputStream out = new FileOutputStream(file, true);
+    // A frame with a length, two bytes and a wrong checksum.
+    out.write(new byte[] { 0, 0, 0, 2, 1, 0, 0, 0, 0, 0 });
+    out.close();
+
+    assertThat(new SharedWriteLog(file).read().getValues()).containsOnly(entry("a", "1"));
+  }
+
+  @Test public void testAppendAfterTornFrame() throws Exception {
+    log.append(changes("a", "1"));
+    log.sync();
+    final FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[] { 0, 0, 0, 9, 1, 2 });
+    out.close();
+
+    final SharedWriteLog reopened = new SharedWriteLog(file);
+    reopened.append(changes("b", "2"));
+    reopened.sync();
+
+    assertThat(new SharedWriteLog(file).read().getValues()).containsOnly(entry("a", "1"),
+        entry("b", "2"));
+  }
+
+  private static SharedChanges changes(Object... keyValues) {
+    final SharedChanges changes = new SharedChanges();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      changes.put((String) keyValues[i], keyValues[i + 1]);
+    }
+    return changes;
+  }
+}
@@ -0,0 +1,298 @@
+package com.owlr.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class) @PrepareForTest({
+    Uri.class, Log.class, ContentProviderOperation.class, SharedWriter.class
+})
+public class SharedWriterTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<Runnable> tasks = new ArrayList<>();
+  private final Executor manualExecutor = new Executor() {
+    @Override public void execute(Runnable command) {
+      tasks.add(command);
+    }
+  };
+
+  private Context context;
+  private ContentResolver resolver;
+  private Uri uri;
+
+  @Before public void setUp() throws Exception {
+    PowerMockito.mockStatic(Uri.class);
+    PowerMockito.mockStatic(Log.class);
+    uri = mock(Uri.class);
+    final Uri.Builder builder = mock(Uri.Builder.class);
+    when(builder.appendPath(anyString())).thenReturn(builder);
+    when(builder.build()).thenReturn(uri);
+    when(uri.buildUpon()).thenReturn(builder);
+    when(Uri.parse(anyString())).thenReturn(uri);
+    context = mock(Context.class);
+    resolver = mock(ContentResolver.class);
+    when(context.getContentResolver()).thenReturn(resolver);
+    when(resolver.insert(any(Uri.class), any(ContentValues.class))).thenReturn(uri);
+  }
+
+  @Test public void testInsert_returnsBeforeWriting() throws Exception {
+    final SharedWriter writer = new SharedWriter(manualExecutor);
+    final ContentValues values = mock(ContentValues.class);
+
+    writer.insert(context, "com.owlr.test1", values, false, null);
+
+    verify(resolver, never()).insert(any(Uri.class), any(ContentValues.class));
+    runTasks();
+    verify(resolver).insert(uri, values);
+  }
+
+  @Test public void testInsert_mergesSameAuthority() throws Exception {
+    final SharedWriter writer = new SharedWriter(manualExecutor);
+    final ContentValues first = mock(ContentValues.class);
+    final ContentValues second = mock(ContentValues.class);
+
+    final SharedWriter.Write write1 = writer.insert(context, "com.owlr.test1", first, false, null);
+    final SharedWriter.Write write2 = writer.insert(context, "com.owlr.test1", second, false, null);
+    runTasks();
+
+    assertThat(write2).isSameAs(write1);
+    verify(first).putAll(second);
+    verify(resolver, times(1)).insert(any(Uri.class), any(ContentValues.class));
+  }
+
+  @Test public void testInsert_doesNotMergeAcrossAuthoritiesOrClears() throws Exception {
+    final SharedWriter writer = new SharedWriter(manualExecutor);
+
+    writer.insert(context, "com.owlr.test1", mock(ContentValues.class), false, null);
+    writer.insert(context, "com.owlr.test2", mock(ContentValues.class), false, null);
+    writer.clear(context, "com.owlr.test2", false, null);
+    writer.insert(context, "com.owlr.test2", mock(ContentValues.class), false, null);
+    runTasks();
+
+    verify(resolver, times(3)).insert(any(Uri.class), any(ContentValues.class));
+    verify(resolver, times(1)).delete(uri, null, null);
+  }
+
+  @Test public void testTransaction_rowsSentAsOneBulkInsert() throws Exception {
+    final SharedWriter writer = new SharedWriter(manualExecutor);
+    final ContentValues first = mock(ContentValues.class);
+    final ContentValues second = mock(ContentValues.class);
+    when(resolver.bulkInsert(any(Uri.class), any(ContentValues[].class))).thenReturn(2);
+
+    final SharedWriter.Write write = writer.transaction(context, "com.owlr.test1", false,
+        Arrays.asList(first, second), false, null);
+    runTasks();
+
+    assertThat(write.await()).isTrue();
+    verify(resolver).bulkInsert(uri, new ContentValues[] { first, second });
+    verify(resolver, never()).insert(any(Uri.class), any(ContentValues.class));
+  }
+
+  @Test public void testTransaction_clearSentAsOneBatch() throws Exception {
+    PowerMockito.mockStatic(ContentProviderOperation.class);
+    final ContentProviderOperation.Builder builder = mock(ContentProviderOperation.Builder.class);
+    final ContentProviderOperation delete = mock(ContentProviderOperation.class);
+    final ContentProviderOperation insert = mock(ContentProviderOperation.class);
+    final ContentValues values = mock(ContentValues.class);
+    when(ContentProviderOperation.newDelete(uri)).thenReturn(builder);
+    when(ContentProviderOperation.newInsert(uri)).thenReturn(builder);
+    when(builder.withValues(values)).thenReturn(builder);
+    when(builder.build()).thenReturn(delete, insert);
+    final SharedWriter writer = new SharedWriter(manualExecutor);
+
+    final SharedWriter.Write write = writer.transaction(context, "com.owlr.test1", true,
+        Collections.singletonList(values), false, null);
+    runTasks();
+
+    assertThat(write.await()).isTrue();
+    verify(resolver).applyBatch("com.owlr.test1",
+        new ArrayList<>(Arrays.asList(delete, insert)));
+    verify(resolver, never()).delete(any(Uri.class), anyString(), any(String[].class));
+  }
+
+  @Test public void testCommit_reportsSuccess() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final SharedWriter writer = new SharedWriter(executor);
+      assertThat(writer.insert(context, "com.owlr.test1", mock(ContentValues.class), false, null)
+          .await()).isTrue();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testCommit_reportsFailure() throws Exception {
+    when(resolver.insert(any(Uri.class), any(ContentValues.class))).thenReturn(null)
+        .thenThrow(new IllegalArgumentException("Unknown URL"));
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final SharedWriter writer = new SharedWriter(executor);
+      assertThat(writer.insert(context, "com.owlr.test1", mock(ContentValues.class), false, null)
+          .await()).isFalse();
+      assertThat(writer.insert(context, "com.owlr.test1", mock(ContentValues.class), false, null)
+          .await()).isFalse();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testAwaitPending_waitsForWrite() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final SharedWriter writer = new SharedWriter(executor);
+      final SharedValueCache cache = new SharedValueCache();
+      cache.setValues(new HashMap<String, Object>(), cache.getGeneration());
+      writer.insert(context, "com.owlr.test1", mock(ContentValues.class), false, cache);
+
+      writer.awaitPending("com.owlr.test1");
+
+      verify(resolver).insert(any(Uri.class), any(ContentValues.class));
+      assertThat(cache.getValues()).isNull();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 5000) public void testAwaitPending_boundedForReads() throws Exception {
+    // Never run, like a write stuck on a master that doesn't answer.
+    final SharedWriter writer = new SharedWriter(manualExecutor);
+    final SharedWriter.Write write =
+        writer.insert(context, "com.owlr.test1", mock(ContentValues.class), false, null);
+
+    final long start = System.nanoTime();
+    writer.awaitPending("com.owlr.test1");
+    final long waitedMillis = (System.nanoTime() - start) / 1000000L;
+
+    assertThat(waitedMillis).isGreaterThanOrEqualTo(SharedWriter.MAX_READ_WAIT_MILLIS - 10L)
+        .isLessThan(SharedWriter.MAX_READ_WAIT_MILLIS * 5);
+    assertThat(write.await(0L)).isFalse();
+  }
+
+  @Test public void testReplayAsync_onceUntilDone() throws Exception {
+    when(context.getApplicationContext()).thenReturn(context);
+    when(context.getFilesDir()).thenReturn(folder.getRoot());
+    final SharedWriter writer = new SharedWriter(manualExecutor);
+
+    writer.replayAsync(context);
+    // Asked again while finding the master for the first.
+    writer.replayAsync(context);
+    assertThat(tasks).hasSize(1);
+
+    runTasks();
+    writer.replayAsync(context);
+    assertThat(tasks).hasSize(1);
+  }
+
+  @Test public void testFailedWrite_loggedThenReplayedFirst() throws Exception {
+    when(context.getFilesDir()).thenReturn(folder.getRoot());
+    final ContentValues replayed = mock(ContentValues.class);
+    PowerMockito.whenNew(ContentValues.class).withNoArguments().thenReturn(replayed);
+    final SharedWriter writer = new SharedWriter(manualExecutor) {
+      @Override String findMaster(Context context, boolean elect) {
+        return "com.owlr.test2";
+      }
+
+      @Override void forgetMaster(Context context) {
+      }
+    };
+    final ContentValues first = values("a", "1");
+    final ContentValues second = values("b", "2");
+    final File logFile = new File(folder.getRoot(), SharedWriter.LOG_FILE);
+
+    // The master is down, even after electing again.
+    when(resolver.insert(any(Uri.class), any(ContentValues.class))).thenReturn(null);
+    final SharedWriter.Write failed = writer.insert(context, "com.owlr.test1", first, true, null);
+    runTasks();
+    assertThat(failed.await()).isFalse();
+    assertThat(logFile.length()).isGreaterThan(0L);
+
+    // Back up, the logged write goes before the new one.
+    reset(resolver);
+    when(resolver.insert(any(Uri.class), any(ContentValues.class))).thenReturn(uri);
+    final SharedWriter.Write next = writer.insert(context, "com.owlr.test1", second, true, null);
+    runTasks();
+
+    assertThat(next.await()).isTrue();
+    final InOrder inOrder = inOrder(resolver, replayed);
+    inOrder.verify(replayed).put("a", "1");
+    inOrder.verify(resolver).insert(uri, replayed);
+    inOrder.verify(resolver).insert(uri, second);
+    assertThat(logFile.exists()).isFalse();
+  }
+
+  @Test public void testLogPending_newWritesQueueBehindIt() throws Exception {
+    when(context.getFilesDir()).thenReturn(folder.getRoot());
+    final SharedWriter writer = new SharedWriter(manualExecutor) {
+      @Override String findMaster(Context context, boolean elect) {
+        throw new IllegalStateException("No providers");
+      }
+
+      @Override void forgetMaster(Context context) {
+      }
+    };
+    when(resolver.insert(any(Uri.class), any(ContentValues.class))).thenReturn(null);
+    writer.insert(context, "com.owlr.test1", values("a", "1"), true, null);
+    runTasks();
+    reset(resolver);
+
+    // Still no master to replay to, so this one is logged without being tried.
+    final SharedWriter.Write write =
+        writer.insert(context, "com.owlr.test1", values("b", "2"), true, null);
+    runTasks();
+
+    assertThat(write.await()).isFalse();
+    verify(resolver, never()).insert(any(Uri.class), any(ContentValues.class));
+    assertThat(new SharedWriteLog(new File(folder.getRoot(), SharedWriter.LOG_FILE)).read()
+        .getValues()).containsOnly(entry("a", "1"), entry("b", "2"));
+  }
+
+  private static ContentValues values(String key, Object value) {
+    final ContentValues values = mock(ContentValues.class);
+    final Map<String, Object> map = new HashMap<>();
+    map.put(key, value);
+    when(values.valueSet()).thenReturn(map.entrySet());
+    return values;
+  }
+
+  private void runTasks() {
+    while (!tasks.isEmpty()) {
+      tasks.remove(0).run();
+    }
+  }
+}
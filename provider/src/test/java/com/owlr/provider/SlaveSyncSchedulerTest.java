@@ -0,0 +1,139 @@
+package com.owlr.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SlaveSyncSchedulerTest {
+
+  @Mock ScheduledExecutorService executor;
+  final List<SharedChanges> sent = new ArrayList<>();
+  SlaveSyncScheduler scheduler;
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    scheduler = new SlaveSyncScheduler(new SlaveSyncScheduler.Sender() {
+      @Override public void send(SharedChanges changes) {
+        sent.add(changes);
+      }
+    }, executor, 500L, 3);
+  }
+
+  private static SharedChanges put(String key, Object value) {
+    final SharedChanges changes = new SharedChanges();
+    changes.put(key, value);
+    return changes;
+  }
+
+  @Test public void testSchedule_opensOneWindowForABurst() throws Exception {
+    scheduler.schedule(put("a", 1));
+    scheduler.schedule(put("b", 2));
+    scheduler.schedule(put("a", 3));
+
+    verify(executor, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    verify(executor, never()).execute(any(Runnable.class));
+    assertThat(sent).isEmpty();
+
+    scheduler.flush();
+    assertThat(sent).hasSize(1);
+    assertThat(sent.get(0).getValues()).hasSize(2).containsEntry("a", 3).containsEntry("b", 2);
+  }
+
+  @Test public void testSchedule_sendsOnceFull() throws Exception {
+    scheduler.schedule(put("a", 1));
+    scheduler.schedule(put("b", 2));
+    scheduler.schedule(put("c", 3));
+
+    final ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).execute(flush.capture());
+    flush.getValue().run();
+    assertThat(sent).hasSize(1);
+    assertThat(sent.get(0).size()).isEqualTo(3);
+  }
+
+  @Test public void testSchedule_clearSendsStraightAway() throws Exception {
+    scheduler.schedule(put("a", 1));
+    final SharedChanges clear = new SharedChanges();
+    clear.clear();
+    scheduler.schedule(clear);
+    scheduler.schedule(put("b", 2));
+
+    final ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).execute(flush.capture());
+    flush.getValue().run();
+    assertThat(sent).hasSize(1);
+    assertThat(sent.get(0).isCleared()).isTrue();
+    assertThat(sent.get(0).getValues()).containsOnlyKeys("b");
+  }
+
+  @Test public void testSchedule_removalWins() throws Exception {
+    scheduler.schedule(put("a", 1));
+    final SharedChanges remove = new SharedChanges();
+    remove.remove("a");
+    scheduler.schedule(remove);
+    scheduler.flush();
+
+    assertThat(sent.get(0).getValues()).containsEntry("a", null);
+  }
+
+  @Test public void testSchedule_versionsMergedOutOfOrder() throws Exception {
+    // Two shards, the later version got here first.
+    final SharedChanges later = put("b", 2);
+    later.setVersions(5L, 6L);
+    final SharedChanges earlier = put("a", 1);
+    earlier.setVersions(4L, 5L);
+    scheduler.schedule(later);
+    scheduler.schedule(earlier);
+    scheduler.flush();
+
+    assertThat(sent.get(0).getFromVersion()).isEqualTo(4L);
+    assertThat(sent.get(0).getToVersion()).isEqualTo(6L);
+  }
+
+  @Test public void testSchedule_gapClosesTheWindow() throws Exception {
+    // Three shards, version 7 got here last.
+    final SharedChanges first = put("a", 1);
+    first.setVersions(5L, 6L);
+    final SharedChanges third = put("c", 3);
+    third.setVersions(7L, 8L);
+    final SharedChanges second = put("b", 2);
+    second.setVersions(6L, 7L);
+    scheduler.schedule(first);
+    scheduler.schedule(third);
+    scheduler.schedule(second);
+
+    final ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).execute(flush.capture());
+    flush.getValue().run();
+    assertThat(sent).hasSize(2);
+    assertThat(sent.get(0).getFromVersion()).isEqualTo(5L);
+    assertThat(sent.get(0).getToVersion()).isEqualTo(6L);
+    assertThat(sent.get(0).getValues()).containsOnlyKeys("a");
+    assertThat(sent.get(1).getFromVersion()).isEqualTo(6L);
+    assertThat(sent.get(1).getToVersion()).isEqualTo(8L);
+    assertThat(sent.get(1).getValues()).containsOnlyKeys("b", "c");
+  }
+
+  @Test public void testFlush_nothingPending() throws Exception {
+    scheduler.flush();
+    assertThat(sent).isEmpty();
+  }
+
+  @Test public void testSchedule_ignoresEmptyChanges() throws Exception {
+    scheduler.schedule(new SharedChanges());
+    verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+}